@@ -76,8 +76,7 @@ public class AwareController {
 
         // Debug
         // Periodically outputs current configuration
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new TimerTask() {
+        viewControl.getTimerScheduler().scheduleAtFixedRate("AWARE status", new Runnable() {
             @Override
             public void run() {
                 logger.info("[AwARE] Controller of id=" + svc.getStaticConf().getProcessId()
@@ -7,9 +7,6 @@ import bftsmart.tom.core.messages.TOMMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 /**
  * Singelton pattern. Only one instance of Monitor should be used
  *
@@ -63,8 +60,7 @@ public class Monitor {
         init(n);
 
         // Periodically compute point-to-point latencies
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new TimerTask() {
+        svc.getTimerScheduler().scheduleAtFixedRate("latency monitor", new Runnable() {
             @Override
             public void run() {
                 // Computes the most recent point-to-point latency using the last 1000 (monitoring window) measurements
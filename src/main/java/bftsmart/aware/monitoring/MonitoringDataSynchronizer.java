@@ -6,8 +6,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class disseminates this replicas measurements with total order
@@ -18,6 +19,17 @@ public class MonitoringDataSynchronizer {
 
     private ServiceProxy monitoringDataDisseminationProxy;
 
+    private final ServerViewController svc;
+
+    // the ordered invocation blocks until it completes, so it runs here and not on the
+    // timer threads, which the request and STOP timers need to unblock the ordering
+    private final ExecutorService disseminationThread = Executors.newSingleThreadExecutor((r) -> {
+        Thread t = new Thread(r, "Monitoring Dissemination");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean disseminating = new AtomicBoolean(false);
+
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
 
@@ -28,27 +40,36 @@ public class MonitoringDataSynchronizer {
      */
     MonitoringDataSynchronizer(ServerViewController svc) {
 
+        this.svc = svc;
         int myID = svc.getStaticConf().getProcessId();
         monitoringDataDisseminationProxy = new ServiceProxy(myID);
 
         // Create a time to periodically broadcast this replica's measurements to all replicas
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
+        // (a period is skipped if the previous dissemination did not complete yet)
+        svc.getTimerScheduler().scheduleAtFixedRate("monitoring dissemination", () -> {
+            if (disseminating.compareAndSet(false, true)) {
+                disseminationThread.execute(this::disseminate);
+            }
+        }, svc.getStaticConf().getSynchronisationDelay(), svc.getStaticConf().getSynchronisationPeriod());
+    }
 
-                // Get freshest write latenciesfrom Monitor
-                Long[] writeLatencies = Monitor.getInstance(svc).getFreshestWriteLatencies();
-                Long[] proposeLatencies = Monitor.getInstance(svc).getFreshestProposeLatencies();
+    private void disseminate() {
+        try {
+            // Get freshest write latenciesfrom Monitor
+            Long[] writeLatencies = Monitor.getInstance(svc).getFreshestWriteLatencies();
+            Long[] proposeLatencies = Monitor.getInstance(svc).getFreshestProposeLatencies();
 
-                Measurements li = new Measurements(svc.getCurrentViewN(), writeLatencies, proposeLatencies);
-                byte[] data = li.toBytes();
+            Measurements li = new Measurements(svc.getCurrentViewN(), writeLatencies, proposeLatencies);
+            byte[] data = li.toBytes();
 
-                monitoringDataDisseminationProxy.invokeOrderedMonitoring(data);
+            monitoringDataDisseminationProxy.invokeOrderedMonitoring(data);
 
-                logger.debug("|---> Disseminating monitoring information with total order! ");
-            }
-        }, svc.getStaticConf().getSynchronisationDelay(), svc.getStaticConf().getSynchronisationPeriod());
+            logger.debug("|---> Disseminating monitoring information with total order! ");
+        } catch (RuntimeException ex) {
+            logger.error("Failed to disseminate monitoring information", ex);
+        } finally {
+            disseminating.set(false);
+        }
     }
 
     /**
@@ -15,9 +15,12 @@ limitations under the License.
 */
 package bftsmart.clientsmanagement;
 
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.util.ArrayDeque;
 import java.util.Iterator;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -34,11 +37,12 @@ public class ClientData {
     ReentrantLock clientLock = new ReentrantLock();
 
     private int clientId;
-    //private PublicKey publicKey = null;
+    private PublicKey publicKey = null;
 
-    private int session = -1;
+    // read without clientLock to decide whether to verify a request before taking it
+    private volatile int session = -1;
 
-    private int lastMessageReceived = -1;
+    private volatile int lastMessageReceived = -1;
     private long lastMessageReceivedTime = 0;
 
     private int lastMessageDelivered = -1;
@@ -47,26 +51,39 @@ public class ClientData {
     //anb: new code to deal with client requests that arrive after their execution
     private RequestList orderedRequests = new RequestList(5);
 
-    private Signature signatureVerificator = null;
+    // pending requests not proposed yet, in order of arrival
+    private ArrayDeque<TOMMessage> unproposedRequests = new ArrayDeque<>();
+    // shared by all the clients of a ClientsManager, may be null
+    private final UnproposedCounter unproposedCounter;
+    // true while this client is in the ready queue of the ClientsManager
+    boolean ready = false;
+    // bytes this client may still add to batches in its turn (deficit round robin)
+    long deficit = 0;
+
+    // signatures are verified by the threads that receive the requests, each with its own engine
+    private static final ThreadLocal<Signature> signatureVerificators = ThreadLocal.withInitial(() -> {
+        try {
+            return TOMUtil.getSigEngine();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("Failed to create signature engine", ex);
+        }
+    });
     
     /**
-     * Class constructor. Just store the clientId and creates a signature
-     * verificator for a given client public key.
+     * Class constructor. Just store the clientId and the client public key,
+     * used to verify the signatures of its requests.
      *
      * @param clientId client unique id
      * @param publicKey client public key
      */
     public ClientData(int clientId, PublicKey publicKey) {
+        this(clientId, publicKey, null);
+    }
+
+    ClientData(int clientId, PublicKey publicKey, UnproposedCounter unproposedCounter) {
         this.clientId = clientId;
-        if(publicKey != null) {
-            try {
-                signatureVerificator = TOMUtil.getSigEngine();
-                signatureVerificator.initVerify(publicKey);
-                logger.debug("Signature verifier initialized for client "+clientId);
-            } catch (Exception ex) {
-                logger.error("Failed to create client data object",ex);
-            }
-        }
+        this.unproposedCounter = unproposedCounter;
+        this.publicKey = publicKey;
     }
 
     public int getClientId() {
@@ -85,6 +102,66 @@ public class ClientData {
         return pendingRequests;
     }
 
+    /**
+     * Adds a request to the pending requests of this client, to be proposed
+     * later. Caller must hold clientLock.
+     *
+     * @param request the request
+     */
+    public void addPendingRequest(TOMMessage request) {
+        pendingRequests.add(request);
+        unproposedRequests.add(request);
+        if (unproposedCounter != null) {
+            unproposedCounter.added(request);
+        }
+    }
+
+    /**
+     * Removes all the pending requests of this client. Caller must hold clientLock.
+     */
+    public void clearPendingRequests() {
+        pendingRequests.clear();
+        TOMMessage request;
+        while ((request = unproposedRequests.poll()) != null) {
+            countRemoved(request);
+        }
+    }
+
+    /**
+     * @return the oldest pending request not proposed yet, or null. Caller
+     * must hold clientLock.
+     */
+    TOMMessage peekUnproposed() {
+        TOMMessage request;
+        while ((request = unproposedRequests.peek()) != null && request.alreadyProposed) {
+            countRemoved(unproposedRequests.poll());
+        }
+        return request;
+    }
+
+    /**
+     * Removes the request returned by peekUnproposed. Caller must hold clientLock.
+     */
+    TOMMessage pollUnproposed() {
+        TOMMessage request = unproposedRequests.poll();
+        if (request != null) {
+            countRemoved(request);
+        }
+        return request;
+    }
+
+    private void removeUnproposed(TOMMessage request) {
+        if (unproposedRequests.remove(request)) {
+            countRemoved(request);
+        }
+    }
+
+    private void countRemoved(TOMMessage request) {
+        if (unproposedCounter != null) {
+            unproposedCounter.removed(request);
+        }
+    }
+
     public RequestList getOrderedRequests() {
         return orderedRequests;
     }
@@ -113,11 +190,20 @@ public class ClientData {
         return lastMessageReceivedTime;
     }
 
+    /**
+     * Verifies a signature of this client. Thread safe, does not need clientLock.
+     *
+     * @param message the signed message
+     * @param signature the signature
+     * @return true if the signature is valid
+     */
     public boolean verifySignature(byte[] message, byte[] signature) {
-        if(signatureVerificator != null) {
+        if(publicKey != null && signature != null) {
             try {
+                Signature signatureVerificator = signatureVerificators.get();
+                signatureVerificator.initVerify(publicKey);
                 return TOMUtil.verifySignature(signatureVerificator, message, signature);
-            } catch (SignatureException ex) {
+            } catch (InvalidKeyException | SignatureException | IllegalStateException ex) {
                 logger.error("Failed to verify signature", ex);
             }
         }
@@ -126,6 +212,7 @@ public class ClientData {
 
     public boolean removeOrderedRequest(TOMMessage request) {
         if(pendingRequests.remove(request)) {
+            removeUnproposed(request);
             //anb: new code to deal with client requests that arrive after their execution
             orderedRequests.addLast(request);
             return true;
@@ -136,6 +223,7 @@ public class ClientData {
     public boolean removeRequest(TOMMessage request) {
 	lastMessageDelivered = request.getSequence();
 	boolean result = pendingRequests.remove(request);
+	removeUnproposed(request);
         //anb: new code to deal with client requests that arrive after their execution
         orderedRequests.addLast(request);
 
@@ -143,6 +231,7 @@ public class ClientData {
 		TOMMessage msg = it.next();
 		if(msg.getSequence()<request.getSequence()){
 			it.remove();
+			removeUnproposed(msg);
 		}
 	}
 
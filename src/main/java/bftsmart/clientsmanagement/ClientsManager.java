@@ -15,10 +15,10 @@ limitations under the License.
 */
 package bftsmart.clientsmanagement;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.Map.Entry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
 import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.reconfiguration.ServerViewController;
@@ -29,15 +29,19 @@ import bftsmart.tom.util.TOMUtil;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.Signature;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Enumeration;
-import java.util.List;
-import java.util.Random;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Keeps the state of the clients (pending requests, sessions, replies).
+ *
+ * The client table is a concurrent map and each client has its own lock, so
+ * requests from different clients are accounted in parallel. Clients with
+ * requests not proposed yet are kept in a ready queue, from which batches are
+ * filled in deficit round robin order: each time a client gets its turn it
+ * may add up to a quantum of bytes (maxBatchSizeInBytes / maxbatchsize) more
+ * than it used in its previous turns. Filling a batch only visits the clients
+ * that have something to propose.
  *
  * @author alysson
  */
@@ -47,17 +51,25 @@ public class ClientsManager {
 
     private ServerViewController controller;
     private RequestsTimer timer;
-    private HashMap<Integer, ClientData> clientsData = new HashMap<Integer, ClientData>();
+    private ConcurrentHashMap<Integer, ClientData> clientsData = new ConcurrentHashMap<Integer, ClientData>();
     private RequestVerifier verifier;
     
     //Used when the intention is to perform benchmarking with signature verification, but
     //without having to make the clients create one first. Useful to optimize resources
     private byte[] benchMsg = null;
     private byte[] benchSig = null;
-    private HashMap<String,Signature> benchEngines = new HashMap<>();
+    private ConcurrentHashMap<String,Signature> benchEngines = new ConcurrentHashMap<>();
     
     private ReentrantLock clientsLock = new ReentrantLock();
 
+    // clients with requests not proposed yet, in the order they will be served
+    private final ArrayDeque<ClientData> readyClients = new ArrayDeque<>();
+    private final ReentrantLock readyLock = new ReentrantLock();
+    // only one batch is filled at a time, it also guards the deficits of the clients
+    private final ReentrantLock batchLock = new ReentrantLock();
+    private final long quantum;
+    private final UnproposedCounter unproposedCounter = new UnproposedCounter();
+
     public ClientsManager(ServerViewController controller, RequestsTimer timer, RequestVerifier verifier) {
         this.controller = controller;
         this.timer = timer;
@@ -67,187 +79,187 @@ public class ClientsManager {
             benchMsg = new byte []{3,5,6,7,4,3,5,6,4,7,4,1,7,7,5,4,3,1,4,85,7,5,7,3};
             benchSig = TOMUtil.signMessage(controller.getStaticConf().getPrivateKey(), benchMsg);            
         }
+
+        this.quantum = Math.max(1, controller.getStaticConf().getMaxBatchSizeInBytes()
+                / Math.max(1, controller.getStaticConf().getMaxBatchSize()));
     }
 
     /**
-     * We are assuming that no more than one thread will access
-     * the same clientData during creation.
-     *
+     * Returns the data of a client, creating it the first time the client is
+     * seen.
      *
      * @param clientId
      * @return the ClientData stored on the manager
      */
     public ClientData getClientData(int clientId) {
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/
         ClientData clientData = clientsData.get(clientId);
+        if (clientData != null) {
+            return clientData;
+        }
 
-        if (clientData == null) {
-            logger.debug("Creating new client data, client id=" + clientId);
+        return clientsData.computeIfAbsent(clientId, id -> {
+            logger.debug("Creating new client data, client id=" + id);
 
             //******* EDUARDO BEGIN **************//
-            clientData = new ClientData(clientId,
+            return new ClientData(id,
                     (controller.getStaticConf().getUseSignatures() == 1)
-                    ? controller.getStaticConf().getPublicKey(clientId)
-                    : null);
+                    ? controller.getStaticConf().getPublicKey(id)
+                    : null, unproposedCounter);
             //******* EDUARDO END **************//
-            clientsData.put(clientId, clientData);
-        }
-
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-
-        return clientData;
+        });
     }
 
     /**
-     * Get pending requests in a fair way (one request from each client
-     * queue until the max number of requests is obtained).
+     * Get pending requests in a fair way (deficit round robin over the clients
+     * that have requests not proposed yet, until the max number of requests
+     * or bytes is reached).
      *
      * @return the set of all pending requests of this system
      */
     public RequestList getPendingRequests() {
         RequestList allReq = new RequestList();
         long allReqSizeInBytes = 0;
-        boolean allReqSizeInBytesExceeded = false;
-        
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/
-        
-        List<Entry<Integer, ClientData>> clientsEntryList = new ArrayList<>(clientsData.entrySet().size());
-        clientsEntryList.addAll(clientsData.entrySet());
-        
-        if (controller.getStaticConf().getFairBatch()) // ensure fairness
-            Collections.shuffle(clientsEntryList);
-
-        logger.debug("Number of active clients: {}", clientsEntryList.size());
-        
-        for (int i = 0; true; i++) {
-                        
-            Iterator<Entry<Integer, ClientData>> it = clientsEntryList.iterator();
-            int noMoreMessages = 0;
-            
-            logger.debug("Fetching requests with internal index {}", i);
-            
-            while (it.hasNext()
-                    && allReq.size() < controller.getStaticConf().getMaxBatchSize()
-                    && noMoreMessages < clientsEntryList.size()) {
+        int maxBatchSize = controller.getStaticConf().getMaxBatchSize();
+        long maxBatchSizeInBytes = controller.getStaticConf().getMaxBatchSizeInBytes();
 
-                ClientData clientData = it.next().getValue();
-                RequestList clientPendingRequests = clientData.getPendingRequests();
+        batchLock.lock();
 
-                clientData.clientLock.lock();
+        int idleTurns = 0; // turns in a row in which no request was taken
+        while (allReq.size() < maxBatchSize) {
+            readyLock.lock();
+            int readyCount = readyClients.size();
+            ClientData clientData = readyClients.poll();
+            readyLock.unlock();
 
-                logger.debug("Number of pending requests for client {}: {}.", clientData.getClientId(), clientPendingRequests.size());
+            if (clientData == null) {
+                break;
+            }
+            if (idleTurns >= readyCount) {
+                // no client had enough deficit in a whole round, skip the rounds in which nothing would be taken
+                skipIdleRounds(clientData);
+                idleTurns = 0;
+            }
 
-                /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
-                TOMMessage request = (clientPendingRequests.size() > i) ? clientPendingRequests.get(i) : null;
+            boolean batchFull = false;
+            boolean taken = false;
 
-                /******* END CLIENTDATA CRITICAL SECTION ******/
-                clientData.clientLock.unlock();
+            clientData.clientLock.lock();
+            /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+            clientData.deficit += quantum;
+
+            TOMMessage request;
+            while ((request = clientData.peekUnproposed()) != null && allReq.size() < maxBatchSize) {
+                int size = request.serializedMessage.length;
+                if (size > clientData.deficit) {
+                    break;
+                }
+                //a request larger than a whole batch (forwarded or proposed by another leader) goes
+                //alone in a batch, otherwise it would end every batch before anything is taken
+                if (allReqSizeInBytes + size > maxBatchSizeInBytes && !allReq.isEmpty()) {
+                    batchFull = true;
+                    break;
+                }
 
-                if (request != null) {
-                    if(!request.alreadyProposed) {
-                        if(allReqSizeInBytes + request.serializedMessage.length <= controller.getStaticConf().getMaxBatchSizeInBytes()) {
+                logger.debug("Selected request with sequence number {} from client {}", request.getSequence(), request.getSender());
 
-                            logger.debug("Selected request with sequence number {} from client {}", request.getSequence(), request.getSender());
+                clientData.pollUnproposed();
+                clientData.deficit -= size;
+                request.alreadyProposed = true;
+                allReq.addLast(request);
+                allReqSizeInBytes += size;
+                taken = true;
+            }
 
-                            //this client have pending message
-                            request.alreadyProposed = true;
-                            allReq.addLast(request);
-                            allReqSizeInBytes += request.serializedMessage.length;
-                        } else {
-                            allReqSizeInBytesExceeded = true;
-                        }
-                    }
-                } else {
-                    //this client don't have more pending requests
-                    noMoreMessages++;
-                }
+            readyLock.lock();
+            if (request == null) {
+                // nothing left to propose, the client leaves the ready queue (and loses its deficit)
+                clientData.ready = false;
+                clientData.deficit = 0;
+            } else if (batchFull || allReq.size() >= maxBatchSize) {
+                readyClients.addFirst(clientData); // continues its turn in the next batch
+            } else {
+                readyClients.addLast(clientData);
             }
-            
-            if(allReq.size() == controller.getStaticConf().getMaxBatchSize() ||
-                    noMoreMessages == clientsEntryList.size() ||
-                    allReqSizeInBytesExceeded) {
-                
+            readyLock.unlock();
+
+            /******* END CLIENTDATA CRITICAL SECTION ******/
+            clientData.clientLock.unlock();
+
+            if (batchFull) {
                 break;
             }
+            idleTurns = taken ? 0 : idleTurns + 1;
         }
-        
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
+
+        batchLock.unlock();
+
+        logger.debug("Selected {} requests ({} bytes) for the next batch", allReq.size(), allReqSizeInBytes);
         return allReq;
     }
 
     /**
-     * We've implemented some protection for individual client
-     * data, but the clients table can change during the operation.
+     * Gives every ready client the quanta it would accumulate in the rounds
+     * before some client has enough deficit for its oldest request, as in
+     * those rounds no request would be taken. Caller must hold batchLock.
      *
-     * @return true if there are some pending requests and false otherwise
+     * @param next the client whose turn is next, already removed from the queue
      */
-    public boolean havePendingRequests() {
-        boolean havePending = false;
-
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/        
-        
-        Iterator<Entry<Integer, ClientData>> it = clientsData.entrySet().iterator();
-
-        while (it.hasNext() && !havePending) {
-            ClientData clientData = it.next().getValue();
-            
+    private void skipIdleRounds(ClientData next) {
+        readyLock.lock();
+        List<ClientData> clients = new ArrayList<>(readyClients.size() + 1);
+        clients.addAll(readyClients);
+        readyLock.unlock();
+        clients.add(next);
+
+        long rounds = Long.MAX_VALUE;
+        for (ClientData clientData : clients) {
             clientData.clientLock.lock();
-            RequestList reqs = clientData.getPendingRequests();
-            if (!reqs.isEmpty()) {
-                for(TOMMessage msg:reqs) {
-                    if(!msg.alreadyProposed) {
-                        havePending = true;
-                        break;
-                    }
-                }
+            TOMMessage request = clientData.peekUnproposed();
+            if (request != null) {
+                long missing = request.serializedMessage.length - clientData.deficit;
+                rounds = Math.min(rounds, Math.max(0, (missing + quantum - 1) / quantum - 1));
             }
             clientData.clientLock.unlock();
         }
 
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-        return havePending;
+        if (rounds == Long.MAX_VALUE || rounds == 0) {
+            return;
+        }
+        for (ClientData clientData : clients) {
+            clientData.deficit += rounds * quantum;
+        }
+    }
+
+    /**
+     * Puts a client in the ready queue, if it is not there yet. Caller must
+     * hold clientData.clientLock.
+     */
+    private void markReady(ClientData clientData) {
+        readyLock.lock();
+        if (!clientData.ready) {
+            clientData.ready = true;
+            readyClients.addLast(clientData);
+        }
+        readyLock.unlock();
+    }
+
+    /**
+     * Lock free, based on the counters of unproposed requests.
+     *
+     * @return true if there are some pending requests not proposed yet and false otherwise
+     */
+    public boolean havePendingRequests() {
+        return unproposedCounter.getRequests() > 0;
     }
     
     /**
-     * Retrieves the number of pending requests and their sizes
-     * and checks if there are enough to fill the next batch completely.
+     * Checks if there are enough pending requests not proposed yet to fill
+     * the next batch completely. Lock free, like havePendingRequests.
      * @return true if there are enough requests and false otherwise
      */
     public boolean isNextBatchReady() {
-        int count = 0;
-        long size = 0;
-
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/        
-        
-        Iterator<Entry<Integer, ClientData>> it = clientsData.entrySet().iterator();
-
-        while (it.hasNext()) {
-            ClientData clientData = it.next().getValue();
-            
-            clientData.clientLock.lock();
-            RequestList reqs = clientData.getPendingRequests();
-            if (!reqs.isEmpty()) {
-                for(TOMMessage msg:reqs) {
-                    if(!msg.alreadyProposed) {
-                        count++;
-                        size += msg.serializedMessage.length;
-                    }
-                }
-            }
-            clientData.clientLock.unlock();
-        }
-
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-        return count >= controller.getStaticConf().getMaxBatchSize()
-                || size >= controller.getStaticConf().getMaxBatchSizeInBytes();
+        return unproposedCounter.getRequests() >= controller.getStaticConf().getMaxBatchSize()
+                || unproposedCounter.getBytes() >= controller.getStaticConf().getMaxBatchSizeInBytes();
     }
 
     /**
@@ -279,6 +291,30 @@ public class ClientsManager {
         return pendingMessage;
     }
 
+    /**
+     * Get a pending request of a client by its sequence number.
+     *
+     * @param clientId the client identifier
+     * @param sequence the sequence number of the request
+     * @return the pending request, or null (also if the client is unknown,
+     * whose data is not created here)
+     */
+    public TOMMessage getPending(int clientId, int sequence) {
+        ClientData clientData = clientsData.get(clientId);
+        if (clientData == null) {
+            return null;
+        }
+
+        clientData.clientLock.lock();
+        /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+        TOMMessage pendingMessage = clientData.getPendingRequests().getBySequence(sequence);
+
+        /******* END CLIENTDATA CRITICAL SECTION ******/
+        clientData.clientLock.unlock();
+
+        return pendingMessage;
+    }
+
     public boolean requestReceived(TOMMessage request, boolean fromClient) {
         return requestReceived(request, fromClient, null);
     }
@@ -311,6 +347,22 @@ public class ClientsManager {
             return false;
         }
 
+        //a request that does not fit in a batch could only be proposed alone, in an oversized batch
+        if (fromClient && request.serializedMessage != null
+                && request.serializedMessage.length > controller.getStaticConf().getMaxBatchSizeInBytes()) {
+            logger.warn("Request from client " + clientId + " is larger than a batch (" + request.serializedMessage.length + " bytes), rejecting it");
+            return false;
+        }
+
+        //verify the signature before taking the lock of the client, so that the requests of a
+        //client are verified in parallel by the threads that receive them. Requests that seem
+        //to be known already are not verified here, and only will be if it turns out they are not
+        Boolean signatureValid = null;
+        if (clientData.getSession() != request.getSession()
+                || clientData.getLastMessageReceived() < request.getSequence()) {
+            signatureValid = verifySignature(clientData, request, fromClient);
+        }
+
         clientData.clientLock.lock();
         
         //Is this a leader replay attack?
@@ -365,26 +417,8 @@ public class ClientsManager {
             //and not an erroneous requests sent by a Byzantine leader.
             boolean isValid = (!controller.getStaticConf().isBFT() || verifier.isValidRequest(request));
 
-            Signature engine = benchEngines.get(Thread.currentThread().getName());
-            
-            if (engine == null) {
-                
-                try {
-                    engine = TOMUtil.getSigEngine();
-                    engine.initVerify(controller.getStaticConf().getPublicKey());
-                    
-                    benchEngines.put(Thread.currentThread().getName(), engine);
-                } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
-                    logger.error("Signature error.",ex);
-                    engine = null;
-                }
-            }
-            
-            //it is a valid new message and I have to verify it's signature
-            if (isValid &&
-                    ((engine != null && benchMsg != null && benchSig != null && TOMUtil.verifySigForBenchmark(engine, benchMsg, benchSig)) 
-                            || (((!request.signed) || clientData.verifySignature(request.serializedMessage, request.serializedMessageSignature)) // message is either not signed or if it is signed the signature is valid
-                                    && (controller.getStaticConf().getUseSignatures() != 1 || request.signed || !fromClient)))) { // additionally, unsigned messages from the client are not allowed when useSignatures == 1. Forwarded and proposed requests do not have 'signed' set to true.
+            //it is a valid new message and I have to verify it's signature (if that was not done above)
+            if (isValid && (signatureValid != null ? signatureValid : verifySignature(clientData, request, fromClient))) {
 
                 logger.debug("Message from client {} is valid", clientData.getClientId());
 
@@ -392,7 +426,8 @@ public class ClientsManager {
                 //insert it in the pending requests of this client
 
                 request.recvFromClient = fromClient;
-                clientData.getPendingRequests().add(request); 
+                clientData.addPendingRequest(request);
+                markReady(clientData);
                 clientData.setLastMessageReceived(request.getSequence());
                 clientData.setLastMessageReceivedTime(request.receptionTime);
 
@@ -445,6 +480,33 @@ public class ClientsManager {
         return accounted;
     }
 
+    /**
+     * Verifies the signature of a request, if it must have one. Does not need
+     * clientData.clientLock.
+     *
+     * @return true if the signature is valid or not required
+     */
+    private boolean verifySignature(ClientData clientData, TOMMessage request, boolean fromClient) {
+        Signature engine = benchEngines.get(Thread.currentThread().getName());
+
+        if (engine == null) {
+
+            try {
+                engine = TOMUtil.getSigEngine();
+                engine.initVerify(controller.getStaticConf().getPublicKey());
+
+                benchEngines.put(Thread.currentThread().getName(), engine);
+            } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+                logger.error("Signature error.",ex);
+                engine = null;
+            }
+        }
+
+        return (engine != null && benchMsg != null && benchSig != null && TOMUtil.verifySigForBenchmark(engine, benchMsg, benchSig))
+                || (((!request.signed) || clientData.verifySignature(request.serializedMessage, request.serializedMessageSignature)) // message is either not signed or if it is signed the signature is valid
+                        && (controller.getStaticConf().getUseSignatures() != 1 || request.signed || !fromClient)); // additionally, unsigned messages from the client are not allowed when useSignatures == 1. Forwarded and proposed requests do not have 'signed' set to true.
+    }
+
     /**
      * Caller must call lock() and unlock() on clientData.clientLock
      * @param clientData the clientData associated with the client
@@ -457,7 +519,7 @@ public class ClientsManager {
                 timer.unwatch(m);
 	        }
 	    }
-        clientData.getPendingRequests().clear();
+        clientData.clearPendingRequests();
 	}
 
     /**
@@ -466,13 +528,11 @@ public class ClientsManager {
      * @param requests the array of requests to account as ordered
      */
     public void requestsOrdered(TOMMessage[] requests) {
-        clientsLock.lock();
         logger.debug("Updating client manager");
         for (TOMMessage request : requests) {
             requestOrdered(request);
         }
         logger.debug("Finished updating client manager");
-        clientsLock.unlock();
     }
 
     /**
@@ -512,7 +572,13 @@ public class ClientsManager {
     
     public void clear() {
         clientsLock.lock();
+        batchLock.lock();
         clientsData.clear();
+        readyLock.lock();
+        readyClients.clear();
+        readyLock.unlock();
+        unproposedCounter.reset();
+        batchLock.unlock();
         clientsLock.unlock();
         logger.info("ClientsManager cleared.");
 
@@ -0,0 +1,56 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.clientsmanagement;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bftsmart.tom.core.messages.TOMMessage;
+
+/**
+ * Number and total size of the pending requests, of all clients, that were
+ * not proposed yet. Updated by ClientData every time a request enters or
+ * leaves its queue of unproposed requests, so that the proposer can check
+ * whether there is something to propose without visiting every client.
+ */
+final class UnproposedCounter {
+
+    private final AtomicInteger requests = new AtomicInteger(0);
+    private final AtomicLong bytes = new AtomicLong(0);
+
+    void added(TOMMessage request) {
+        requests.incrementAndGet();
+        bytes.addAndGet(request.serializedMessage.length);
+    }
+
+    void removed(TOMMessage request) {
+        requests.decrementAndGet();
+        bytes.addAndGet(-request.serializedMessage.length);
+    }
+
+    int getRequests() {
+        return requests.get();
+    }
+
+    long getBytes() {
+        return bytes.get();
+    }
+
+    void reset() {
+        requests.set(0);
+        bytes.set(0);
+    }
+}
@@ -0,0 +1,229 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import bftsmart.aware.messages.MonitoringMessage;
+import bftsmart.consensus.messages.ConsensusMessage;
+import bftsmart.reconfiguration.VMMessage;
+import bftsmart.statemanagement.durability.CSTSMMessage;
+import bftsmart.statemanagement.standard.StandardSMMessage;
+import bftsmart.statemanagement.standard.StateChunkMessage;
+import bftsmart.tom.core.messages.ForwardedMessage;
+import bftsmart.tom.leaderchange.LCMessage;
+
+/**
+ * Binary codec for the messages exchanged between replicas. Java serialization
+ * adds class descriptors and block headers to every message, which for the
+ * WRITE and ACCEPT messages are several times larger than the data itself.
+ * Here each message is written as a one byte type tag followed by the fields
+ * written by its writeTo method.
+ *
+ * Only the message types registered below can be encoded, and messages with
+ * an unknown tag are rejected when decoded. Nested objects that are rarely
+ * sent (application states, views, reconfiguration replies) are still written
+ * with Java serialization, inside a length prefixed block.
+ */
+public final class MessageCodec {
+
+    public static final byte CONSENSUS = 1;
+    public static final byte MONITORING = 2;
+    public static final byte LEADER_CHANGE = 3;
+    public static final byte FORWARDED = 4;
+    public static final byte STANDARD_SM = 5;
+    public static final byte CST_SM = 6;
+    public static final byte VIEW_MANAGER = 7;
+    public static final byte STATE_CHUNK = 8;
+
+    private static final Map<Class<?>, Byte> tags = new HashMap<>();
+    private static final List<Supplier<? extends SystemMessage>> factories =
+            new ArrayList<>(Collections.nCopies(Byte.MAX_VALUE + 1, null)); // indexed by tag
+
+    static {
+        register(CONSENSUS, ConsensusMessage.class, ConsensusMessage::new);
+        register(MONITORING, MonitoringMessage.class, MonitoringMessage::new);
+        register(LEADER_CHANGE, LCMessage.class, LCMessage::new);
+        register(FORWARDED, ForwardedMessage.class, ForwardedMessage::new);
+        register(STANDARD_SM, StandardSMMessage.class, StandardSMMessage::new);
+        register(CST_SM, CSTSMMessage.class, CSTSMMessage::new);
+        register(VIEW_MANAGER, VMMessage.class, VMMessage::new);
+        register(STATE_CHUNK, StateChunkMessage.class, StateChunkMessage::new);
+    }
+
+    private MessageCodec() {
+    }
+
+    private static <T extends SystemMessage> void register(byte tag, Class<T> type, Supplier<T> factory) {
+        tags.put(type, tag);
+        factories.set(tag, factory);
+    }
+
+    /**
+     * Writes a message, preceded by its type tag
+     *
+     * @param sm the message
+     * @param out the output to write to
+     * @throws IOException if the type of the message is not registered
+     */
+    public static void encode(SystemMessage sm, DataOutput out) throws IOException {
+        Byte tag = tags.get(sm.getClass());
+        if (tag == null) {
+            throw new IOException("No binary encoding for " + sm.getClass().getName());
+        }
+        out.writeByte(tag);
+        sm.writeTo(out);
+    }
+
+    /**
+     * @param sm the message
+     * @return the message in binary format
+     * @throws IOException if the type of the message is not registered
+     */
+    public static byte[] encode(SystemMessage sm) throws IOException {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bOut);
+        encode(sm, out);
+        out.flush();
+        return bOut.toByteArray();
+    }
+
+    /**
+     * Reads a message written by encode
+     *
+     * @param in the input to read from
+     * @return the message
+     * @throws IOException if the tag is unknown or the message is malformed
+     */
+    public static SystemMessage decode(DataInput in) throws IOException {
+        int tag = in.readByte();
+        Supplier<? extends SystemMessage> factory = tag > 0 ? factories.get(tag) : null;
+        if (factory == null) {
+            throw new IOException("Unknown message type " + tag);
+        }
+        SystemMessage sm = factory.get();
+        sm.readFrom(in);
+        return sm;
+    }
+
+    /**
+     * @param data the message in binary format
+     * @param offset position where the message starts
+     * @param length size of the message
+     * @return the message
+     * @throws IOException if the tag is unknown or the message is malformed
+     */
+    public static SystemMessage decode(byte[] data, int offset, int length) throws IOException {
+        return decode(new DataInputStream(new ByteArrayInputStream(data, offset, length)));
+    }
+
+    /**
+     * Writes a byte array preceded by its length, -1 meaning null
+     */
+    public static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Reads a byte array written by writeBytes. When reading a received
+     * message, the length is checked against the bytes left in it before the
+     * array is allocated.
+     */
+    public static byte[] readBytes(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < -1 || length > remaining(in)) {
+            throw new IOException("Invalid array length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the bytes left in a message being decoded, or Integer.MAX_VALUE
+     * if the input does not tell
+     */
+    private static int remaining(DataInput in) throws IOException {
+        // decode reads from a byte array or a Netty frame, whose available() is exact. It is only
+        // a lower bound for an ObjectInputStream, used when a message is in Java serialization
+        if (in instanceof InputStream && !(in instanceof ObjectInput)) {
+            return ((InputStream) in).available();
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Writes an object using Java serialization, in a length prefixed block
+     */
+    public static void writeObject(DataOutput out, Object obj) throws IOException {
+        if (obj == null) {
+            writeBytes(out, null);
+            return;
+        }
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bOut);
+        oos.writeObject(obj);
+        oos.flush();
+        writeBytes(out, bOut.toByteArray());
+    }
+
+    /**
+     * Reads an object written by writeObject
+     *
+     * @param type the expected type of the object
+     * @throws IOException if the object is not of the expected type
+     */
+    public static <T> T readObject(DataInput in, Class<T> type) throws IOException {
+        byte[] bytes = readBytes(in);
+        if (bytes == null) {
+            return null;
+        }
+        Object obj;
+        try {
+            obj = new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+        } catch (ClassNotFoundException ex) {
+            throw new IOException("Invalid object in message", ex);
+        }
+        if (!type.isInstance(obj)) {
+            throw new IOException("Expected " + type.getName() + " but got " + obj.getClass().getName());
+        }
+        return type.cast(obj);
+    }
+}
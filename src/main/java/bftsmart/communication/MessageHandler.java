@@ -151,6 +151,12 @@ public class MessageHandler {
                         case TOMUtil.SM_REPLY_INITIAL:
                             tomLayer.getStateManager().currentConsensusIdReceived(smsg);
                             break;
+                        case TOMUtil.SM_CHUNK_REQUEST:
+                            tomLayer.getStateManager().SMChunkRequestDeliver(smsg);
+                            break;
+                        case TOMUtil.SM_CHUNK_REPLY:
+                            tomLayer.getStateManager().SMChunkReplyDeliver(smsg, tomLayer.controller.getStaticConf().isBFT());
+                            break;
                         default:
                             tomLayer.getStateManager().stateTimeout();
                             break;
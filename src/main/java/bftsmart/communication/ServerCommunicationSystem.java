@@ -23,7 +23,9 @@ import javax.crypto.SecretKey;
 import bftsmart.communication.client.CommunicationSystemServerSide;
 import bftsmart.communication.client.CommunicationSystemServerSideFactory;
 import bftsmart.communication.client.RequestReceiver;
+import bftsmart.communication.server.ServersCommunication;
 import bftsmart.communication.server.ServersCommunicationLayer;
+import bftsmart.communication.server.netty.NettyServersCommunicationLayer;
 import bftsmart.consensus.roles.Acceptor;
 import bftsmart.aware.monitoring.MessageLatencyMonitor;
 import bftsmart.aware.monitoring.Monitor;
@@ -48,7 +50,7 @@ public class ServerCommunicationSystem extends Thread {
     private LinkedBlockingQueue<SystemMessage> inQueue = null;//new LinkedBlockingQueue<SystemMessage>(IN_QUEUE_SIZE);
     protected MessageHandler messageHandler;
 
-    private ServersCommunicationLayer serversConn;
+    private ServersCommunication serversConn;
     private CommunicationSystemServerSide clientsConn;
     private ServerViewController controller;
 
@@ -68,7 +70,11 @@ public class ServerCommunicationSystem extends Thread {
 
         inQueue = new LinkedBlockingQueue<SystemMessage>(controller.getStaticConf().getInQueueSize());
 
-        serversConn = new ServersCommunicationLayer(controller, inQueue, replica);
+        if (controller.getStaticConf().isUseNettyServersTransport()) {
+            serversConn = new NettyServersCommunicationLayer(controller, inQueue, replica);
+        } else {
+            serversConn = new ServersCommunicationLayer(controller, inQueue, replica);
+        }
 
         /** AWARE **/
         if (controller.getStaticConf().isUseDynamicWeights())
@@ -112,6 +118,7 @@ public class ServerCommunicationSystem extends Thread {
             clientsConn = CommunicationSystemServerSideFactory.getCommunicationSystemServerSide(controller);
         }
         clientsConn.setRequestReceiver(requestReceiver);
+        clientsConn.setCongestionCheck(serversConn::isCongested);
     }
 
     /**
@@ -132,6 +139,7 @@ public class ServerCommunicationSystem extends Thread {
                 if (sm != null) {
                     logger.debug("<-- receiving, msg:" + sm);
                     messageHandler.processData(sm);
+                    serversConn.messageProcessed(sm.getSender());
                     count++;
                 } else {                
                     messageHandler.verifyPending();               
@@ -162,7 +170,7 @@ public class ServerCommunicationSystem extends Thread {
         }
     }
 
-    public ServersCommunicationLayer getServersConn() {
+    public ServersCommunication getServersConn() {
         return serversConn;
     }
     
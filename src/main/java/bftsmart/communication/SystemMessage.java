@@ -66,6 +66,29 @@ public abstract class SystemMessage implements Externalizable {
     }
 
 
+    /**
+     * Writes this message in the binary format used between replicas (see
+     * MessageCodec). Subclasses that are registered in the codec extend this
+     * method with their own fields.
+     *
+     * @param out the output to write to
+     * @throws IOException if the message cannot be written
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(sender);
+    }
+
+    /**
+     * Reads this message from the binary format used between replicas (see
+     * MessageCodec).
+     *
+     * @param in the input to read from
+     * @throws IOException if the input is truncated or malformed
+     */
+    public void readFrom(DataInput in) throws IOException {
+        sender = in.readInt();
+    }
+
     private void readObject(ObjectInputStream inStream) throws ClassNotFoundException, IOException
     {
         sender = inStream.readInt();
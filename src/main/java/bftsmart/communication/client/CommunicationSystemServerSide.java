@@ -15,6 +15,9 @@ limitations under the License.
 */
 package bftsmart.communication.client;
 
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
 import bftsmart.tom.core.messages.TOMMessage;
 
 /**
@@ -27,4 +30,27 @@ public interface CommunicationSystemServerSide {
    public int[] getClients();
    public void setRequestReceiver(RequestReceiver requestReceiver);
    public void shutdown();
+
+   /**
+    * Sets the check of the links to the other replicas. While it returns
+    * true, implementations may stop reading requests from the clients, so
+    * that new requests are admitted at the pace they are ordered.
+    *
+    * @param congested true if the replicas are congested
+    */
+   public default void setCongestionCheck(BooleanSupplier congested) {
+   }
+
+   /**
+    * Sends the replies to a set of requests, each one to the client that
+    * issued the request. The replies to the same client are sent in order;
+    * implementations may write all the replies to a connection at once.
+    *
+    * @param requests the requests, with their replies in TOMMessage.reply
+    */
+   public default void sendReplies(List<TOMMessage> requests) {
+       for (TOMMessage request : requests) {
+           send(new int[] { request.getSender() }, request.reply, false);
+       }
+   }
 }
@@ -16,6 +16,8 @@ limitations under the License.
 package bftsmart.communication.client.netty;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandler.Sharable;
@@ -37,13 +39,15 @@ import java.net.UnknownHostException;
 import java.nio.channels.ClosedChannelException;
 import java.security.PrivateKey;
 
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Set;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.slf4j.LoggerFactory;
@@ -72,6 +76,9 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 	private ServerViewController controller;
 	private boolean closed = false;
 	private Channel mainChannel;
+	private volatile BooleanSupplier congested = () -> false; // links to the other replicas
+
+	private static final long CONGESTION_CHECK_MSEC = 5; // interval to check if a paused client can be read again
 
 	// This locked seems to introduce a bottleneck and seems useless, but I cannot
 	// recall why I added it
@@ -265,6 +272,41 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 			logger.warn("Request receiver is still null!");
 		else
 			requestReceiver.requestReceived(sm, true);
+
+		if (congested.getAsBoolean()) {
+			pauseWhileCongested(ctx.channel());
+		}
+	}
+
+	@Override
+	public void setCongestionCheck(BooleanSupplier congested) {
+		this.congested = congested;
+	}
+
+	/**
+	 * Stops reading from a client until the links to the other replicas are
+	 * not congested anymore. The requests wait in the socket buffers, and
+	 * then in the client, instead of being discarded. Runs in the event loop
+	 * of the channel.
+	 */
+	private void pauseWhileCongested(Channel channel) {
+		if (!channel.config().isAutoRead()) {
+			return; // already paused
+		}
+		logger.debug("Replicas are congested, pausing reads from a client");
+		channel.config().setAutoRead(false);
+		channel.eventLoop().schedule(() -> resumeWhenUncongested(channel), CONGESTION_CHECK_MSEC, TimeUnit.MILLISECONDS);
+	}
+
+	private void resumeWhenUncongested(Channel channel) {
+		if (closed || !channel.isActive()) {
+			return;
+		}
+		if (congested.getAsBoolean()) {
+			channel.eventLoop().schedule(() -> resumeWhenUncongested(channel), CONGESTION_CHECK_MSEC, TimeUnit.MILLISECONDS);
+		} else {
+			channel.config().setAutoRead(true);
+		}
 	}
 
 	@Override
@@ -383,19 +425,85 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 							((double) controller.getStaticConf().getClientInvokeOrderedTimeout() * Math.pow(2, -1 * sm.retry)));
 					sm.retry = sm.retry - 1;
 					TOMMessage finalSm = sm;
-					TimerTask timertask = new TimerTask() {
-						@Override
-						public void run() {
-							retrySend(targets, (TOMMessage) finalSm, serializeClassHeaders, finalSm.retry);
-						}
-					};
-					Timer timer = new Timer("retry");
-					timer.schedule(timertask, retryAfterMillis);
+					controller.getTimerScheduler().schedule("reply retry", () -> {
+						retrySend(targets, finalSm, serializeClassHeaders, finalSm.retry);
+					}, retryAfterMillis);
+				}
+
+			}
+			rl.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes the replies to each client into a single pooled buffer, in the
+	 * format of NettyTOMMessageEncoder, and flushes it once. The replies are
+	 * not copied nor cloned, as each one has a single target. Replies to
+	 * clients that are not connected yet go through send(), which retries.
+	 */
+	@Override
+	public void sendReplies(List<TOMMessage> requests) {
+
+		LinkedHashMap<Channel, ByteBuf> buffers = new LinkedHashMap<>();
+		ArrayList<TOMMessage> notConnected = null;
+
+		rl.readLock().lock();
+		try {
+			for (TOMMessage request : requests) {
+				NettyClientServerSession session = sessionReplicaToClient.get(request.getSender());
+				if (session == null) {
+					if (notConnected == null) {
+						notConnected = new ArrayList<>();
+					}
+					notConnected.add(request);
+					continue;
 				}
 
+				Channel channel = session.getChannel();
+				ByteBuf buffer = buffers.get(channel);
+				if (buffer == null) {
+					buffer = channel.alloc().ioBuffer();
+					buffers.put(channel, buffer);
+				}
+				writeReply(buffer, request.reply);
 			}
+		} finally {
 			rl.readLock().unlock();
 		}
+
+		for (Entry<Channel, ByteBuf> entry : buffers.entrySet()) {
+			entry.getKey().writeAndFlush(entry.getValue(), entry.getKey().voidPromise());
+		}
+
+		if (notConnected != null) {
+			for (TOMMessage request : notConnected) {
+				send(new int[] { request.getSender() }, request.reply, false);
+			}
+		}
+	}
+
+	/**
+	 * Appends a reply to the buffer, framed as by NettyTOMMessageEncoder:
+	 * [int frame length][int data length][data][int 0 (no signature)]
+	 */
+	private void writeReply(ByteBuf buffer, TOMMessage sm) {
+		// replies are not signed in the current JBP version
+		sm.signed = false;
+
+		int start = buffer.writerIndex();
+		try {
+			buffer.writeInt(0);
+			buffer.writeInt(0);
+			sm.wExternal(new ByteBufOutputStream(buffer));
+			int length = buffer.writerIndex() - start - 2 * Integer.BYTES;
+			buffer.writeInt(0);
+
+			buffer.setInt(start, Integer.BYTES + length + Integer.BYTES);
+			buffer.setInt(start + Integer.BYTES, length);
+		} catch (IOException ex) {
+			logger.error("Failed to serialize message.", ex);
+			buffer.writerIndex(start);
+		}
 	}
 
 	@Override
@@ -0,0 +1,276 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.communication.SystemMessage;
+import bftsmart.consensus.messages.ConsensusMessage;
+import bftsmart.consensus.messages.MessageFactory;
+import bftsmart.statemanagement.SMMessage;
+import bftsmart.statemanagement.standard.StateChunkMessage;
+import bftsmart.tom.leaderchange.LCMessage;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Low priority lane for the large messages exchanged with another replica:
+ * application states, AWARE storages (STORAGE) and leader change logs (SYNC).
+ *
+ * Written as a single frame, such a message holds the connection for as long
+ * as it takes to transmit it, and every consensus message sent after it waits.
+ * Instead, it is split in chunks of 'system.communication.bulkChunkSize' bytes,
+ * sent in BULK_FRAMEs one at a time, after the other messages waiting to be
+ * sent. A chunk is [int total length][int offset][bytes]; the receiver puts
+ * the message together and handles it as if it had arrived in one frame.
+ *
+ * At most 'system.communication.bulkRate' bytes of chunks are sent per second.
+ * A message takes one credit from FlowControl when its first chunk is sent,
+ * like any other message. Large messages are sent one at a time, in order.
+ */
+public class BulkLane {
+
+    /** Last byte of a frame carrying a chunk of a large message */
+    public static final byte BULK_FRAME = 2;
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final FlowControl flowControl;
+    private final int chunkSize;
+    private final long rate; // bytes per second, 0 if unlimited
+    private final int maxMessageSize; // largest message accepted from the other replica
+
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>(); // messages not started yet
+    private byte[] current; // message being sent
+    private int offset; // bytes of the current message already sent
+    private long tokens; // bytes that can be sent now, negative if above the rate
+    private long lastRefill = System.nanoTime();
+
+    private byte[] incoming; // message being received
+    private int received; // bytes of the incoming message received so far
+
+    private volatile long messagesSent = 0;
+    private volatile long bytesSent = 0;
+    private volatile long messagesReceived = 0;
+
+    /**
+     * @param flowControl Flow control of the connection
+     * @param chunkSize Maximum size of each chunk
+     * @param rate Maximum number of bytes sent per second, 0 if unlimited
+     * @param maxMessageSize Maximum size of a message received in chunks
+     */
+    public BulkLane(FlowControl flowControl, int chunkSize, long rate, int maxMessageSize) {
+        this.flowControl = flowControl;
+        this.chunkSize = chunkSize;
+        this.rate = rate;
+        this.maxMessageSize = maxMessageSize;
+        this.tokens = chunkSize;
+    }
+
+    /**
+     * Messages that may carry a large payload: state transfer replies, chunks
+     * of a state, STORAGE and SYNC. They only go through this lane if larger
+     * than a chunk.
+     *
+     * @param sm the message
+     * @return true if the message should be sent in chunks when large
+     */
+    public static boolean isBulk(SystemMessage sm) {
+        if (sm instanceof StateChunkMessage) {
+            return ((StateChunkMessage) sm).getChunk() != null;
+        }
+        if (sm instanceof SMMessage) {
+            return ((SMMessage) sm).getState() != null;
+        }
+        if (sm instanceof ConsensusMessage) {
+            return ((ConsensusMessage) sm).getType() == MessageFactory.STORAGE;
+        }
+        if (sm instanceof LCMessage) {
+            return ((LCMessage) sm).getType() == TOMUtil.SYNC;
+        }
+        return false;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Queues a serialized message to be sent in chunks
+     */
+    public synchronized void add(byte[] data) {
+        queue.add(data);
+    }
+
+    /**
+     * @return true if there are messages (or parts of one) waiting to be sent
+     */
+    public synchronized boolean hasData() {
+        return current != null || !queue.isEmpty();
+    }
+
+    /**
+     * @return Number of large messages waiting to be sent, including the one being sent
+     */
+    public synchronized int getQueued() {
+        return queue.size() + (current != null ? 1 : 0);
+    }
+
+    /**
+     * @return true if nextChunk would return a chunk now
+     */
+    public synchronized boolean isReady() {
+        refill();
+        return (current != null || (!queue.isEmpty() && !flowControl.isExhausted()))
+                && (rate == 0 || tokens > 0);
+    }
+
+    /**
+     * @return Milliseconds until the rate allows another chunk to be sent, 0 if
+     * it is not what holds the next chunk back
+     */
+    public synchronized long getDelay() {
+        refill();
+        if (rate == 0 || tokens > 0 || !hasData()) {
+            return 0;
+        }
+        return Math.max(1, (-tokens * 1000) / rate + 1);
+    }
+
+    /**
+     * Takes the next chunk to be sent
+     *
+     * @return the chunk, or null if there is none, or no credits to start a
+     * new message, or the rate does not allow it yet
+     */
+    public synchronized byte[] nextChunk() {
+        refill();
+        if (rate > 0 && tokens <= 0) {
+            return null;
+        }
+        if (current == null) {
+            if (queue.isEmpty() || !flowControl.tryAcquire()) {
+                return null;
+            }
+            current = queue.poll();
+            offset = 0;
+        }
+
+        int length = Math.min(chunkSize, current.length - offset);
+        byte[] chunk = ByteBuffer.allocate(8 + length).putInt(current.length).putInt(offset)
+                .put(current, offset, length).array();
+        offset += length;
+        tokens -= length;
+        bytesSent += length;
+
+        if (offset == current.length) {
+            current = null;
+            messagesSent++;
+        }
+        return chunk;
+    }
+
+    private void refill() {
+        if (rate == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long elapsed = now - lastRefill;
+        long added = elapsed * rate / 1000000000L;
+        if (added > 0) {
+            tokens = Math.min(chunkSize, tokens + added);
+            lastRefill = now;
+        }
+    }
+
+    /**
+     * Adds a chunk received from the other replica to the message being put
+     * together. Chunks out of sequence, or of a message larger than the
+     * maximum size, are discarded, together with the message they belong to.
+     *
+     * @param chunk the chunk, as created by nextChunk
+     * @return the whole message, if this was its last chunk, otherwise null
+     */
+    public synchronized byte[] received(byte[] chunk) {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        int total = buffer.getInt();
+        int position = buffer.getInt();
+        int length = buffer.remaining();
+
+        if (total > maxMessageSize) {
+            logger.warn("Chunk of a message of " + total + " bytes, larger than the maximum, discarding message");
+            incoming = null;
+            return null;
+        }
+        if (position == 0 && total > 0) {
+            incoming = new byte[total];
+            received = 0;
+        }
+        if (incoming == null || incoming.length != total || position != received || length > total - received) {
+            logger.warn("Unexpected chunk (offset " + position + " of " + total + "), discarding message");
+            incoming = null;
+            return null;
+        }
+
+        buffer.get(incoming, received, length);
+        received += length;
+        if (received < total) {
+            return null;
+        }
+
+        byte[] data = incoming;
+        incoming = null;
+        messagesReceived++;
+        return data;
+    }
+
+    /**
+     * Prepares the lane for a new connection: the message being sent is sent
+     * again from its first chunk, and the one being received is discarded
+     * (the other side will send it again).
+     */
+    public synchronized void restart() {
+        if (current != null) {
+            queue.addFirst(current);
+            current = null;
+        }
+        incoming = null;
+    }
+
+    /**
+     * Discards all the messages waiting to be sent
+     */
+    public synchronized void clear() {
+        queue.clear();
+        current = null;
+        incoming = null;
+    }
+
+    public long getMessagesSent() {
+        return messagesSent;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived;
+    }
+}
@@ -0,0 +1,152 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import bftsmart.aware.messages.MonitoringMessage;
+import bftsmart.communication.SystemMessage;
+import bftsmart.consensus.messages.ConsensusMessage;
+import bftsmart.reconfiguration.VMMessage;
+import bftsmart.statemanagement.SMMessage;
+import bftsmart.tom.leaderchange.LCMessage;
+
+/**
+ * Credit based flow control for the connection with another replica.
+ *
+ * Each side may have at most 'window' frames sent to the other side that
+ * were not yet disposed of there (processed, or discarded). The receiver
+ * returns credits in a CREDIT_FRAME every time a quarter of the window is
+ * disposed of; the sender stops taking messages from its queues while it has
+ * no credits left. Credit frames themselves do not consume credits.
+ *
+ * While a sender is blocked, its queues grow: messages that the protocol
+ * cannot lose (see isCritical) are always queued, the others are discarded
+ * once the out queue is full. On the receiving side, critical messages wait
+ * for space in the in queue, while the others are discarded if it is full.
+ */
+public class FlowControl {
+
+    /** Last byte of a frame carrying a message (formerly the MAC flag) */
+    public static final byte MESSAGE_FRAME = 0;
+    /** Last byte of a frame carrying credits (an int) returned by the receiver */
+    public static final byte CREDIT_FRAME = 1;
+
+    private final int window;
+    private final int grantThreshold;
+    private int available; // frames that can still be sent to the peer
+    private int consumed; // frames from the peer disposed of but not yet returned
+
+    /**
+     * @param window Maximum number of frames in flight, 0 to disable credits
+     */
+    public FlowControl(int window) {
+        this.window = window;
+        this.grantThreshold = Math.max(1, window / 4);
+        this.available = window;
+    }
+
+    /**
+     * Messages needed by the consensus, leader change, state transfer and
+     * reconfiguration protocols. Dropping them turns overload into timeouts,
+     * so they are never discarded because of full queues. Forwarded requests
+     * and AWARE monitoring messages can be lost without harm.
+     *
+     * @param sm the message
+     * @return true if the message must not be discarded
+     */
+    public static boolean isCritical(SystemMessage sm) {
+        if (sm instanceof MonitoringMessage) {
+            return false;
+        }
+        return sm instanceof ConsensusMessage || sm instanceof LCMessage
+                || sm instanceof SMMessage || sm instanceof VMMessage;
+    }
+
+    public boolean isEnabled() {
+        return window > 0;
+    }
+
+    /**
+     * Takes one credit to send a frame
+     *
+     * @return true if the frame can be sent, false if there are no credits left
+     */
+    public synchronized boolean tryAcquire() {
+        if (window <= 0) {
+            return true;
+        }
+        if (available == 0) {
+            return false;
+        }
+        available--;
+        return true;
+    }
+
+    /**
+     * Gives back a credit taken by tryAcquire that was not used
+     */
+    public synchronized void release() {
+        if (window > 0 && available < window) {
+            available++;
+        }
+    }
+
+    /**
+     * Adds the credits returned by the peer
+     *
+     * @param credits Number of frames the peer disposed of
+     */
+    public synchronized void granted(int credits) {
+        if (credits > 0) {
+            available = Math.min(window, available + credits);
+        }
+    }
+
+    /**
+     * Accounts for a frame from the peer that was disposed of
+     *
+     * @return Number of credits to return to the peer now, 0 if none
+     */
+    public synchronized int consumed() {
+        if (window <= 0) {
+            return 0;
+        }
+        if (++consumed < grantThreshold) {
+            return 0;
+        }
+        int credits = consumed;
+        consumed = 0;
+        return credits;
+    }
+
+    /**
+     * Restores the full window, used when the connection is (re)established
+     */
+    public synchronized void reset() {
+        available = window;
+        consumed = 0;
+    }
+
+    /**
+     * @return true if the sender has no credits left
+     */
+    public synchronized boolean isExhausted() {
+        return window > 0 && available == 0;
+    }
+
+    public synchronized int getAvailable() {
+        return window > 0 ? available : -1;
+    }
+}
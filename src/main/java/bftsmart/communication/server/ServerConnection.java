@@ -15,21 +15,21 @@ limitations under the License.
 */
 package bftsmart.communication.server;
 
-import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -44,6 +44,7 @@ import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 
+import bftsmart.communication.MessageCodec;
 import bftsmart.communication.SystemMessage;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.reconfiguration.VMMessage;
@@ -87,6 +88,26 @@ public class ServerConnection {
     
     private SecretKey secretKey = null;
 
+    // messages are written to the socket from this buffer, which is reused by
+    // every write (by the sender thread, or under sendLock if there is none)
+    private byte[] sendBuffer;
+    private final int coalesceMaxBytes;
+    private final int coalesceMaxMessages;
+    private final int maxMessageSize; // largest message accepted from the remote server
+    private volatile long flushes = 0; // number of writes to the socket
+    private volatile long frames = 0; // number of messages sent in those writes
+
+    // flow control, see FlowControl
+    private final FlowControl flowControl;
+    private final LinkedBlockingQueue<byte[]> priorityQueue = new LinkedBlockingQueue<>(); // critical messages
+    private final Object senderLock = new Object(); // the sender thread waits on it for work
+    private final AtomicInteger pendingGrant = new AtomicInteger(0); // credits to return to the peer
+    private volatile long droppedOut = 0; // messages discarded because the out queue was full
+    private volatile long droppedIn = 0; // messages discarded because the in queue was full
+
+    // large messages, sent in chunks between the other messages
+    private final BulkLane bulkLane;
+
     /**
      * Tulio A. Ribeiro
      * TLS vars. 
@@ -114,6 +135,19 @@ public class ServerConnection {
 
         this.outQueue = new LinkedBlockingQueue<byte[]>(this.controller.getStaticConf().getOutQueueSize());
 
+        this.coalesceMaxBytes = this.controller.getStaticConf().getCoalesceMaxBytes();
+        this.coalesceMaxMessages = this.controller.getStaticConf().getCoalesceMaxMessages();
+        this.maxMessageSize = this.controller.getStaticConf().getMaxMessageSize();
+        this.sendBuffer = new byte[this.coalesceMaxBytes];
+
+        // credits are only used between replicas that have sender threads (the TTP has none)
+        boolean useCredits = this.controller.getStaticConf().isUseSenderThread()
+                && !this.controller.getStaticConf().isTheTTP()
+                && this.controller.getStaticConf().getTTPId() != remoteId;
+        this.flowControl = new FlowControl(useCredits ? this.controller.getStaticConf().getCreditWindow() : 0);
+        this.bulkLane = new BulkLane(flowControl, this.controller.getStaticConf().getBulkChunkSize(),
+                this.controller.getStaticConf().getBulkRate(), this.controller.getStaticConf().getMaxMessageSize());
+
         // Connect to the remote process or just wait for the connection?
      		if (isToConnect()) {
      			ssltlsCreateConnection();
@@ -182,11 +216,27 @@ public class ServerConnection {
      * Used to send packets to the remote server.
      */
     public final void send(byte[] data) throws InterruptedException {
+        send(data, true);
+    }
+
+    /**
+     * Used to send packets to the remote server.
+     *
+     * @param data the serialized message
+     * @param critical true if the message must not be discarded when the
+     * out queue is full (see FlowControl.isCritical)
+     */
+    public final void send(byte[] data, boolean critical) throws InterruptedException {
     	if (useSenderThread) {
-			// only enqueue messages if there queue is not full
-			if (!outQueue.offer(data)) {
+			if (critical) {
+				priorityQueue.add(data);
+			} else if (!outQueue.offer(data)) {
+				// only enqueue messages if there queue is not full
+				droppedOut++;
 				logger.debug("Out queue for " + remoteId + " full (message discarded).");
+				return;
 			}
+			wakeSender();
 		} else {
 			sendLock.lock();
 			sendBytes(data);
@@ -194,28 +244,83 @@ public class ServerConnection {
 		}
     }
 
+    /**
+     * Used to send large messages to the remote server, in chunks that are
+     * interleaved with the other messages (see BulkLane).
+     *
+     * @param data the serialized message
+     */
+    public final void sendBulk(byte[] data) throws InterruptedException {
+        if (useSenderThread) {
+            bulkLane.add(data);
+            wakeSender();
+        } else {
+            send(data, true);
+        }
+    }
+
     /**
 	 * try to send a message through the socket if some problem is detected, a
 	 * reconnection is done
 	 */
 	private final void sendBytes(byte[] messageData) {
+		sendFrames(appendFrame(0, messageData), 1);
+	}
+
+	/**
+	 * Copies a message to the send buffer as a frame [length][data][byte 0],
+	 * growing the buffer if needed
+	 *
+	 * @param pos position in the buffer where the frame starts
+	 * @param data the serialized message
+	 * @return position in the buffer where the frame ends
+	 */
+	private int appendFrame(int pos, byte[] data) {
+		return appendFrame(pos, data, FlowControl.MESSAGE_FRAME);
+	}
+
+	/**
+	 * Copies data to the send buffer as a frame [length][data][kind]
+	 */
+	private int appendFrame(int pos, byte[] data, byte kind) {
+		int end = pos + 5 + data.length;
+		if (end > sendBuffer.length) {
+			sendBuffer = Arrays.copyOf(sendBuffer, Math.max(end, 2 * sendBuffer.length));
+		}
+		int value = data.length;
+		sendBuffer[pos] = (byte) (value >>> 24);
+		sendBuffer[pos + 1] = (byte) (value >>> 16);
+		sendBuffer[pos + 2] = (byte) (value >>> 8);
+		sendBuffer[pos + 3] = (byte) value;
+		System.arraycopy(data, 0, sendBuffer, pos + 4, data.length);
+		sendBuffer[end - 1] = kind;
+		return end;
+	}
+
+	/**
+	 * Writes the frames in the send buffer with a single write. If some problem
+	 * is detected, a reconnection is done and the frames are discarded.
+	 *
+	 * @param length number of bytes in the send buffer
+	 * @param count number of frames in the send buffer
+	 */
+	private final void sendFrames(int length, int count) {
 		boolean abort = false;
 		do {
 			if (abort)
 				return; // if there is a need to reconnect, abort this method
 			if (socket != null && socketOutStream != null) {
 				try {
-					// do an extra copy of the data to be sent, but on a single out stream write
-					byte[] data = new byte[5 + messageData.length];// without MAC
-					int value = messageData.length;
-
-					System.arraycopy(new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8),
-							(byte) value }, 0, data, 0, 4);
-					System.arraycopy(messageData, 0, data, 4, messageData.length);
-					System.arraycopy(new byte[] { (byte) 0 }, 0, data, 4 + messageData.length, 1);
+					socketOutStream.write(sendBuffer, 0, length);
+					socketOutStream.flush();
 
-					socketOutStream.write(data);
+					flushes++;
+					frames += count;
 
+					// do not keep a large buffer around after sending a large message
+					if (sendBuffer.length > 4 * coalesceMaxBytes) {
+						sendBuffer = new byte[coalesceMaxBytes];
+					}
 					return;
 				} catch (IOException ex) {
 					closeSocket();
@@ -229,6 +334,110 @@ public class ServerConnection {
 		} while (doWork);
 	}
 
+	/**
+	 * @return Number of writes done to the socket so far
+	 */
+	public long getFlushes() {
+		return flushes;
+	}
+
+	/**
+	 * @return Number of messages sent so far
+	 */
+	public long getFramesSent() {
+		return frames;
+	}
+
+	/**
+	 * @return Average number of messages sent in each write to the socket
+	 */
+	public double getFramesPerFlush() {
+		long f = flushes;
+		return f == 0 ? 0 : (double) frames / f;
+	}
+
+	/**
+	 * @return Number of messages waiting to be sent
+	 */
+	public int getQueuedMessages() {
+		return outQueue.size() + priorityQueue.size() + bulkLane.getQueued();
+	}
+
+	/**
+	 * @return Number of large messages sent in chunks so far
+	 */
+	public long getBulkSent() {
+		return bulkLane.getMessagesSent();
+	}
+
+	/**
+	 * @return Number of bytes of large messages sent so far
+	 */
+	public long getBulkBytesSent() {
+		return bulkLane.getBytesSent();
+	}
+
+	/**
+	 * @return Number of messages to the remote server discarded because the out queue was full
+	 */
+	public long getDroppedOut() {
+		return droppedOut;
+	}
+
+	/**
+	 * @return Number of messages from the remote server discarded because the in queue was full
+	 */
+	public long getDroppedIn() {
+		return droppedIn;
+	}
+
+	/**
+	 * @return Credits left to send to the remote server, -1 if flow control is disabled
+	 */
+	public int getCredits() {
+		return flowControl.getAvailable();
+	}
+
+	/**
+	 * @return true if there are messages waiting for credits from the remote server
+	 */
+	public boolean isCongested() {
+		return flowControl.isExhausted() && getQueuedMessages() > 0;
+	}
+
+	/**
+	 * Accounts for a message from the remote server that was disposed of,
+	 * returning credits to it when enough messages were.
+	 */
+	public void messageProcessed() {
+		int credits = flowControl.consumed();
+		if (credits > 0) {
+			pendingGrant.addAndGet(credits);
+			wakeSender();
+		}
+	}
+
+	private void wakeSender() {
+		synchronized (senderLock) {
+			senderLock.notify();
+		}
+	}
+
+	/**
+	 * Takes the next message to be sent, critical messages first
+	 *
+	 * @param length bytes already in the send buffer
+	 * @return the message, or null if there is none or it does not fit in this flush
+	 */
+	private byte[] pollMessage(int length) {
+		LinkedBlockingQueue<byte[]> queue = priorityQueue.isEmpty() ? outQueue : priorityQueue;
+		byte[] data = queue.peek();
+		if (data == null || (length > 0 && length + 5 + data.length > coalesceMaxBytes)) {
+			return null;
+		}
+		return queue.poll();
+	}
+
     //******* EDUARDO BEGIN **************//
     //return true of a process shall connect to the remote process, false otherwise
     private boolean isToConnect() {
@@ -301,6 +510,9 @@ public class ServerConnection {
 				try {
 					socketOutStream = new DataOutputStream(socket.getOutputStream());
 					socketInStream = new DataInputStream(socket.getInputStream());
+					flowControl.reset();
+					bulkLane.restart();
+					wakeSender();
 
 					// authKey = null;
 					// authenticateAndEstablishAuthKey();
@@ -344,6 +556,9 @@ public class ServerConnection {
             }
 
             outQueue.clear();
+            priorityQueue.clear();
+            bulkLane.clear();
+            pendingGrant.set(0);
             reconnect(null);
         }
     }
@@ -359,19 +574,51 @@ public class ServerConnection {
 
         @Override
         public void run() {
-            byte[] data = null;
 
             while (doWork) {
-                //get a message to be sent
-                try {
-                    data = outQueue.poll(POOL_TIME, TimeUnit.MILLISECONDS);
-                } catch (InterruptedException ex) {
+                int length = 0;
+                int count = 0;
+
+                // credits returned to the peer do not need credits themselves
+                int grant = pendingGrant.getAndSet(0);
+                if (grant > 0) {
+                    length = appendFrame(length, ByteBuffer.allocate(4).putInt(grant).array(),
+                            FlowControl.CREDIT_FRAME);
                 }
 
-                if (data != null) {
-					logger.trace("Sending data to, RemoteId:{}", remoteId);
-					sendBytes(data);
-				}
+                // take everything that is already waiting, up to the configured limits and the credits left
+                while (count < coalesceMaxMessages && flowControl.tryAcquire()) {
+                    byte[] data = pollMessage(length);
+                    if (data == null) {
+                        flowControl.release();
+                        break;
+                    }
+                    length = appendFrame(length, data);
+                    count++;
+                }
+
+                // then at most one chunk of a large message, so that it does not delay the others
+                byte[] chunk = bulkLane.nextChunk();
+                if (chunk != null) {
+                    length = appendFrame(length, chunk, BulkLane.BULK_FRAME);
+                }
+
+                if (length > 0) {
+                    logger.trace("Sending {} messages ({} bytes) to, RemoteId:{}", count, length, remoteId);
+                    sendFrames(length, count);
+                } else {
+                    //wait for a message to be sent, or for credits
+                    synchronized (senderLock) {
+                        if (doWork && pendingGrant.get() == 0 && !bulkLane.isReady()
+                                && ((outQueue.isEmpty() && priorityQueue.isEmpty()) || flowControl.isExhausted())) {
+                            long delay = bulkLane.getDelay(); // only large messages held back by the rate
+                            try {
+                                senderLock.wait(delay > 0 ? delay : POOL_TIME);
+                            } catch (InterruptedException ex) {
+                            }
+                        }
+                    }
+                }
             }
 
             logger.debug("Sender for " + remoteId + " stopped!");
@@ -396,6 +643,9 @@ public class ServerConnection {
 					try {
 						// read data length
 						int dataLength = socketInStream.readInt();
+						if (dataLength < 0 || dataLength > maxMessageSize) {
+							throw new IOException("Invalid message length " + dataLength + " from " + remoteId);
+						}
 						byte[] data = new byte[dataLength];
 
 						// read data
@@ -404,25 +654,42 @@ public class ServerConnection {
 							read += socketInStream.read(data, read, dataLength - read);
 						} while (read < dataLength);
 
-						byte hasMAC = socketInStream.readByte();
+						byte kind = socketInStream.readByte();
 
-						logger.trace("Read: {}, HasMAC: {}", read, hasMAC);
+						logger.trace("Read: {}, Kind: {}", read, kind);
 
-						SystemMessage sm = (SystemMessage) (new ObjectInputStream(new ByteArrayInputStream(data))
-								.readObject());
+						if (kind == FlowControl.CREDIT_FRAME) {
+							flowControl.granted(ByteBuffer.wrap(data).getInt());
+							wakeSender();
+							continue;
+						}
 
-						//The verification it is done for the SSL/TLS protocol.
-						sm.authenticated = true;
+						if (kind == BulkLane.BULK_FRAME) {
+							data = bulkLane.received(data);
+							if (data == null) {
+								continue; // more chunks to come
+							}
+						}
+
+						SystemMessage sm = decode(data);
+
+						if (sm != null && sm.getSender() == remoteId) {
+							//The verification it is done for the SSL/TLS protocol.
+							sm.authenticated = true;
 
-						if (sm.getSender() == remoteId) {
-							if (!inQueue.offer(sm)) {
+							if (FlowControl.isCritical(sm)) {
+								// wait for space instead of discarding it, the sender will stop for lack of credits
+								inQueue.put(sm);
+							} else if (!inQueue.offer(sm)) {
+								droppedIn++;
 								logger.warn("Inqueue full (message from " + remoteId + " discarded).");
+								messageProcessed();
 							}/* else {
 								logger.trace("Message: {} queued, remoteId: {}", sm.toString(), sm.getSender());
 							}*/
+						} else {
+							messageProcessed();
 						}
-					} catch (ClassNotFoundException ex) {
-						logger.info("Invalid message received. Ignoring!");
 					} catch (IOException ex) {
 						if (doWork) {
 							logger.debug("Closing socket and reconnecting");
@@ -439,6 +706,20 @@ public class ServerConnection {
         }
     }
 
+    /**
+     * Decodes a message received from the remote server
+     *
+     * @return the message, or null if it is not valid
+     */
+    private SystemMessage decode(byte[] data) {
+        try {
+            return MessageCodec.decode(data, 0, data.length);
+        } catch (IOException | RuntimeException ex) {
+            logger.info("Invalid message received from " + remoteId + ". Ignoring!");
+            return null;
+        }
+    }
+
     //******* EDUARDO BEGIN: special thread for receiving messages indicating the entrance into the system, coming from the TTP **************//
     // Simly pass the messages to the replica, indicating its entry into the system
     //TODO: Ask eduardo why a new thread is needed!!! 
@@ -464,6 +745,9 @@ public class ServerConnection {
 					try {
 						// read data length
 						int dataLength = socketInStream.readInt();
+						if (dataLength < 0 || dataLength > maxMessageSize) {
+							throw new IOException("Invalid message length " + dataLength + " from " + remoteId);
+						}
 
 						byte[] data = new byte[dataLength];
 
@@ -473,15 +757,12 @@ public class ServerConnection {
 							read += socketInStream.read(data, read, dataLength - read);
 						} while (read < dataLength);
 
-						SystemMessage sm = (SystemMessage) (new ObjectInputStream(new ByteArrayInputStream(data))
-								.readObject());
+						SystemMessage sm = decode(data);
 
-						if (sm.getSender() == remoteId) {
+						if (sm instanceof VMMessage && sm.getSender() == remoteId) {
 							this.replica.joinMsgReceived((VMMessage) sm);
 						}
 
-					} catch (ClassNotFoundException ex) {
-						logger.error("Failed to deserialize message", ex);
 					} catch (IOException ex) {
 						// ex.printStackTrace();
 						if (doWork) {
@@ -0,0 +1,82 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import javax.crypto.SecretKey;
+
+import bftsmart.communication.SystemMessage;
+
+/**
+ * Transport used by a replica to exchange messages with the other replicas.
+ * The implementation is chosen with 'system.communication.serversTransport':
+ * 'socket' selects ServersCommunicationLayer (one SSLSocket and a couple of
+ * threads per connection) and 'netty' selects NettyServersCommunicationLayer
+ * (a fixed pool of event loops shared by all connections). Both use the same
+ * framing on the wire.
+ */
+public interface ServersCommunication {
+
+    /**
+     * Sends a message to a set of replicas. Messages addressed to this replica
+     * are put directly in the input queue.
+     *
+     * @param targets the target replicas of the message
+     * @param sm the message to be sent
+     * @param useMAC kept for compatibility, authentication is done by SSL/TLS
+     */
+    public void send(int[] targets, SystemMessage sm, boolean useMAC);
+
+    /**
+     * @param id Id of the replica
+     * @return the secret key shared with the given replica
+     */
+    public SecretKey getSecretKey(int id);
+
+    /**
+     * Closes the connections to replicas that left the view and opens the
+     * connections to the ones that joined it.
+     */
+    public void updateConnections();
+
+    /**
+     * Establishes the connections that were waiting for this replica to learn
+     * the current view.
+     */
+    public void joinViewReceived();
+
+    /**
+     * Notifies that a message received from a replica was processed, so that
+     * its credits can be returned (see FlowControl).
+     *
+     * @param sender Id of the replica that sent the message
+     */
+    public void messageProcessed(int sender);
+
+    /**
+     * @return true if the messages to more than f replicas are waiting for
+     * credits, in which case new client requests should not be read
+     */
+    public boolean isCongested();
+
+    public void shutdown();
+
+    /**
+     * Waits for the transport to stop after shutdown() was called.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void join() throws InterruptedException;
+}
@@ -15,11 +15,9 @@ limitations under the License.
 */
 package bftsmart.communication.server;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
@@ -34,6 +32,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import bftsmart.communication.MessageCodec;
 import bftsmart.communication.SystemMessage;
 import bftsmart.consensus.messages.ConsensusMessage;
 import bftsmart.aware.messages.MonitoringMessage;
@@ -83,7 +82,7 @@ import org.slf4j.LoggerFactory;
   //$keytool -importkeystore -srckeystore ./RSA_KeyPair_2048.pkcs12 -destkeystore ./RSA_KeyPair_2048.pkcs12 -deststoretype pkcs12
 
 
-public class ServersCommunicationLayer extends Thread {
+public class ServersCommunicationLayer extends Thread implements ServersCommunication {
     
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
@@ -298,19 +297,21 @@ public class ServersCommunicationLayer extends Thread {
         /** End AWARE **/
 
 
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+        byte[] data;
         try {
-            new ObjectOutputStream(bOut).writeObject(sm);
+            data = MessageCodec.encode(sm);
         } catch (IOException ex) {
             logger.error("Failed to serialize message", ex);
+            return;
         }
-
-        byte[] data = bOut.toByteArray();
         
         // this shuffling is done to prevent the replica with the lowest ID/index  from being always
         // the last one receiving the messages, which can result in that replica  to become consistently
         // delayed in relation to the others.
         /*Tulio A. Ribeiro*/
+        boolean critical = FlowControl.isCritical(sm);
+        boolean bulk = BulkLane.isBulk(sm) && data.length > controller.getStaticConf().getBulkChunkSize();
+
         Integer[] targetsShuffled = Arrays.stream( targets ).boxed().toArray( Integer[]::new );
         Collections.shuffle(Arrays.asList(targetsShuffled), new Random(System.nanoTime()));
 
@@ -337,7 +338,11 @@ public class ServersCommunicationLayer extends Thread {
 					logger.debug("Queueing (delivering) my own message, me:{}", target);
 				} else {
 					logger.debug("Sending message from:{} -> to:{}.", me,  target);
-					getConnection(target).send(data);
+					if (bulk) {
+						getConnection(target).sendBulk(data);
+					} else {
+						getConnection(target).send(data, critical);
+					}
 				}
 			} catch (InterruptedException ex) {
 				logger.error("Interruption while inserting message into inqueue", ex);
@@ -345,6 +350,30 @@ public class ServersCommunicationLayer extends Thread {
 		}
     }
 
+    public void messageProcessed(int sender) {
+        if (sender == me) {
+            return;
+        }
+        connectionsLock.lock();
+        ServerConnection conn = this.connections.get(sender);
+        connectionsLock.unlock();
+        if (conn != null) {
+            conn.messageProcessed();
+        }
+    }
+
+    public boolean isCongested() {
+        int congested = 0;
+        connectionsLock.lock();
+        for (ServerConnection conn : this.connections.values()) {
+            if (conn.isCongested()) {
+                congested++;
+            }
+        }
+        connectionsLock.unlock();
+        return congested > controller.getCurrentViewF();
+    }
+
     public void shutdown() {
         
         logger.info("Shutting down replica sockets");
@@ -468,7 +497,11 @@ public class ServersCommunicationLayer extends Thread {
         int[] activeServers = controller.getCurrentViewAcceptors();
         for (int i = 0; i < activeServers.length; i++) {
             if (me != activeServers[i]) {
-                str += ", connections[" + activeServers[i] + "]: outQueue=" + getConnection(activeServers[i]).outQueue;
+                ServerConnection conn = getConnection(activeServers[i]);
+                str += ", connections[" + activeServers[i] + "]: queued=" + conn.getQueuedMessages()
+                        + ", credits=" + conn.getCredits() + ", droppedOut=" + conn.getDroppedOut()
+                        + ", droppedIn=" + conn.getDroppedIn() + ", framesPerFlush=" + conn.getFramesPerFlush()
+                        + ", bulkSent=" + conn.getBulkSent() + ", bulkBytesSent=" + conn.getBulkBytesSent();
             }
         }
         return str;
@@ -0,0 +1,862 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server.netty;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.security.Security;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.aware.messages.MonitoringMessage;
+import bftsmart.aware.monitoring.MessageLatencyMonitor;
+import bftsmart.aware.monitoring.Monitor;
+import bftsmart.communication.MessageCodec;
+import bftsmart.communication.SystemMessage;
+import bftsmart.communication.server.BulkLane;
+import bftsmart.communication.server.FlowControl;
+import bftsmart.communication.server.ServersCommunication;
+import bftsmart.consensus.messages.ConsensusMessage;
+import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.reconfiguration.VMMessage;
+import bftsmart.tom.ServiceReplica;
+import bftsmart.tom.util.TOMUtil;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.ssl.ClientAuth;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Replica-to-replica transport built on Netty. Instead of one SSLSocket plus a
+ * sender and a receiver thread per connection, all connections are served by
+ * a fixed pool of event loops ('system.numnettyworkers', or the number of
+ * cores if 0), which keeps the thread count flat as the group grows.
+ *
+ * The connection protocol and the framing are the same as the ones of
+ * ServersCommunicationLayer: the process with the higher id connects, sends its
+ * id as an int and then writes frames of [int length][data][byte kind], all
+ * over mutually authenticated SSL/TLS using the keys in config/keysSSL_TLS.
+ *
+ * Each message is serialized only once, into a pooled buffer, and the same
+ * buffer is written to every target. Flow control follows the same protocol
+ * as the socket transport (see FlowControl): messages wait in a backlog while
+ * a connection is down or has no credits left. The backlog is bounded by
+ * 'system.communication.outQueueSize', except for critical messages on a live
+ * connection. Non critical messages are also discarded while the socket
+ * buffer of the connection is above its high water mark. Large messages are
+ * sent in chunks, as described in BulkLane.
+ */
+public class NettyServersCommunicationLayer implements ServersCommunication {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final String SECRET = "MySeCreT_2hMOygBwY";
+    private static final long POOL_TIME = 5000;
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int LOW_WATER_MARK = 8 * 1024 * 1024;
+    private static final int HIGH_WATER_MARK = 32 * 1024 * 1024;
+
+    private ServerViewController controller;
+    private LinkedBlockingQueue<SystemMessage> inQueue;
+    private ServiceReplica replica;
+    private int me;
+    private volatile boolean doWork = true;
+
+    private final Map<Integer, Peer> peers = new ConcurrentHashMap<>();
+    private final List<PendingChannel> pendingConn = new LinkedList<>();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    private SslContext serverContext;
+    private SslContext clientContext;
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private Bootstrap clientBootstrap;
+    private Channel serverChannel;
+    private SecretKey selfPwd;
+
+    // AWARE
+    public MessageLatencyMonitor writeLatenciesMonitor;
+    public MessageLatencyMonitor proposeLatenciesMonitor;
+
+    public NettyServersCommunicationLayer(ServerViewController controller,
+            LinkedBlockingQueue<SystemMessage> inQueue,
+            ServiceReplica replica) throws Exception {
+
+        this.controller = controller;
+        this.inQueue = inQueue;
+        this.me = controller.getStaticConf().getProcessId();
+        this.replica = replica;
+
+        /** AWARE **/
+        this.writeLatenciesMonitor = Monitor.getInstance(controller).getWriteLatencyMonitor();
+        this.proposeLatenciesMonitor = Monitor.getInstance(controller).getProposeLatencyMonitor();
+        /** END AWARE **/
+
+        KeyStore ks;
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream("config/keysSSL_TLS/" + controller.getStaticConf().getSSLTLSKeyStore());
+            ks = KeyStore.getInstance(KeyStore.getDefaultType());
+            ks.load(fis, SECRET.toCharArray());
+        } finally {
+            if (fis != null) {
+                fis.close();
+            }
+        }
+
+        String algorithm = Security.getProperty("ssl.KeyManagerFactory.algorithm");
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(algorithm);
+        kmf.init(ks, SECRET.toCharArray());
+
+        TrustManagerFactory trustMgrFactory = TrustManagerFactory.getInstance(algorithm);
+        trustMgrFactory.init(ks);
+
+        List<String> ciphers = Arrays.asList(controller.getStaticConf().getEnabledCiphers());
+        String protocol = controller.getStaticConf().getSSLTLSProtocolVersion();
+
+        serverContext = SslContextBuilder.forServer(kmf).trustManager(trustMgrFactory)
+                .sslProvider(SslProvider.JDK).protocols(protocol).ciphers(ciphers)
+                .clientAuth(ClientAuth.REQUIRE).build();
+        clientContext = SslContextBuilder.forClient().keyManager(kmf).trustManager(trustMgrFactory)
+                .sslProvider(SslProvider.JDK).protocols(protocol).ciphers(ciphers).build();
+
+        SecretKeyFactory fac = TOMUtil.getSecretFactory();
+        PBEKeySpec spec = TOMUtil.generateKeySpec(SECRET.toCharArray());
+        selfPwd = fac.generateSecret(spec);
+
+        int workers = controller.getStaticConf().getNumNettyWorkers();
+        if (workers <= 0) {
+            workers = Runtime.getRuntime().availableProcessors();
+        }
+        bossGroup = new NioEventLoopGroup(1);
+        workerGroup = new NioEventLoopGroup(workers);
+
+        WriteBufferWaterMark waterMark = new WriteBufferWaterMark(LOW_WATER_MARK, HIGH_WATER_MARK);
+
+        clientBootstrap = new Bootstrap();
+        clientBootstrap.group(workerGroup).channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup).channel(NioServerSocketChannel.class)
+                .option(ChannelOption.SO_REUSEADDR, true)
+                .option(ChannelOption.SO_BACKLOG, 100)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(serverContext.newHandler(ch.alloc()));
+                        ch.pipeline().addLast(new IdentificationDecoder());
+                        ch.pipeline().addLast(newFrameDecoder());
+                        ch.pipeline().addLast(new PeerHandler(-1));
+                    }
+                });
+
+        serverChannel = b.bind(new InetSocketAddress(InetAddress.getByName(bindAddress()),
+                controller.getStaticConf().getServerToServerPort(me))).sync().channel();
+
+        logger.info("Netty replica transport listening on " + serverChannel.localAddress() + " with " + workers
+                + " worker threads");
+
+        //Try connecting if a member of the current view. Otherwise, wait until the Join has been processed!
+        if (controller.isInCurrentView()) {
+            int[] initialV = controller.getCurrentViewAcceptors();
+            for (int i = 0; i < initialV.length; i++) {
+                if (initialV[i] != me) {
+                    getPeer(initialV[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Frames are [int length][message][kind byte], the length counting the
+     * message only. A frame larger than the maximum message size fails the
+     * decoder, which closes the connection.
+     */
+    private LengthFieldBasedFrameDecoder newFrameDecoder() {
+        return new LengthFieldBasedFrameDecoder(controller.getStaticConf().getMaxMessageSize() + 5, 0, 4, 1, 4);
+    }
+
+    private String bindAddress() throws IOException {
+        String confAddress = "";
+        try {
+            confAddress = controller.getStaticConf().getRemoteAddress(me).getAddress().getHostAddress();
+        } catch (Exception e) {
+            logger.debug("my Id is " + me + " my remote Address is  " + controller.getStaticConf().getRemoteAddress(me));
+        }
+
+        if (InetAddress.getLoopbackAddress().getHostAddress().equals(confAddress)) {
+            return InetAddress.getLoopbackAddress().getHostAddress();
+        } else if (controller.getStaticConf().getBindAddress().equals("")) {
+            String myAddress = InetAddress.getLocalHost().getHostAddress();
+            //If the replica binds to the loopback address, clients will not be able to connect to replicas.
+            //To solve that issue, we bind to the address supplied in config/hosts.config instead.
+            if (!confAddress.equals("") && !myAddress.equals(confAddress)) {
+                myAddress = confAddress;
+            }
+            return myAddress;
+        } else {
+            return controller.getStaticConf().getBindAddress();
+        }
+    }
+
+    @Override
+    public SecretKey getSecretKey(int id) {
+        // every connection uses the same key, see ServerConnection
+        return selfPwd;
+    }
+
+    @Override
+    public void updateConnections() {
+        if (controller.isInCurrentView()) {
+            Iterator<Map.Entry<Integer, Peer>> it = peers.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Peer> e = it.next();
+                if (!controller.isCurrentViewMember(e.getKey())) {
+                    it.remove();
+                    e.getValue().shutdown();
+                }
+            }
+
+            int[] newV = controller.getCurrentViewAcceptors();
+            for (int i = 0; i < newV.length; i++) {
+                if (newV[i] != me) {
+                    getPeer(newV[i]);
+                }
+            }
+        } else {
+            for (Peer p : peers.values()) {
+                p.shutdown();
+            }
+        }
+    }
+
+    private Peer getPeer(int remoteId) {
+        Peer peer = peers.get(remoteId);
+        if (peer == null) {
+            Peer created = new Peer(remoteId);
+            peer = peers.putIfAbsent(remoteId, created);
+            if (peer == null) {
+                peer = created;
+                if (isToConnect(remoteId)) {
+                    peer.connect();
+                }
+            }
+        }
+        return peer;
+    }
+
+    //return true of a process shall connect to the remote process, false otherwise
+    private boolean isToConnect(int remoteId) {
+        if (controller.getStaticConf().getTTPId() == remoteId) {
+            //Need to wait for the connection request from the TTP, do not tray to connect to it
+            return false;
+        } else if (controller.getStaticConf().getTTPId() == me) {
+            //If this is a TTP, one must connect to the remote process
+            return true;
+        }
+        //in this case, the node with higher ID starts the connection
+        return controller.isInCurrentView() && me > remoteId;
+    }
+
+    @Override
+    public final void send(int[] targets, SystemMessage sm, boolean useMAC) {
+
+        /** AWARE **/ // Generate a challenge for BFT
+        int challenge = -1;
+        if (sm instanceof ConsensusMessage && controller.getStaticConf().isBFT()) {
+            ConsensusMessage csm = ((ConsensusMessage) sm);
+            if (csm.getPaxosVerboseType().equals("WRITE") ||
+                csm.getPaxosVerboseType().equals("PROPOSE") ||
+                csm.getPaxosVerboseType().equals("DUMMY_PROPOSE")) {
+
+                challenge = (int) (Math.random() * 1000000000);
+                ((ConsensusMessage) sm).setChallenge(challenge);
+            }
+        }
+        /** End AWARE **/
+
+        ByteBuf frame = PooledByteBufAllocator.DEFAULT.buffer(256);
+        try {
+            frame.writeInt(0);
+            MessageCodec.encode(sm, new ByteBufOutputStream(frame));
+            frame.setInt(0, frame.readableBytes() - 4);
+            frame.writeByte(FlowControl.MESSAGE_FRAME);
+        } catch (IOException ex) {
+            logger.error("Failed to serialize message", ex);
+            frame.release();
+            return;
+        }
+
+        boolean critical = FlowControl.isCritical(sm);
+
+        // large messages go through the bulk lane of each peer instead
+        byte[] bulk = null;
+        if (BulkLane.isBulk(sm) && frame.readableBytes() - 5 > controller.getStaticConf().getBulkChunkSize()) {
+            bulk = new byte[frame.readableBytes() - 5];
+            frame.getBytes(4, bulk);
+        }
+
+        // shuffled for the same reason as in ServersCommunicationLayer
+        Integer[] targetsShuffled = Arrays.stream(targets).boxed().toArray(Integer[]::new);
+        Collections.shuffle(Arrays.asList(targetsShuffled), new Random(System.nanoTime()));
+
+        try {
+            for (int target : targetsShuffled) {
+                /** AWARE **/
+                if (sm instanceof ConsensusMessage && ((ConsensusMessage) sm).getPaxosVerboseType().equals("WRITE") &&
+                        writeLatenciesMonitor != null) {
+                    Long timestamp = System.nanoTime();
+                    writeLatenciesMonitor.addSentTime(target, ((ConsensusMessage) sm).getNumber(), timestamp, challenge);
+                }
+                if (proposeLatenciesMonitor != null && (
+                        (sm instanceof ConsensusMessage && ((ConsensusMessage) sm).getPaxosVerboseType().equals("PROPOSE")) ||
+                         sm instanceof MonitoringMessage && ((MonitoringMessage) sm).getPaxosVerboseType().equals("DUMMY_PROPOSE")))
+                {
+                    Long timestamp = System.nanoTime();
+                    proposeLatenciesMonitor.addSentTime(target, ((ConsensusMessage) sm).getNumber(), timestamp, challenge);
+                }
+                /** End AWARE **/
+
+                if (target == me) {
+                    sm.authenticated = true;
+                    inQueue.put(sm);
+                    logger.debug("Queueing (delivering) my own message, me:{}", target);
+                } else {
+                    logger.debug("Sending message from:{} -> to:{}.", me, target);
+                    if (bulk != null) {
+                        getPeer(target).sendBulk(bulk);
+                    } else {
+                        getPeer(target).send(frame.retainedDuplicate(), critical);
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            logger.error("Interruption while inserting message into inqueue", ex);
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    public void joinViewReceived() {
+        synchronized (pendingConn) {
+            for (PendingChannel pc : pendingConn) {
+                establishConnection(pc.channel, pc.remoteId);
+            }
+            pendingConn.clear();
+        }
+    }
+
+    private void establishConnection(Channel ch, int remoteId) {
+        if (controller.getStaticConf().getTTPId() == remoteId || controller.isCurrentViewMember(remoteId)) {
+            logger.debug("Establishing connection with replica: {}", remoteId);
+            ch.eventLoop().execute(() -> {
+                PeerHandler handler = ch.pipeline().get(PeerHandler.class);
+                if (handler == null || !ch.isActive()) {
+                    return;
+                }
+                handler.remoteId = remoteId;
+                getPeer(remoteId).attach(ch);
+                // removing the decoder hands the bytes it buffered to the frame decoder
+                ch.pipeline().remove(IdentificationDecoder.class);
+                ch.config().setAutoRead(true);
+            });
+        } else {
+            logger.debug("Closing connection with replica: {}", remoteId);
+            ch.close();
+        }
+    }
+
+    @Override
+    public void messageProcessed(int sender) {
+        Peer peer = sender != me ? peers.get(sender) : null;
+        if (peer != null) {
+            peer.messageProcessed();
+        }
+    }
+
+    @Override
+    public boolean isCongested() {
+        int congested = 0;
+        for (Peer p : peers.values()) {
+            if (p.isCongested()) {
+                congested++;
+            }
+        }
+        return congested > controller.getCurrentViewF();
+    }
+
+    @Override
+    public void shutdown() {
+
+        logger.info("Shutting down replica channels");
+
+        doWork = false;
+
+        for (Peer p : peers.values()) {
+            p.shutdown();
+        }
+        serverChannel.close();
+        bossGroup.shutdownGracefully();
+        workerGroup.shutdownGracefully().addListener(f -> {
+            logger.info("NettyServersCommunicationLayer stopped.");
+            terminated.countDown();
+        });
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        terminated.await();
+    }
+
+    @Override
+    public String toString() {
+        String str = "inQueue=" + inQueue.toString();
+        int[] activeServers = controller.getCurrentViewAcceptors();
+        for (int i = 0; i < activeServers.length; i++) {
+            if (me != activeServers[i]) {
+                str += ", connections[" + activeServers[i] + "]: " + getPeer(activeServers[i]);
+            }
+        }
+        return str;
+    }
+
+    /**
+     * Connection to another replica. Holds the current channel, if any, and
+     * the messages that could not be written to it yet.
+     */
+    private class Peer {
+
+        private final int remoteId;
+        private final FlowControl flowControl;
+        private final ArrayDeque<ByteBuf> backlog = new ArrayDeque<>();
+        private Channel channel;
+        private boolean connecting = false;
+        private boolean closed = false;
+        private volatile long droppedOut = 0; // messages discarded because the backlog was full
+        private volatile long droppedIn = 0; // messages discarded because the in queue was full
+        private final BulkLane bulkLane;
+        private boolean chunkInFlight = false; // only one chunk at a time in the channel (see pumpBulk)
+        private boolean pumpScheduled = false;
+
+        Peer(int remoteId) {
+            this.remoteId = remoteId;
+            // the TTP does not take part in flow control
+            boolean useCredits = controller.getStaticConf().getTTPId() != remoteId
+                    && controller.getStaticConf().getTTPId() != me;
+            this.flowControl = new FlowControl(useCredits ? controller.getStaticConf().getCreditWindow() : 0);
+            this.bulkLane = new BulkLane(flowControl, controller.getStaticConf().getBulkChunkSize(),
+                    controller.getStaticConf().getBulkRate(), controller.getStaticConf().getMaxMessageSize());
+        }
+
+        synchronized void sendBulk(byte[] data) {
+            if (!closed) {
+                bulkLane.add(data);
+                pumpBulk();
+            }
+        }
+
+        /**
+         * Writes the next chunk of the large messages, if any. The next one is
+         * only written once this one left the channel, so that the messages
+         * written meanwhile wait for one chunk at most.
+         */
+        synchronized void pumpBulk() {
+            if (closed || chunkInFlight || channel == null || !channel.isActive()) {
+                return;
+            }
+            byte[] chunk = bulkLane.nextChunk();
+            if (chunk != null) {
+                chunkInFlight = true;
+                ByteBuf frame = channel.alloc().buffer(5 + chunk.length);
+                frame.writeInt(chunk.length).writeBytes(chunk).writeByte(BulkLane.BULK_FRAME);
+                channel.writeAndFlush(frame).addListener((ChannelFutureListener) f -> {
+                    synchronized (this) {
+                        chunkInFlight = false;
+                    }
+                    pumpBulk();
+                });
+            } else if (!pumpScheduled && bulkLane.getDelay() > 0) {
+                pumpScheduled = true;
+                channel.eventLoop().schedule(() -> {
+                    synchronized (this) {
+                        pumpScheduled = false;
+                    }
+                    pumpBulk();
+                }, bulkLane.getDelay(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        synchronized void send(ByteBuf frame, boolean critical) {
+            boolean connected = channel != null && channel.isActive();
+            if (closed) {
+                frame.release();
+            } else if (connected && backlog.isEmpty() && flowControl.tryAcquire()) {
+                if (critical || channel.isWritable()) {
+                    channel.writeAndFlush(frame, channel.voidPromise());
+                } else {
+                    flowControl.release();
+                    frame.release();
+                    droppedOut++;
+                    logger.warn("Channel to " + remoteId + " is full (message discarded).");
+                }
+            } else if ((connected && critical) || backlog.size() < controller.getStaticConf().getOutQueueSize()) {
+                backlog.add(frame);
+            } else {
+                frame.release();
+                droppedOut++;
+                logger.debug("Backlog for " + remoteId + " full (message discarded).");
+            }
+        }
+
+        /**
+         * Writes the messages in the backlog, as far as the credits allow
+         */
+        synchronized void flushBacklog() {
+            if (channel == null || !channel.isActive()) {
+                return;
+            }
+            boolean written = false;
+            while (!backlog.isEmpty() && flowControl.tryAcquire()) {
+                channel.write(backlog.poll(), channel.voidPromise());
+                written = true;
+            }
+            if (written) {
+                channel.flush();
+            }
+        }
+
+        synchronized void granted(int credits) {
+            flowControl.granted(credits);
+            flushBacklog();
+            pumpBulk();
+        }
+
+        void messageProcessed() {
+            int credits = flowControl.consumed();
+            if (credits > 0) {
+                sendCredits(credits);
+            }
+        }
+
+        private synchronized void sendCredits(int credits) {
+            if (channel != null && channel.isActive()) {
+                ByteBuf frame = channel.alloc().buffer(9);
+                frame.writeInt(4).writeInt(credits).writeByte(FlowControl.CREDIT_FRAME);
+                channel.writeAndFlush(frame, channel.voidPromise());
+            }
+        }
+
+        synchronized boolean isCongested() {
+            return flowControl.isExhausted() && (!backlog.isEmpty() || bulkLane.hasData());
+        }
+
+        synchronized void attach(Channel ch) {
+            Channel old = channel;
+            channel = ch;
+            connecting = false;
+            if (old != null && old != ch) {
+                logger.debug("ReConnecting with replica: {}", remoteId);
+                old.close();
+            }
+            if (closed) {
+                ch.close();
+                return;
+            }
+            flowControl.reset();
+            flushBacklog();
+            bulkLane.restart();
+            chunkInFlight = false;
+            pumpBulk();
+        }
+
+        synchronized void detach(Channel ch) {
+            if (channel != ch) {
+                return;
+            }
+            channel = null;
+            if (doWork && !closed && isToConnect(remoteId)) {
+                scheduleConnect();
+            }
+        }
+
+        synchronized void connect() {
+            if (!doWork || closed || connecting || channel != null) {
+                return;
+            }
+            connecting = true;
+
+            clientBootstrap.clone().handler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) {
+                    ch.pipeline().addLast(clientContext.newHandler(ch.alloc()));
+                    ch.pipeline().addLast(newFrameDecoder());
+                    ch.pipeline().addLast(new PeerHandler(remoteId));
+                }
+            }).connect(controller.getStaticConf().getHost(remoteId),
+                    controller.getStaticConf().getServerToServerPort(remoteId))
+                    .addListener((ChannelFutureListener) f -> {
+                        if (!f.isSuccess()) {
+                            logger.debug("Failed to connect to replica " + remoteId + ", retrying");
+                            synchronized (this) {
+                                connecting = false;
+                            }
+                            scheduleConnect();
+                        }
+                    });
+        }
+
+        private void scheduleConnect() {
+            if (doWork && !workerGroup.isShuttingDown()) {
+                workerGroup.schedule(this::connect, POOL_TIME, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        synchronized void shutdown() {
+            closed = true;
+            if (channel != null) {
+                channel.close();
+            }
+            ByteBuf frame;
+            while ((frame = backlog.poll()) != null) {
+                frame.release();
+            }
+            bulkLane.clear();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "channel=" + channel + ", backlog=" + backlog.size() + ", credits=" + flowControl.getAvailable()
+                    + ", droppedOut=" + droppedOut + ", droppedIn=" + droppedIn + ", bulkSent="
+                    + bulkLane.getMessagesSent() + ", bulkBytesSent=" + bulkLane.getBytesSent();
+        }
+    }
+
+    /**
+     * Reads the id sent by the replica that opened the connection. While this
+     * replica does not know the current view, connections from unknown
+     * replicas are kept on hold, without reading from them.
+     */
+    private class IdentificationDecoder extends ByteToMessageDecoder {
+
+        private boolean identified = false;
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+            if (identified || in.readableBytes() < 4) {
+                return;
+            }
+            identified = true;
+            int remoteId = in.readInt();
+
+            // nothing else is read until the connection is established
+            ctx.channel().config().setAutoRead(false);
+
+            if (!controller.isInCurrentView() && controller.getStaticConf().getTTPId() != remoteId) {
+                synchronized (pendingConn) {
+                    pendingConn.add(new PendingChannel(ctx.channel(), remoteId));
+                }
+            } else {
+                establishConnection(ctx.channel(), remoteId);
+            }
+        }
+    }
+
+    /**
+     * Delivers the messages received from a replica. Messages from the TTP are
+     * handed to the replica, as they carry its entrance into the system.
+     *
+     * When the in queue is full, critical messages are kept here and the
+     * channel stops reading until they fit, instead of blocking the event loop.
+     */
+    private class PeerHandler extends ChannelInboundHandlerAdapter {
+
+        private volatile int remoteId;
+        private final ArrayDeque<SystemMessage> stalled = new ArrayDeque<>();
+
+        PeerHandler(int remoteId) {
+            this.remoteId = remoteId;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            if (remoteId != -1) {
+                // this side opened the connection, identify ourselves first
+                ctx.writeAndFlush(ctx.alloc().buffer(4).writeInt(me));
+                getPeer(remoteId).attach(ctx.channel());
+            }
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (remoteId != -1) {
+                Peer peer = peers.get(remoteId);
+                if (peer != null) {
+                    peer.detach(ctx.channel());
+                }
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf frame = (ByteBuf) msg;
+            Peer peer = peers.get(remoteId);
+            boolean processed = true;
+            try {
+                // the last byte of the frame tells what it carries
+                byte kind = frame.getByte(frame.writerIndex() - 1);
+                if (kind == FlowControl.CREDIT_FRAME) {
+                    processed = false;
+                    if (peer != null) {
+                        peer.granted(frame.readInt());
+                    }
+                    return;
+                }
+
+                SystemMessage sm;
+                if (kind == BulkLane.BULK_FRAME) {
+                    byte[] chunk = new byte[frame.readableBytes() - 1];
+                    frame.readBytes(chunk);
+                    byte[] data = peer != null ? peer.bulkLane.received(chunk) : null;
+                    if (data == null) {
+                        processed = false; // more chunks to come
+                        return;
+                    }
+                    sm = MessageCodec.decode(data, 0, data.length);
+                } else {
+                    sm = MessageCodec.decode(new ByteBufInputStream(frame, frame.readableBytes() - 1));
+                }
+
+                if (sm.getSender() != remoteId) {
+                    return;
+                }
+
+                if (remoteId == controller.getStaticConf().getTTPId() && !controller.getStaticConf().isTheTTP()) {
+                    replica.joinMsgReceived((VMMessage) sm);
+                    return;
+                }
+
+                //The verification it is done for the SSL/TLS protocol.
+                sm.authenticated = true;
+
+                if (stalled.isEmpty() && inQueue.offer(sm)) {
+                    processed = false; // credits are returned once it leaves the in queue
+                } else if (FlowControl.isCritical(sm)) {
+                    processed = false;
+                    stalled.add(sm);
+                    if (stalled.size() == 1) {
+                        ctx.channel().config().setAutoRead(false);
+                        retryStalled(ctx);
+                    }
+                } else {
+                    if (peer != null) {
+                        peer.droppedIn++;
+                    }
+                    logger.warn("Inqueue full (message from " + remoteId + " discarded).");
+                }
+            } catch (IOException | RuntimeException ex) {
+                logger.info("Invalid message received from " + remoteId + ". Ignoring!");
+            } finally {
+                ReferenceCountUtil.release(frame);
+                if (processed && peer != null) {
+                    peer.messageProcessed();
+                }
+            }
+        }
+
+        private void retryStalled(ChannelHandlerContext ctx) {
+            while (!stalled.isEmpty() && inQueue.offer(stalled.peek())) {
+                stalled.poll();
+            }
+            if (stalled.isEmpty()) {
+                ctx.channel().config().setAutoRead(true);
+            } else if (!ctx.executor().isShuttingDown()) {
+                ctx.executor().schedule(() -> retryStalled(ctx), 1, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.debug("Closing channel to replica " + remoteId, cause);
+            ctx.close();
+        }
+    }
+
+    private static class PendingChannel {
+
+        final Channel channel;
+        final int remoteId;
+
+        PendingChannel(Channel channel, int remoteId) {
+            this.channel = channel;
+            this.remoteId = remoteId;
+        }
+    }
+}
@@ -16,7 +16,9 @@ limitations under the License.
 package bftsmart.consensus;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -48,6 +50,7 @@ public class Epoch implements Serializable {
     private boolean writeSent;
     private boolean acceptSent;
     private boolean acceptCreated;
+    private boolean acceptDeferred;
 
     private boolean alreadyRemoved = false; // indicates if this epoch was removed from its consensus
 
@@ -69,6 +72,10 @@ public class Epoch implements Serializable {
     private double[] sumWeightsWrite;
     private double[] sumWeightsAccept;
 
+    // WRITE/ACCEPT votes set in this epoch, accumulated per value
+    private transient HashMap<ByteBuffer, Tally> writeTally;
+    private transient HashMap<ByteBuffer, Tally> acceptTally;
+
     // Forensics
     private HashSet<ConsensusMessage> writeProofs; // write proof
     private Aggregate writeAgg;
@@ -115,6 +122,9 @@ public class Epoch implements Serializable {
             Arrays.fill((Object[]) write, null);
             Arrays.fill((Object[]) accept, null);
 
+            this.writeTally = new HashMap<>();
+            this.acceptTally = new HashMap<>();
+
         } else {
             Epoch previousEpoch = consensus.getEpoch(timestamp - 1, controller);
 
@@ -124,6 +134,10 @@ public class Epoch implements Serializable {
             this.write = previousEpoch.getWrite();
             this.accept = previousEpoch.getAccept();
 
+            // only the votes set in this epoch count, the arrays may still hold older ones
+            this.writeTally = new HashMap<>();
+            this.acceptTally = new HashMap<>();
+
         }
 
         // Forensics
@@ -143,6 +157,9 @@ public class Epoch implements Serializable {
             boolean[] writeSetted = new boolean[n];
             boolean[] acceptSetted = new boolean[n];
 
+            double[] sumWeightsWrite = new double[n];
+            double[] sumWeightsAccept = new double[n];
+
             Arrays.fill(writeSetted, false);
             Arrays.fill(acceptSetted, false);
 
@@ -159,6 +176,9 @@ public class Epoch implements Serializable {
                     writeSetted[currentPos] = this.writeSetted[lastPos];
                     acceptSetted[currentPos] = this.acceptSetted[lastPos];
 
+                    if (this.sumWeightsWrite != null) sumWeightsWrite[currentPos] = this.sumWeightsWrite[lastPos];
+                    if (this.sumWeightsAccept != null) sumWeightsAccept[currentPos] = this.sumWeightsAccept[lastPos];
+
                 }
             }
 
@@ -168,6 +188,13 @@ public class Epoch implements Serializable {
             this.writeSetted = writeSetted;
             this.acceptSetted = acceptSetted;
 
+            this.sumWeightsWrite = sumWeightsWrite;
+            this.sumWeightsAccept = sumWeightsAccept;
+
+            // votes from replicas that left the view no longer count
+            this.writeTally = tally(writeSetted, sumWeightsWrite, write);
+            this.acceptTally = tally(acceptSetted, sumWeightsAccept, accept);
+
             lastView = controller.getCurrentView();
 
         }
@@ -314,10 +341,12 @@ public class Epoch implements Serializable {
         // ******* EDUARDO BEGIN **************//
         int p = this.controller.getCurrentViewPos(acceptor);
         if (p >= 0 /* && !writeSetted[p] && !isFrozen() */) { // it can only be setted once
+            if (writeSetted[p]) removeVote(writeTally, write[p], sumWeightsWrite != null ? sumWeightsWrite[p] : 0.0);
             write[p] = value;
             writeSetted[p] = true;
             if (sumWeightsWrite != null)
                  sumWeightsWrite[p]  = this.controller.getCurrentView().getWeight(acceptor);
+            addVote(writeTally, value, sumWeightsWrite != null ? sumWeightsWrite[p] : 0.0);
         }
         // ******* EDUARDO END **************//
     }
@@ -363,9 +392,11 @@ public class Epoch implements Serializable {
         // ******* EDUARDO BEGIN **************//
         int p = this.controller.getCurrentViewPos(acceptor);
         if (p >= 0 /* && !strongSetted[p] && !isFrozen() */) { // it can only be setted once
+            if (acceptSetted[p]) removeVote(acceptTally, accept[p], sumWeightsAccept[p]);
             accept[p] = value;
             acceptSetted[p] = true;
             sumWeightsAccept[p]  = this.controller.getCurrentView().getWeight(acceptor);
+            addVote(acceptTally, value, sumWeightsAccept[p]);
         }
         // ******* EDUARDO END **************//
     }
@@ -378,8 +409,10 @@ public class Epoch implements Serializable {
      * @return Amount of replicas from which this process received the specified
      *         value
      */
-    public int countWrite(byte[] value) {
-        return count(writeSetted, write, value);
+    public synchronized int countWrite(byte[] value) {
+        updateArrays();
+        Tally t = lookup(writeTally, value);
+        return t != null ? t.count : 0;
     }
 
     /**
@@ -390,8 +423,10 @@ public class Epoch implements Serializable {
      * @return Amount of replicas from which this process accepted the specified
      *         value
      */
-    public int countAccept(byte[] value) {
-        return count(acceptSetted, accept, value);
+    public synchronized int countAccept(byte[] value) {
+        updateArrays();
+        Tally t = lookup(acceptTally, value);
+        return t != null ? t.count : 0;
     }
 
     /**
@@ -415,6 +450,14 @@ public class Epoch implements Serializable {
         acceptCreated = true;
     }
 
+    /**
+     * Indicate that the ACCEPT message was held back until the previous
+     * consensus instance is decided (used with pipelining)
+     */
+    public void acceptDeferred() {
+        acceptDeferred = true;
+    }
+
     /**
      * Indicates if the consensus instance already sent its WRITE message
      *
@@ -442,6 +485,16 @@ public class Epoch implements Serializable {
         return acceptCreated;
     }
 
+    /**
+     * Indicates if the ACCEPT message was held back until the previous
+     * consensus instance is decided
+     *
+     * @return true if ACCEPT was indicated as deferred, false otherwise
+     */
+    public boolean isAcceptDeferred() {
+        return acceptDeferred;
+    }
+
     /**
      * Set the speculative ACCEPT message
      *
@@ -472,32 +525,15 @@ public class Epoch implements Serializable {
         return acceptMsg;
     }
 
-    /**
-     * Counts how many times 'value' occurs in 'array'
-     *
-     * @param array Array where to count
-     * @param value Value to count
-     * @return Ammount of times that 'value' was find in 'array'
-     */
-    private int count(boolean[] arraySetted, byte[][] array, byte[] value) {
-        if (value != null) {
-            int counter = 0;
-            for (int i = 0; i < array.length; i++) {
-                if (arraySetted != null && arraySetted[i] && Arrays.equals(value, array[i])) {
-                    counter++;
-                }
-            }
-            return counter;
-        }
-        return 0;
-    }
     /**
      * Retrieves the total weights from which this process received a WRITE value
      * @param value The value in question
      * @return total weights from which this process received the specified value
      */
     public synchronized double countWriteWeigths(byte[] value) {
-        return countWeigths(writeSetted,sumWeightsWrite, write, value);
+        updateArrays();
+        Tally t = lookup(writeTally, value);
+        return t != null ? t.weight : 0;
     }
 
     /**
@@ -506,26 +542,64 @@ public class Epoch implements Serializable {
      * @return total weights from which this process accepted the specified value
      */
     public synchronized double countAcceptWeigths(byte[] value) {
-        return countWeigths(acceptSetted,sumWeightsAccept, accept, value);
+        updateArrays();
+        Tally t = lookup(acceptTally, value);
+        return t != null ? t.weight : 0;
+    }
+
+    /**
+     * Number of votes and their total weight for a single value
+     */
+    private static class Tally {
+        private int count;
+        private double weight;
+    }
+
+    private static Tally lookup(HashMap<ByteBuffer, Tally> tally, byte[] value) {
+        return value != null ? tally.get(ByteBuffer.wrap(value)) : null;
     }
 
     /**
-     * Counts how many times 'value' occurs in 'array'
-     * @param array Array where to count
-     * @param value Value to count
-     * @return Ammount of times that 'value' was find in 'array'
+     * Accounts for a vote with the given weight on 'value'
      */
-    private synchronized double countWeigths(boolean[] arraySetted, double[] arrayWeights, byte[][] array, byte[] value) {
+    private static void addVote(HashMap<ByteBuffer, Tally> tally, byte[] value, double weight) {
         if (value != null) {
-            double counter = 0.0;
-            for (int i = 0; i < array.length; i++) {
-                if (arrayWeights != null && arraySetted != null && arraySetted[i] && Arrays.equals(value, array[i])) {
-                    counter += arrayWeights[i];
-                }
+            Tally t = tally.computeIfAbsent(ByteBuffer.wrap(value), k -> new Tally());
+            t.count++;
+            t.weight += weight;
+        }
+    }
+
+    /**
+     * Discounts a vote previously accounted with addVote(...)
+     */
+    private static void removeVote(HashMap<ByteBuffer, Tally> tally, byte[] value, double weight) {
+        if (value != null) {
+            ByteBuffer key = ByteBuffer.wrap(value);
+            Tally t = tally.get(key);
+            if (t != null) {
+                t.count--;
+                t.weight -= weight;
+                if (t.count <= 0) tally.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Builds the tally of the votes stored in 'array'
+     * @param arraySetted Which positions hold a vote
+     * @param arrayWeights Weight of each vote
+     * @param array Voted values
+     * @return Votes accumulated per value
+     */
+    private static HashMap<ByteBuffer, Tally> tally(boolean[] arraySetted, double[] arrayWeights, byte[][] array) {
+        HashMap<ByteBuffer, Tally> tally = new HashMap<>();
+        for (int i = 0; i < array.length; i++) {
+            if (arraySetted[i]) {
+                addVote(tally, array[i], arrayWeights != null ? arrayWeights[i] : 0.0);
             }
-            return counter;
         }
-        return 0;
+        return tally;
     }
     /*************************** DEBUG METHODS *******************************/
     /**
@@ -587,14 +661,19 @@ public class Epoch implements Serializable {
 
         sumWeightsWrite = new double[n];
         sumWeightsAccept = new double[n];
+
+        this.writeTally = new HashMap<>();
+        this.acceptTally = new HashMap<>();
+
         this.writeSent = false;
         this.acceptSent = false;
         this.acceptCreated = false;
+        this.acceptDeferred = false;
     }
 
     /*************************** FORENSICS METHODS *******************************/
 
-    public void addWriteProof(ConsensusMessage proof) {
+    public synchronized void addWriteProof(ConsensusMessage proof) {
         this.writeProofs.add(proof);
     }
 
@@ -602,7 +681,7 @@ public class Epoch implements Serializable {
         return this.writeProofs;
     }
 
-    public void createWriteAggregate() {
+    public synchronized void createWriteAggregate() {
         if (this.writeAgg == null) {
             this.writeAgg = new Aggregate(this.writeProofs);
         }
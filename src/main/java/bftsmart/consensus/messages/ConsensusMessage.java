@@ -17,7 +17,9 @@ package bftsmart.consensus.messages;
 
 import java.io.*;
 
+import bftsmart.communication.MessageCodec;
 import bftsmart.communication.SystemMessage;
+import bftsmart.tom.util.MerkleProof;
 
 
 
@@ -37,6 +39,12 @@ public class ConsensusMessage extends SystemMessage {
     /** AWARE **/
     protected int challenge = -1; // only necessary for BFT
 
+    // kinds of proof in the binary format
+    private static final byte NO_PROOF = 0;
+    private static final byte SIGNATURE = 1;
+    private static final byte MERKLE_PROOF = 2;
+    private static final byte OBJECT_PROOF = 3;
+
     /**
      * Creates a consensus message. Not used. TODO: How about making it private?
      */
@@ -155,6 +163,65 @@ public class ConsensusMessage extends SystemMessage {
 
     }
 
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+
+        super.writeTo(out);
+
+        out.writeInt(number);
+        out.writeInt(epoch);
+        out.writeInt(paxosType);
+        out.writeInt(challenge);
+
+        MessageCodec.writeBytes(out, value);
+
+        if (proof == null) {
+            out.writeByte(NO_PROOF);
+        } else if (proof instanceof byte[]) {
+            out.writeByte(SIGNATURE);
+            MessageCodec.writeBytes(out, (byte[]) proof);
+        } else if (proof instanceof MerkleProof) {
+            out.writeByte(MERKLE_PROOF);
+            ((MerkleProof) proof).writeTo(out);
+        } else {
+            out.writeByte(OBJECT_PROOF);
+            MessageCodec.writeObject(out, proof);
+        }
+    }
+
+    @Override
+    public void readFrom(DataInput in) throws IOException {
+
+        super.readFrom(in);
+
+        number = in.readInt();
+        epoch = in.readInt();
+        paxosType = in.readInt();
+        challenge = in.readInt();
+
+        value = MessageCodec.readBytes(in);
+
+        byte kind = in.readByte();
+        switch (kind) {
+            case NO_PROOF:
+                proof = null;
+                break;
+            case SIGNATURE:
+                proof = MessageCodec.readBytes(in);
+                break;
+            case MERKLE_PROOF:
+                MerkleProof mp = new MerkleProof();
+                mp.readFrom(in);
+                proof = mp;
+                break;
+            case OBJECT_PROOF:
+                proof = MessageCodec.readObject(in, Object.class);
+                break;
+            default:
+                throw new IOException("Invalid proof kind " + kind);
+        }
+    }
+
     /**
      * Retrieves the epoch number to which this message belongs
      * @return Epoch to which this message belongs
@@ -233,6 +300,8 @@ public class ConsensusMessage extends SystemMessage {
             return "AUDIT";
         else if (paxosType==MessageFactory.STORAGE)
             return "STORAGE";
+        else if (paxosType==MessageFactory.FETCH)
+            return "FETCH";
         else
             return "";
     }
@@ -26,6 +26,7 @@ public class MessageFactory {
     public static final int ACCEPT = 44783;
     public static final int AUDIT = 44784;
     public static final int STORAGE = 44785;
+    public static final int FETCH = 44786;
 
     private int from; // Replica ID of the process which sent this message
 
@@ -86,6 +87,20 @@ public class MessageFactory {
 
     }
 
+    /**
+     * Creates a FETCH message, used to ask the leader for the full PROPOSE of
+     * a consensus when some of the requests in a digest PROPOSE are missing
+     * 
+     * @param id    Consensus's execution ID
+     * @param epoch Epoch number
+     * @return A consensus message of the FETCH type, with the specified id and epoch
+     */
+    public ConsensusMessage createFetch(int id, int epoch) {
+
+        return new ConsensusMessage(FETCH, id, epoch, from, null);
+
+    }
+
     /*************************** FORENSICS METHODS *******************************/
 
     /**
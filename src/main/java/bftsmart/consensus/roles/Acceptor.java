@@ -15,14 +15,9 @@
  */
 package bftsmart.consensus.roles;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.security.PrivateKey;
 import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,7 +34,7 @@ import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.messages.TOMMessageType;
-import bftsmart.tom.util.TOMUtil;
+import bftsmart.tom.util.BatchReader;
 
 /**
  * This class represents the acceptor role in the consensus protocol. This class
@@ -61,8 +56,13 @@ public final class Acceptor {
     private TOMLayer tomLayer; // TOM layer
     private ServerViewController controller;
 
-    // thread pool used to paralelise creation of consensus proofs
-    private ExecutorService proofExecutor = null;
+    // thread used to create consensus proofs, signing several of them at once
+    private ProofSigner proofSigner = null;
+
+    // a digest PROPOSE may arrive before some of its requests, which the leader received first:
+    // it is tried again every DIGEST_RETRY_DELAY ms, and only fetched after DIGEST_RETRIES tries
+    private static final long DIGEST_RETRY_DELAY = 5;
+    private static final int DIGEST_RETRIES = 4;
 
     /**
      * Tulio Ribeiro
@@ -111,7 +111,8 @@ public final class Acceptor {
          * = nWorkers > 0 ? nWorkers : Runtime.getRuntime().availableProcessors();
          * this.proofExecutor = Executors.newWorkStealingPool(nWorkers);
          */
-        this.proofExecutor = Executors.newSingleThreadExecutor();
+        this.proofSigner = new ProofSigner(privKey, controller.getStaticConf().getProofBatchSize());
+        this.proofSigner.start();
 
         if (controller.getStaticConf().useForensics()) {
             this.audit_provider = new AuditProvider(controller);
@@ -151,6 +152,10 @@ public final class Acceptor {
      * @param msg Paxos messages delivered by the communication layer
      */
     public final void deliver(ConsensusMessage msg) {
+        if (msg.getType() == MessageFactory.FETCH) {
+            executionManager.getProposer().fetchReceived(msg.getNumber(), msg.getEpoch(), msg.getSender());
+            return;
+        }
         if (msg.getType() == MessageFactory.AUDIT || msg.getType() == MessageFactory.STORAGE || executionManager.checkLimits(msg)) {
             logger.debug("Processing paxos msg with id " + msg.getNumber());
             processMessage(msg);
@@ -160,6 +165,41 @@ public final class Acceptor {
         }
     }
 
+    /**
+     * Replaces the value of a digest PROPOSE by the full batch, built from the
+     * pending requests of this replica. If some request is missing, the
+     * message is tried again later and delivered once resolved; after
+     * DIGEST_RETRIES tries, the full PROPOSE is requested from its sender.
+     *
+     * @param msg The digest PROPOSE message
+     * @param tries Number of times it was tried before
+     * @return true if the value was replaced, false if the message is not processed now
+     */
+    private boolean resolveDigests(ConsensusMessage msg, int tries) {
+        byte[] value = new BatchReader(msg.getValue(), controller.getStaticConf().getUseSignatures() == 1)
+                .resolveDigests(tomLayer.clientsManager);
+
+        if (value != null) {
+            msg.setValue(value);
+            return true;
+        }
+
+        if (msg.getNumber() <= tomLayer.getLastExec()) {
+            return false;
+        }
+        if (tries < DIGEST_RETRIES) {
+            controller.getTimerScheduler().schedule("digest PROPOSE " + msg.getNumber(), () -> {
+                if (resolveDigests(msg, tries + 1)) {
+                    deliver(msg); // checks the limits again, the consensus may have moved meanwhile
+                }
+            }, DIGEST_RETRY_DELAY);
+        } else {
+            logger.debug("Missing requests from digest PROPOSE for consensus " + msg.getNumber() + ", fetching it from " + msg.getSender());
+            communication.send(new int[]{msg.getSender()}, factory.createFetch(msg.getNumber(), msg.getEpoch()));
+        }
+        return false;
+    }
+
     /**
      * Called when a Consensus message is received or when a out of context message
      * must be processed. It processes the received message according to its type
@@ -167,6 +207,11 @@ public final class Acceptor {
      * @param msg The message to be processed
      */
     public final void processMessage(ConsensusMessage msg) {
+        // resolved only now, so that out of context PROPOSEs are not resolved (or fetched) before their turn
+        if (msg.getType() == MessageFactory.PROPOSE && BatchReader.isDigestBatch(msg.getValue()) && !resolveDigests(msg, 0)) {
+            return;
+        }
+
         Consensus consensus = executionManager.getConsensus(msg.getNumber());
 
         consensus.lock.lock();
@@ -245,7 +290,7 @@ public final class Acceptor {
             /*****************************************/
 
             // start this consensus if it is not already running
-            if (cid == tomLayer.getLastExec() + 1) {
+            if (cid == tomLayer.getLastExec() + 1 || (tomLayer.isPipelined() && cid > tomLayer.getLastExec())) {
                 tomLayer.setInExec(cid);
             }
             epoch.deserializedPropValue = tomLayer.checkProposedValue(value, true);
@@ -270,15 +315,20 @@ public final class Acceptor {
                      * Forensics
                      */
                     ConsensusMessage writeMessage = factory.createWrite(cid, epoch.getTimestamp(), epoch.propValueHash);
-                    insertProof(writeMessage, epoch.deserializedPropValue); // insert proof in write message
-                    epoch.addWriteProof(writeMessage);
+                    int[] targets = this.controller.getCurrentViewOtherAcceptors();
+                    proofSigner.submit(writeMessage, () -> { // insert proof in write message
+
+                        // must not take the consensus lock here, since the thread holding it
+                        // may be waiting for this signer to create the speculative ACCEPT
+                        epoch.addWriteProof(writeMessage);
+
+                        logger.debug("Sending WRITE for cId:{}, I am:{}", cid, me);
+                        communication.send(targets, writeMessage);
+                    });
                     /**
                      *
                      */
 
-                    logger.debug("Sending WRITE for cId:{}, I am:{}", cid, me);
-                    communication.send(this.controller.getCurrentViewOtherAcceptors(), writeMessage);
-
                     epoch.writeSent();
 
                     computeWrite(cid, epoch, epoch.propValueHash);
@@ -286,19 +336,14 @@ public final class Acceptor {
                     logger.debug("WRITE computed for cId:{}, I am:{}", cid, me);
 
                 } else {
-                    epoch.setAccept(me, epoch.propValueHash);
                     epoch.getConsensus().getDecision().firstMessageProposed.writeSentTime = System.nanoTime();
-                    epoch.getConsensus().getDecision().firstMessageProposed.acceptSentTime = System.nanoTime();
 
-                    /**** LEADER CHANGE CODE! ******/
-                    logger.debug("[CFT Mode] Setting consensus " + cid + " QuorumWrite tiemstamp to " + epoch.getConsensus().getEts() + " and value " + Arrays.toString(epoch.propValueHash));
-                    epoch.getConsensus().setQuorumWrites(epoch.propValueHash);
-                    /*****************************************/
-
-                    communication.send(this.controller.getCurrentViewOtherAcceptors(), factory.createAccept(cid, epoch.getTimestamp(), epoch.propValueHash));
-
-                    epoch.acceptSent();
-                    computeAccept(cid, epoch, epoch.propValueHash);
+                    if (canSendAccept(cid)) {
+                        sendAccept(cid, epoch);
+                    } else {
+                        logger.debug("[CFT Mode] Deferring ACCEPT for consensus " + cid + " until consensus " + (cid - 1) + " is decided");
+                        epoch.acceptDeferred();
+                    }
                 }
                 executionManager.processOutOfContext(epoch.getConsensus());
 
@@ -309,6 +354,63 @@ public final class Acceptor {
         }
     }
 
+    /**
+     * Sends the ACCEPT message of this replica in crash fault tolerant mode,
+     * where no WRITE phase exists.
+     *
+     * @param cid   Consensus ID
+     * @param epoch the current epoch of the consensus
+     */
+    private void sendAccept(int cid, Epoch epoch) {
+        epoch.setAccept(me, epoch.propValueHash);
+        epoch.getConsensus().getDecision().firstMessageProposed.acceptSentTime = System.nanoTime();
+
+        /**** LEADER CHANGE CODE! ******/
+        logger.debug("[CFT Mode] Setting consensus " + cid + " QuorumWrite tiemstamp to " + epoch.getConsensus().getEts() + " and value " + Arrays.toString(epoch.propValueHash));
+        epoch.getConsensus().setQuorumWrites(epoch.propValueHash);
+        /*****************************************/
+
+        communication.send(this.controller.getCurrentViewOtherAcceptors(), factory.createAccept(cid, epoch.getTimestamp(), epoch.propValueHash));
+
+        epoch.acceptSent();
+        computeAccept(cid, epoch, epoch.propValueHash);
+    }
+
+    /**
+     * With pipelining, a replica only sends its ACCEPT for a consensus after
+     * deciding the previous one. Thus, any consensus decided by a correct
+     * replica is always above the last decided consensus of some correct replica
+     * by at most one, which is what the leader change protocol assumes.
+     *
+     * @param cid Consensus ID
+     * @return True if the ACCEPT message can be sent now, false otherwise
+     */
+    private boolean canSendAccept(int cid) {
+        return !tomLayer.isPipelined() || cid <= tomLayer.getLastExec() + 1;
+    }
+
+    /**
+     * Sends the ACCEPT message of a pipelined consensus that was held back
+     * because the previous consensus was not yet decided.
+     *
+     * @param cid Consensus ID
+     */
+    public void sendDeferredAccept(int cid) {
+        Consensus consensus = executionManager.getConsensus(cid);
+
+        consensus.lock.lock();
+        Epoch epoch = consensus.getLastEpoch();
+        if (epoch != null && epoch.isAcceptDeferred() && !epoch.isAcceptSent() && !consensus.isDecided()) {
+            logger.debug("Sending deferred ACCEPT for consensus " + cid);
+            if (controller.getStaticConf().isBFT()) {
+                computeWrite(cid, epoch, epoch.propValueHash);
+            } else {
+                sendAccept(cid, epoch);
+            }
+        }
+        consensus.lock.unlock();
+    }
+
     /**
      * Called when a WRITE message is received
      *
@@ -347,7 +449,9 @@ public final class Acceptor {
         // Logger.println("(Acceptor.computeWrite) I have " + writeAccepted +
         // " WRITEs for " + eid + "," + round.getNumber());
 
-        logger.debug(" I have " + writeWeigths + " WRITEs weigths  and " + epoch.countWrite(value) + " WRITE messages for " + cid + "," + epoch.getTimestamp());
+        if (logger.isDebugEnabled()) {
+            logger.debug(" I have " + writeWeigths + " WRITEs weigths  and " + epoch.countWrite(value) + " WRITE messages for " + cid + "," + epoch.getTimestamp());
+        }
 
         // code for classic quorums
         // if (writeAccepted > controller.getQuorum() && Arrays.equals(value,
@@ -362,6 +466,12 @@ public final class Acceptor {
                 decide(epoch);
             } else if (!epoch.isAcceptSent()) { // code for standard execution
 
+                if (!canSendAccept(cid)) { // pipelining: ACCEPTs are only sent in consensus order
+                    logger.debug("Deferring ACCEPT for consensus " + cid + " until consensus " + (cid - 1) + " is decided");
+                    epoch.acceptDeferred();
+                    return;
+                }
+
                 /**
                  * Forensics
                  * Who partecipated in write quorum
@@ -403,15 +513,9 @@ public final class Acceptor {
 
                     ConsensusMessage correctAccept = factory.createAccept(cid, epoch.getTimestamp(), value);
 
-                    proofExecutor.submit(() -> {
-
-                        // Create a cryptographic proof for this ACCEPT message
-                        logger.debug("Creating cryptographic proof for the correct ACCEPT message from consensus " + cid);
-                        insertProof(correctAccept, epoch.deserializedPropValue);
-
-                        communication.getServersConn().send(targets, correctAccept, true);
-
-                    });
+                    // Create a cryptographic proof for this ACCEPT message
+                    logger.debug("Creating cryptographic proof for the correct ACCEPT message from consensus " + cid);
+                    proofSigner.submit(correctAccept, () -> communication.getServersConn().send(targets, correctAccept, true));
                 }
 
             }
@@ -423,47 +527,12 @@ public final class Acceptor {
             ConsensusMessage cm = factory.createAccept(cid, epoch.getTimestamp(), value);
             epoch.acceptCreated();
 
-            proofExecutor.submit(() -> {
-
-                // Create a cryptographic proof for this ACCEPT message
-                logger.debug("Creating cryptographic proof for speculative ACCEPT message from consensus " + cid);
-                insertProof(cm, epoch.deserializedPropValue);
-
-                epoch.setAcceptMsg(cm);
-
-            });
+            // Create a cryptographic proof for this ACCEPT message
+            logger.debug("Creating cryptographic proof for speculative ACCEPT message from consensus " + cid);
+            proofSigner.submit(cm, () -> epoch.setAcceptMsg(cm));
         }
     }
 
-    /**
-     * Create a cryptographic proof for a consensus message
-     * <p>
-     * This method modifies the consensus message passed as an argument, so that it
-     * contains a cryptographic proof.
-     *
-     * @param cm   The consensus message to which the proof shall be set
-     * @param msgs messages
-     */
-    private void insertProof(ConsensusMessage cm, TOMMessage[] msgs) {
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
-        try {
-            ObjectOutputStream obj = new ObjectOutputStream(bOut);
-            obj.writeObject(cm);
-            obj.flush();
-            bOut.flush();
-        } catch (IOException ex) {
-            logger.error("Failed to serialize consensus message", ex);
-        }
-
-        byte[] data = bOut.toByteArray();
-
-        // Always sign a consensus proof.
-        byte[] signature = TOMUtil.signMessage(privKey, data);
-
-        cm.setProof(signature);
-
-    }
-
     /**
      * Called when a ACCEPT message is received
      *
@@ -492,7 +561,9 @@ public final class Acceptor {
         // " ACCEPTs for " + eid + "," + round.getNumber());
 
         double acceptWeights = epoch.countAcceptWeigths(value);
-        logger.debug("I have " + acceptWeights + " ACCEPT weigths and " + epoch.countAccept(value) + " ACCEPT messages for " + cid + "," + epoch.getTimestamp());
+        if (logger.isDebugEnabled()) {
+            logger.debug("I have " + acceptWeights + " ACCEPT weigths and " + epoch.countAccept(value) + " ACCEPT messages for " + cid + "," + epoch.getTimestamp());
+        }
 
         // normal code, for classic quorums
         // if (round.countAccept(value) > controller.getQuorum() &&
@@ -0,0 +1,181 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.consensus.roles;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.consensus.messages.ConsensusMessage;
+import bftsmart.tom.util.MerkleProof;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Thread that creates the cryptographic proofs of WRITE and ACCEPT messages.
+ *
+ * Every time it wakes up, it takes all the messages that are waiting for a
+ * proof (up to the configured batch size) and signs them with a single
+ * signature over the root of a Merkle tree built from the serialized
+ * messages. Under low load each batch holds one message, which gets a plain
+ * signature as before; under high load the number of signatures per second
+ * drops by the size of the batches.
+ */
+public class ProofSigner extends Thread {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final PrivateKey privKey;
+    private final int maxBatch;
+    private final LinkedBlockingQueue<Pending> pending = new LinkedBlockingQueue<>();
+
+    private volatile long signatures = 0; // number of signatures created so far
+    private volatile long proofs = 0; // number of proofs created so far
+
+    /**
+     * Message waiting for its proof, and what to do once the proof is set
+     */
+    private static class Pending {
+
+        final ConsensusMessage cm;
+        final Runnable onSigned;
+
+        Pending(ConsensusMessage cm, Runnable onSigned) {
+            this.cm = cm;
+            this.onSigned = onSigned;
+        }
+    }
+
+    /**
+     * Creates a new proof signer
+     *
+     * @param privKey  Private key of this replica
+     * @param maxBatch Maximum number of messages covered by a single signature
+     */
+    public ProofSigner(PrivateKey privKey, int maxBatch) {
+        super("Proof Signer");
+        setDaemon(true);
+
+        this.privKey = privKey;
+        this.maxBatch = Math.max(1, maxBatch);
+    }
+
+    /**
+     * Queues a consensus message to receive a cryptographic proof. The callback
+     * is executed by this thread right after the proof is set in the message.
+     *
+     * @param cm       The consensus message to which the proof shall be set
+     * @param onSigned What to do with the message afterwards (may be null)
+     */
+    public void submit(ConsensusMessage cm, Runnable onSigned) {
+        pending.add(new Pending(cm, onSigned));
+    }
+
+    @Override
+    public void run() {
+        ArrayList<Pending> batch = new ArrayList<>(maxBatch);
+
+        while (true) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException ex) {
+                logger.warn("Proof signer interrupted, stopping", ex);
+                return;
+            }
+            pending.drainTo(batch, maxBatch - 1);
+
+            sign(batch);
+
+            for (Pending p : batch) {
+                if (p.onSigned == null) continue;
+                try {
+                    p.onSigned.run();
+                } catch (Exception ex) {
+                    logger.error("Failed to process signed message " + p.cm, ex);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private void sign(ArrayList<Pending> batch) {
+        byte[][] data = new byte[batch.size()][];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = serialize(batch.get(i).cm);
+        }
+
+        signatures++;
+        proofs += data.length;
+
+        if (data.length == 1) {
+            batch.get(0).cm.setProof(TOMUtil.signMessage(privKey, data[0]));
+            return;
+        }
+
+        try {
+            byte[][][] tree = MerkleProof.buildTree(data);
+            byte[] signature = TOMUtil.signMessage(privKey, tree[tree.length - 1][0]);
+
+            for (int i = 0; i < data.length; i++) {
+                batch.get(i).cm.setProof(new MerkleProof(signature, i, data.length, MerkleProof.pathOf(tree, i)));
+            }
+        } catch (NoSuchAlgorithmException ex) {
+            logger.error("Failed to build Merkle tree, signing messages individually", ex);
+            for (int i = 0; i < data.length; i++) {
+                batch.get(i).cm.setProof(TOMUtil.signMessage(privKey, data[i]));
+            }
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Signed " + data.length + " proofs with one signature (" + proofs + " proofs and "
+                    + signatures + " signatures so far)");
+        }
+    }
+
+    private byte[] serialize(ConsensusMessage cm) {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+        try {
+            ObjectOutputStream obj = new ObjectOutputStream(bOut);
+            obj.writeObject(cm);
+            obj.flush();
+            bOut.flush();
+        } catch (IOException ex) {
+            logger.error("Failed to serialize consensus message", ex);
+        }
+
+        return bOut.toByteArray();
+    }
+
+    /**
+     * @return Number of signatures created so far
+     */
+    public long getSignatures() {
+        return signatures;
+    }
+
+    /**
+     * @return Number of proofs created so far
+     */
+    public long getProofs() {
+        return proofs;
+    }
+}
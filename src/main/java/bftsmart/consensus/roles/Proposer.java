@@ -15,9 +15,16 @@ limitations under the License.
 */
 package bftsmart.consensus.roles;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.consensus.messages.MessageFactory;
 import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.util.BatchBuilder;
 
 /**
  * This class represents the proposer role in the consensus protocol.
@@ -28,6 +35,11 @@ public class Proposer {
     private ServerCommunicationSystem communication; // Replicas comunication system
     private ServerViewController controller;
 
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    // Values recently proposed with digest PROPOSEs, kept to answer FETCH messages
+    private Map<Integer, byte[]> proposed;
+
     /**
      * Creates a new instance of Proposer
      * 
@@ -41,6 +53,14 @@ public class Proposer {
         this.communication = communication;
         this.factory = factory;
         this.controller = controller;
+
+        final int highMark = controller.getStaticConf().getPaxosHighMark();
+        this.proposed = new LinkedHashMap<Integer, byte[]>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > highMark;
+            }
+        };
     }
 
     /**
@@ -51,9 +71,53 @@ public class Proposer {
      * @param value Value to be proposed
      */
     public void startConsensus(int cid, byte[] value) {
+        if (controller.getStaticConf().isDigestPropose()) {
+            byte[] digests = null;
+            try {
+                digests = BatchBuilder.makeDigestBatch(value, controller.getStaticConf().getUseSignatures() == 1);
+            } catch (Exception e) {
+                logger.error("Failed to create digest PROPOSE for consensus " + cid + ", sending the full batch", e);
+            }
+
+            if (digests != null) {
+                synchronized (proposed) {
+                    proposed.put(cid, value);
+                }
+
+                // the leader processes its own PROPOSE with the full value
+                communication.send(new int[]{controller.getStaticConf().getProcessId()},
+                        factory.createPropose(cid, 0, value));
+                communication.send(this.controller.getCurrentViewOtherAcceptors(),
+                        factory.createPropose(cid, 0, digests));
+                return;
+            }
+        }
+
         //******* EDUARDO BEGIN **************//
         communication.send(this.controller.getCurrentViewAcceptors(),
                 factory.createPropose(cid, 0, value));
         //******* EDUARDO END **************//
     }
+
+    /**
+     * Called when a replica could not rebuild a digest PROPOSE from its
+     * pending requests. Sends it the full PROPOSE, if still available.
+     *
+     * @param cid ID of the consensus instance
+     * @param epoch Epoch of the PROPOSE
+     * @param sender Replica that asked for the PROPOSE
+     */
+    public void fetchReceived(int cid, int epoch, int sender) {
+        byte[] value;
+        synchronized (proposed) {
+            value = proposed.get(cid);
+        }
+
+        if (value != null) {
+            logger.debug("Sending full PROPOSE for consensus " + cid + " to replica " + sender);
+            communication.send(new int[]{sender}, factory.createPropose(cid, epoch, value));
+        } else {
+            logger.debug("Replica " + sender + " asked for PROPOSE of consensus " + cid + ", which is no longer available");
+        }
+    }
 }
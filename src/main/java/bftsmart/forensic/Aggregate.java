@@ -66,7 +66,8 @@ public class Aggregate implements Serializable {
         }
 
         for (Integer id : get_senders()) {
-            builder.append(id + "\t" + Base64.getEncoder().encodeToString((byte[]) agg.get(id)) + "\n");
+            Object proof = agg.get(id);
+            builder.append(id + "\t" + (proof instanceof byte[] ? Base64.getEncoder().encodeToString((byte[]) proof) : String.valueOf(proof)) + "\n");
         }
 
         builder.append("value = " + Base64.getEncoder().encodeToString(value));
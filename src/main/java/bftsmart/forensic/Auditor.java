@@ -115,13 +115,13 @@ public class Auditor {
 
         for (Integer sender_id : agg.get_senders()) {
 
-            byte[] proof = (byte[]) agg.getProofs().get(sender_id);
+            Object proof = agg.getProofs().get(sender_id); // plain signature or MerkleProof
             ConsensusMessage dummi = new ConsensusMessage(type, consensus_id, agg.getEpoch(sender_id), sender_id,
                     value);
 
             byte[] data = TOMUtil.getBytes(dummi);
 
-            boolean valid = TOMUtil.verifySignature(controller.getStaticConf().getPublicKey(sender_id), data, proof);
+            boolean valid = TOMUtil.verifyProof(controller.getStaticConf().getPublicKey(sender_id), data, proof);
 
             if (!valid) {
                 System.out.println(String.format("signature is incorrect from sender %d in consensus %d", sender_id,
@@ -27,6 +27,7 @@ import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.util.KeyLoader;
 import bftsmart.tom.util.TOMUtil;
+import bftsmart.tom.util.TimerScheduler;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,6 +59,8 @@ public class ServerViewController extends ViewController {
 
     private int last_checkpoint;
 
+    private TimerScheduler timerScheduler = null;
+
     /**
      * Mercury
      */
@@ -410,4 +413,16 @@ public class ServerViewController extends ViewController {
     public AuditProvider getAuditProvider() {
         return auditProvider;
     }
+
+    /**
+     * @return the scheduler running all the timers of this replica. It is
+     * kept when the replica restarts, as the AWARE timers are.
+     */
+    public synchronized TimerScheduler getTimerScheduler() {
+        if (timerScheduler == null) {
+            timerScheduler = new TimerScheduler("timers-" + getStaticConf().getProcessId(),
+                    getStaticConf().getTimerThreads());
+        }
+        return timerScheduler;
+    }
 }
@@ -15,10 +15,13 @@ limitations under the License.
 */
 package bftsmart.reconfiguration;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 
+import bftsmart.communication.MessageCodec;
 import bftsmart.communication.SystemMessage;
 
 /**
@@ -55,6 +58,18 @@ public class VMMessage extends SystemMessage{
         this.reply = (ReconfigureReply) in.readObject();
     }
 
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        super.writeTo(out);
+        MessageCodec.writeObject(out, reply);
+    }
+
+    @Override
+    public void readFrom(DataInput in) throws IOException {
+        super.readFrom(in);
+        this.reply = MessageCodec.readObject(in, ReconfigureReply.class);
+    }
+
     public ReconfigureReply getReply() {
         return reply;
     }
@@ -33,8 +33,11 @@ public class TOMConfiguration extends Configuration {
     protected int f;
     protected int requestTimeout;
     protected int batchTimeout;
+    protected int timerThreads;
     protected int tomPeriod;
     protected int paxosHighMark;
+    protected int pipelineDepth;
+    protected boolean digestPropose;
     protected int revivalHighMark;
     protected int timeoutHighMark;
     protected int replyVerificationTime;
@@ -43,11 +46,19 @@ public class TOMConfiguration extends Configuration {
     protected int numberOfNonces;
     protected int inQueueSize;
     protected int outQueueSize;
+    protected int coalesceMaxBytes;
+    protected int coalesceMaxMessages;
+    protected int creditWindow;
+    protected int bulkChunkSize;
+    protected long bulkRate;
+    protected int maxMessageSize;
     protected boolean shutdownHookEnabled;
     protected boolean useSenderThread;
+    protected String serversTransport;
     private int numNIOThreads;
     private int useSignatures;
     private boolean stateTransferEnabled;
+    private int stateChunkSize;
     private int checkpointPeriod;
     private int globalCheckpointPeriod;
     private int useControlFlow;
@@ -60,8 +71,11 @@ public class TOMConfiguration extends Configuration {
     private boolean logToDisk;
     private boolean isToWriteCkpsToDisk;
     private boolean syncCkp;
+    private int checkpointDeltas;
+    private long logSegmentSize;
     private boolean isBFT;
     private int numRepliers;
+    private int executionThreads;
     private int numNettyWorkers;
     private boolean sameBatchSize;
     private boolean fairbatch;
@@ -106,6 +120,7 @@ public class TOMConfiguration extends Configuration {
     private int forensicsInterval;
     private boolean leaderAudit;
     private int auditthreads;
+    private int proofBatchSize;
 
     /** Creates a new instance of TOMConfiguration */
     public TOMConfiguration(int processId, KeyLoader loader) {
@@ -159,6 +174,13 @@ public class TOMConfiguration extends Configuration {
                 }
             }
 
+            s = (String) configs.remove("system.totalordermulticast.timerThreads");
+            if (s == null) {
+                timerThreads = 2;
+            } else {
+                timerThreads = Math.max(1, Integer.parseInt(s));
+            }
+
             s = (String) configs.remove("system.totalordermulticast.highMark");
             if (s == null) {
                 paxosHighMark = 10000;
@@ -169,6 +191,21 @@ public class TOMConfiguration extends Configuration {
                 }
             }
 
+            s = (String) configs.remove("system.totalordermulticast.pipeline");
+            if (s == null) {
+                pipelineDepth = 1;
+            } else {
+                pipelineDepth = Integer.parseInt(s);
+                if (pipelineDepth < 1) {
+                    pipelineDepth = 1;
+                } else if (pipelineDepth > paxosHighMark / 2) {
+                    pipelineDepth = paxosHighMark / 2;
+                }
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.digestpropose");
+            digestPropose = s != null && Boolean.parseBoolean(s);
+
             s = (String) configs.remove("system.totalordermulticast.revival_highMark");
             if (s == null) {
                 revivalHighMark = 10;
@@ -227,6 +264,13 @@ public class TOMConfiguration extends Configuration {
                 useSenderThread = Boolean.parseBoolean(s);
             }
 
+            s = (String) configs.remove("system.communication.serversTransport");
+            if (s == null) {
+                serversTransport = "socket";
+            } else {
+                serversTransport = s.trim().toLowerCase();
+            }
+
             s = (String) configs.remove("system.communication.numNIOThreads");
             if (s == null) {
                 numNIOThreads = 2;
@@ -248,6 +292,13 @@ public class TOMConfiguration extends Configuration {
                 stateTransferEnabled = Boolean.parseBoolean(s);
             }
 
+            s = (String) configs.remove("system.totalordermulticast.state_chunk_size");
+            if (s == null) {
+                stateChunkSize = 0;
+            } else {
+                stateChunkSize = Math.max(0, Integer.parseInt(s));
+            }
+
             s = (String) configs.remove("system.totalordermulticast.checkpoint_period");
             if (s == null) {
                 checkpointPeriod = 1;
@@ -315,6 +366,48 @@ public class TOMConfiguration extends Configuration {
                 }
             }
 
+            s = (String) configs.remove("system.communication.coalesceMaxBytes");
+            if (s == null) {
+                coalesceMaxBytes = 65536;
+            } else {
+                coalesceMaxBytes = Math.max(1, Integer.parseInt(s));
+            }
+
+            s = (String) configs.remove("system.communication.coalesceMaxMessages");
+            if (s == null) {
+                coalesceMaxMessages = 128;
+            } else {
+                coalesceMaxMessages = Math.max(1, Integer.parseInt(s));
+            }
+
+            s = (String) configs.remove("system.communication.creditWindow");
+            if (s == null) {
+                creditWindow = 1024;
+            } else {
+                creditWindow = Math.max(0, Integer.parseInt(s));
+            }
+
+            s = (String) configs.remove("system.communication.bulkChunkSize");
+            if (s == null) {
+                bulkChunkSize = 65536;
+            } else {
+                bulkChunkSize = Math.max(1024, Integer.parseInt(s));
+            }
+
+            s = (String) configs.remove("system.communication.bulkRate");
+            if (s == null) {
+                bulkRate = 0;
+            } else {
+                bulkRate = Math.max(0, Long.parseLong(s));
+            }
+
+            s = (String) configs.remove("system.communication.maxMessageSize");
+            if (s == null) {
+                maxMessageSize = 256 * 1024 * 1024;
+            } else {
+                maxMessageSize = Math.max(1024 * 1024, Integer.parseInt(s));
+            }
+
             s = (String) configs.remove("system.totalordermulticast.log");
             if (s != null) {
                 isToLog = Boolean.parseBoolean(s);
@@ -362,6 +455,20 @@ public class TOMConfiguration extends Configuration {
                 syncCkp = Boolean.parseBoolean(s);
             }
 
+            s = (String) configs.remove("system.totalordermulticast.log_segment_size");
+            if (s == null) {
+                logSegmentSize = 0;
+            } else {
+                logSegmentSize = Math.max(0, Long.parseLong(s));
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.checkpoint_deltas");
+            if (s == null) {
+                checkpointDeltas = 10;
+            } else {
+                checkpointDeltas = Math.max(0, Integer.parseInt(s));
+            }
+
             s = (String) configs.remove("system.totalordermulticast.global_checkpoint_period");
             if (s == null) {
                 globalCheckpointPeriod = 1;
@@ -379,6 +486,13 @@ public class TOMConfiguration extends Configuration {
                 numRepliers = Integer.parseInt(s);
             }
 
+            s = (String) configs.remove("system.executionthreads");
+            if (s == null) {
+                executionThreads = 0;
+            } else {
+                executionThreads = Math.max(0, Integer.parseInt(s));
+            }
+
             s = (String) configs.remove("system.numnettyworkers");
             if (s == null) {
                 numNettyWorkers = 0;
@@ -416,6 +530,11 @@ public class TOMConfiguration extends Configuration {
             s = (String) configs.remove("system.tentative");
             tentative = (s != null) ? Boolean.parseBoolean(s) : false;
 
+            if (tentative && pipelineDepth > 1) {
+                logger.warn("Tentative execution does not support pipelined consensus, using a pipeline depth of 1");
+                pipelineDepth = 1;
+            }
+
             /** AWARE **/
 
             s = (String) configs.remove("system.initial.leader");
@@ -537,6 +656,9 @@ public class TOMConfiguration extends Configuration {
             s = (String) configs.remove("system.mercury.auditthreads");
             auditthreads = s == null ? 1 : Integer.parseInt(s);
 
+            s = (String) configs.remove("system.mercury.proofbatch");
+            proofBatchSize = s == null ? 1 : Math.max(1, Integer.parseInt(s));
+
         } catch (Exception e) {
             logger.error("Could not parse system configuration file", e);
         }
@@ -573,6 +695,14 @@ public class TOMConfiguration extends Configuration {
         return batchTimeout;
     }
 
+    /**
+     * @return Number of threads running the timers of the replica (request,
+     * STOP, batch, state transfer and AWARE timers)
+     */
+    public int getTimerThreads() {
+        return timerThreads;
+    }
+
     public int getReplyVerificationTime() {
         return replyVerificationTime;
     }
@@ -589,6 +719,24 @@ public class TOMConfiguration extends Configuration {
         return paxosHighMark;
     }
 
+    /**
+     * Maximum number of consensus instances the leader may run concurrently.
+     * A value of 1 disables pipelining, i.e., a new instance is only started
+     * once the previous one is decided.
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * If true, the leader sends the other replicas only the digests of the
+     * requests in a PROPOSE, and they take the request bodies from their own
+     * pending requests.
+     */
+    public boolean isDigestPropose() {
+        return digestPropose;
+    }
+
     public int getRevivalHighMark() {
         return revivalHighMark;
     }
@@ -618,6 +766,14 @@ public class TOMConfiguration extends Configuration {
         return stateTransferEnabled;
     }
 
+    /**
+     * Size of the chunks in which the state is fetched from all the other
+     * replicas at once, 0 to fetch it whole from a single replica
+     */
+    public int getStateChunkSize() {
+        return stateChunkSize;
+    }
+
     public int getInQueueSize() {
         return inQueueSize;
     }
@@ -626,10 +782,64 @@ public class TOMConfiguration extends Configuration {
         return outQueueSize;
     }
 
+    /**
+     * @return Maximum number of bytes written to a replica in a single flush
+     */
+    public int getCoalesceMaxBytes() {
+        return coalesceMaxBytes;
+    }
+
+    /**
+     * @return Maximum number of messages written to a replica in a single flush
+     */
+    public int getCoalesceMaxMessages() {
+        return coalesceMaxMessages;
+    }
+
+    /**
+     * @return Maximum number of messages sent to a replica and not yet
+     * processed by it, 0 if there is no flow control between replicas
+     */
+    public int getCreditWindow() {
+        return creditWindow;
+    }
+
+    /**
+     * @return Size of the chunks in which large state transfer, STORAGE and
+     * SYNC messages are sent to a replica
+     */
+    public int getBulkChunkSize() {
+        return bulkChunkSize;
+    }
+
+    /**
+     * @return Maximum number of bytes per second of large messages sent to
+     * each replica, 0 if unlimited
+     */
+    public long getBulkRate() {
+        return bulkRate;
+    }
+
+    /**
+     * @return Maximum size of a message received from another replica,
+     * including the ones received in chunks
+     */
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
     public boolean isUseSenderThread() {
         return useSenderThread;
     }
 
+    /**
+     * @return true if the replicas talk to each other through Netty, false if
+     * they use the socket based transport
+     */
+    public boolean isUseNettyServersTransport() {
+        return "netty".equals(serversTransport);
+    }
+
     /**
      * *
      */
@@ -666,6 +876,14 @@ public class TOMConfiguration extends Configuration {
         return syncCkp;
     }
 
+    /**
+     * Number of incremental checkpoints kept on disk after a full one, before
+     * they are merged into a new full checkpoint
+     */
+    public int getCheckpointDeltas() {
+        return checkpointDeltas;
+    }
+
     public boolean isToLog() {
         return isToLog;
     }
@@ -678,8 +896,18 @@ public class TOMConfiguration extends Configuration {
         return logToDisk;
     }
 
+    /**
+     * Size to which each log file is preallocated, in bytes (0 not to
+     * preallocate them)
+     */
+    public long getLogSegmentSize() {
+        return logSegmentSize;
+    }
+
+    /**
+     * Indicates if the log of a batch is written while it is executed
+     */
     public boolean isToLogParallel() {
-        // TODO Auto-generated method stub
         return parallelLog;
     }
 
@@ -716,6 +944,14 @@ public class TOMConfiguration extends Configuration {
         return numRepliers;
     }
 
+    /**
+     * @return Number of threads executing the commands of a ParallelExecutable,
+     * 0 for one for each core
+     */
+    public int getExecutionThreads() {
+        return executionThreads;
+    }
+
     public boolean getFairBatch() {
         return fairbatch;
     }
@@ -863,4 +1099,8 @@ public class TOMConfiguration extends Configuration {
     public int getNumberOfAuditThreads(){
         return auditthreads;
     }
+
+    public int getProofBatchSize(){
+        return proofBatchSize;
+    }
 }
@@ -17,6 +17,7 @@ package bftsmart.statemanagement;
 
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.leaderchange.CertifiedDecision;
+import bftsmart.tom.util.TOMUtil;
 
 import java.io.Serializable;
 
@@ -69,6 +70,15 @@ public interface ApplicationState extends Serializable {
      */
     public byte[] getStateHash();
 
+    /**
+     * Computes the hash of the state in this object, to be compared with the
+     * hash sent by other replicas (getStateHash)
+     * @return Secure hash of the serialized state
+     */
+    public default byte[] computeStateHash() {
+        return TOMUtil.computeHash(getSerializedState());
+    }
+
     /**
      * This method MUST be implemented. However, the attribute returned by getSerializedState()
      * should be ignored, and getStateHash() should be used instead
@@ -15,10 +15,13 @@ limitations under the License.
 */
 package bftsmart.statemanagement;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 
+import bftsmart.communication.MessageCodec;
 import bftsmart.communication.SystemMessage;
 import bftsmart.reconfiguration.views.View;
 import bftsmart.tom.util.TOMUtil;
@@ -136,4 +139,26 @@ public abstract class SMMessage extends SystemMessage {
         state = (ApplicationState) in.readObject();
         view = (View) in.readObject();
     }
+
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeInt(cid);
+        out.writeInt(type);
+        out.writeInt(regency);
+        out.writeInt(leader);
+        MessageCodec.writeObject(out, state);
+        MessageCodec.writeObject(out, view);
+    }
+
+    @Override
+    public void readFrom(DataInput in) throws IOException {
+        super.readFrom(in);
+        cid = in.readInt();
+        type = in.readInt();
+        regency = in.readInt();
+        leader = in.readInt();
+        state = MessageCodec.readObject(in, ApplicationState.class);
+        view = MessageCodec.readObject(in, View.class);
+    }
 }
@@ -380,4 +380,22 @@ public abstract class StateManager {
      */
     public abstract void SMReplyDeliver(SMMessage msg, boolean isBFT);
 
+    /**
+     * Invoked when a replica asks for some chunks of the application state. Only
+     * state managers that transfer the state in chunks need to override it.
+     * @param msg The message sent by the replica, of type 'SM_CHUNK_REQUEST'.
+     */
+    public void SMChunkRequestDeliver(SMMessage msg) {
+        logger.debug("Ignoring request for state chunks from replica " + msg.getSender());
+    }
+
+    /**
+     * Invoked when a replica receives a chunk of the application state it asked for.
+     * @param msg The message sent by the replica, of type 'SM_CHUNK_REPLY'.
+     * @param isBFT true if the library is set for BFT, false if CFT
+     */
+    public void SMChunkReplyDeliver(SMMessage msg, boolean isBFT) {
+        logger.debug("Ignoring state chunk from replica " + msg.getSender());
+    }
+
 }
@@ -15,10 +15,13 @@ limitations under the License.
 */
 package bftsmart.statemanagement.durability;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 
+import bftsmart.communication.MessageCodec;
 import bftsmart.reconfiguration.views.View;
 import bftsmart.statemanagement.ApplicationState;
 import bftsmart.statemanagement.SMMessage;
@@ -51,5 +54,17 @@ public class CSTSMMessage extends SMMessage {
         super.readExternal(in);
         cstConfig = (CSTRequestF1)in.readObject();
     }
+
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        super.writeTo(out);
+        MessageCodec.writeObject(out, cstConfig);
+    }
+
+    @Override
+    public void readFrom(DataInput in) throws IOException {
+        super.readFrom(in);
+        cstConfig = MessageCodec.readObject(in, CSTRequestF1.class);
+    }
 	
 }
@@ -21,8 +21,14 @@ import bftsmart.statemanagement.ApplicationState;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.leaderchange.CertifiedDecision;
 import bftsmart.tom.server.defaultservices.CommandsInfo;
+import bftsmart.tom.server.defaultservices.LogSegment;
 import bftsmart.tom.util.BatchBuilder;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
 import java.util.LinkedList;
 import java.util.Set;
 
@@ -39,6 +45,10 @@ import java.util.Set;
  * This object must be passed to the state manager class which will combine the
  * replies from the seeders, validating the values and updating the state in the
  * leecher.
+ *
+ * When received in a CSTStream, the checkpoint and the log are not in the
+ * object but in files, and the batches are read from the file one at a time
+ * by getMessageBatch, in order.
  * 
  * @author Marcel Santos
  *
@@ -60,6 +70,15 @@ public class CSTState implements ApplicationState {
     private byte[] state;
 
     private final int pid;
+
+    // parts of the state received in a stream (see CSTStream)
+    private transient String checkpointFile; // in the format of a checkpoint file
+    private transient long checkpointSize;
+    private transient String logFile; // in the format of a log file
+    private transient int logRecords;
+    private transient byte[] logHash; // of the contents of the records
+    private transient RandomAccessFile logReader;
+    private transient int nextRecord;
     
     public CSTState(byte[] state, byte[] hashCheckpoint, CommandsInfo[] logLower, byte[] hashLogLower,
                     CommandsInfo[] logUpper, byte[] hashLogUpper, int checkpointCID, int lastCID, int pid) {
@@ -76,7 +95,7 @@ public class CSTState implements ApplicationState {
 
     @Override
     public boolean hasState() {
-        return this.getSerializedState() != null;
+        return this.getSerializedState() != null || checkpointFile != null;
     }
 
     @Override
@@ -145,6 +164,8 @@ public class CSTState implements ApplicationState {
                 return logLower[cid - checkpointCID - 1];
             } else if(logUpper != null) {
                 return logUpper[cid - checkpointCID - 1];
+            } else if(logFile != null) {
+                return readBatch(cid - checkpointCID - 1);
             } else {
                 return null;
             }
@@ -172,4 +193,110 @@ public class CSTState implements ApplicationState {
     public byte[] getHashCheckpoint() {
         return hashCheckpoint;
     }
+
+    /**
+     * @param path File to which the checkpoint was received
+     * @param size Size of the checkpoint
+     */
+    public void setCheckpointFile(String path, long size) {
+        this.checkpointFile = path;
+        this.checkpointSize = size;
+    }
+
+    /**
+     * @return File to which the checkpoint was received, in the format of a
+     * checkpoint file, or null if it was not received in a stream
+     */
+    public String getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    public long getCheckpointSize() {
+        return checkpointSize;
+    }
+
+    /**
+     * @param path File to which the log records were received
+     * @param records Number of records
+     * @param hash Hash of the contents of the records
+     */
+    public void setLogFile(String path, int records, byte[] hash) {
+        this.logFile = path;
+        this.logRecords = records;
+        this.logHash = hash;
+    }
+
+    /**
+     * @return File to which the log records were received, in the format of
+     * a log file, or null if they were not received in a stream
+     */
+    public String getLogFile() {
+        return logFile;
+    }
+
+    public int getLogRecords() {
+        return logRecords;
+    }
+
+    /**
+     * @return Hash of the contents of the log records received, to be
+     * compared with getHashLogLower and getHashLogUpper
+     */
+    public byte[] getLogHash() {
+        return logHash;
+    }
+
+    /**
+     * Reads a batch from the log file, reading the file forward when the
+     * batches are read in order
+     */
+    private CommandsInfo readBatch(int index) {
+        if (index < 0 || index >= logRecords) {
+            return null;
+        }
+        try {
+            if (logReader == null || index < nextRecord) {
+                closeLog();
+                logReader = new RandomAccessFile(logFile, "r");
+                nextRecord = 0;
+            }
+            for (; nextRecord < index; nextRecord++) {
+                int size = logReader.readInt();
+                logReader.skipBytes(LogSegment.HEADER_SIZE - 4 + size);
+            }
+            int size = logReader.readInt();
+            logReader.skipBytes(LogSegment.HEADER_SIZE - 4);
+            byte[] bytes = new byte[size];
+            logReader.readFully(bytes);
+            nextRecord++;
+            return (CommandsInfo) new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("Failed to read batch " + index + " from " + logFile, e);
+        }
+    }
+
+    private void closeLog() {
+        if (logReader != null) {
+            try {
+                logReader.close();
+            } catch (IOException e) {
+                // only read from
+            }
+            logReader = null;
+        }
+    }
+
+    /**
+     * Deletes the files to which the state was received, once installed or
+     * discarded
+     */
+    public void discard() {
+        closeLog();
+        if (checkpointFile != null) {
+            new File(checkpointFile).delete();
+        }
+        if (logFile != null) {
+            new File(logFile).delete();
+        }
+    }
 }
@@ -0,0 +1,235 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.statemanagement.durability;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+import bftsmart.tom.server.defaultservices.FileRecoverer;
+import bftsmart.tom.server.defaultservices.LogSegment;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Format of the stream in which a replica sends its part of the state in the
+ * collaborative state transfer:
+ *
+ * [int length][CSTState, serialized, without the checkpoint and the logs]
+ * [long length of the checkpoint, -1 if none][checkpoint]
+ * [int number of log records, -1 if none][long length of the records][records]
+ *
+ * The checkpoint and the records are sent as they are in the files of the
+ * sender (see DurableStateLog and LogSegment), with FileChannel.transferTo,
+ * without being read into the heap. The receiver writes them to files as they
+ * arrive, through a buffer of BUFFER_SIZE bytes, hashing the records on the
+ * way. The checkpoint is written in the format of a checkpoint file, so that
+ * it can become the checkpoint of the receiver, and the records in the format
+ * of a log file, from which they are read one at a time when replayed.
+ */
+public class CSTStream {
+
+    /** Size of the buffer through which the state is received */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Largest serialized CSTState header accepted, it has only hashes and ids */
+    public static final int MAX_HEADER_SIZE = 64 * 1024;
+
+    /** Extension of the checkpoint received, until it is installed */
+    public static final String CHECKPOINT_EXTENSION = ".cstckp";
+    /** Extension of the log records received, until they are replayed */
+    public static final String LOG_EXTENSION = ".cstlog";
+
+    private CSTStream() {
+    }
+
+    /**
+     * Sends a part of the state
+     *
+     * @param channel the socket
+     * @param header the CSTState to send, without the checkpoint and the logs
+     * @param ckp the checkpoint file, or null
+     * @param ckpRegion offset and length of the state in the checkpoint file
+     * @param log the log file, or null
+     * @param logRegion offset and length of the records in the log file
+     * @param records number of records
+     * @throws IOException if the state cannot be sent
+     */
+    public static void send(WritableByteChannel channel, CSTState header, FileChannel ckp, long[] ckpRegion,
+            FileChannel log, long[] logRegion, int records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(header);
+        oos.flush();
+
+        boolean hasCkp = ckp != null && ckpRegion != null;
+        boolean hasLog = log != null && logRegion != null;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + bytes.size() + 8);
+        buffer.putInt(bytes.size());
+        buffer.put(bytes.toByteArray());
+        buffer.putLong(hasCkp ? ckpRegion[1] : -1);
+        write(channel, buffer);
+        if (hasCkp) {
+            FileRecoverer.transferRegion(ckp, ckpRegion[0], ckpRegion[1], channel);
+        }
+
+        buffer = ByteBuffer.allocate(12);
+        buffer.putInt(hasLog ? records : -1);
+        buffer.putLong(hasLog ? logRegion[1] : 0);
+        write(channel, buffer);
+        if (hasLog) {
+            FileRecoverer.transferRegion(log, logRegion[0], logRegion[1], channel);
+        }
+    }
+
+    private static void write(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Receives a part of the state, writing the checkpoint and the log records
+     * to files in a directory (see CSTState.getCheckpointFile and getLogFile)
+     *
+     * @param stream the socket
+     * @param dir the directory
+     * @param id the id of this replica, prefix of the files
+     * @return the CSTState sent
+     * @throws IOException if the stream is malformed or ends too soon
+     */
+    public static CSTState receive(InputStream stream, String dir, int id) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream, BUFFER_SIZE));
+        int headerLength = in.readInt();
+        if (headerLength <= 0 || headerLength > MAX_HEADER_SIZE) {
+            throw new IOException("Invalid state header length " + headerLength);
+        }
+        byte[] header = new byte[headerLength];
+        in.readFully(header);
+        CSTState state;
+        try {
+            state = (CSTState) new ObjectInputStream(new ByteArrayInputStream(header)).readObject();
+        } catch (ClassNotFoundException | ClassCastException ex) {
+            throw new IOException("Invalid state header", ex);
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        MessageDigest md;
+        try {
+            md = TOMUtil.getHashEngine();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+
+        File ckpFile = null;
+        File logFile = null;
+        try {
+            long ckpLength = in.readLong();
+            if (ckpLength > Integer.MAX_VALUE) {
+                throw new IOException("Invalid checkpoint length " + ckpLength);
+            }
+            if (ckpLength >= 0) {
+                ckpFile = File.createTempFile(id + ".cst.", CHECKPOINT_EXTENSION, new File(dir));
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(ckpFile), BUFFER_SIZE))) {
+                    out.writeInt((int) ckpLength);
+                    copy(in, out, ckpLength, buffer, md);
+                    byte[] hash = md.digest();
+                    out.writeInt(hash.length);
+                    out.write(hash);
+                    out.writeInt(0);
+                    out.writeInt(state.getCheckpointCID());
+                }
+                state.setCheckpointFile(ckpFile.getPath(), ckpLength);
+            }
+
+            int records = in.readInt();
+            long logLength = in.readLong();
+            if (records >= 0) {
+                logFile = File.createTempFile(id + ".cst.", LOG_EXTENSION, new File(dir));
+                CRC32 crc = new CRC32();
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile), BUFFER_SIZE))) {
+                    int consensusId = -1;
+                    for (int i = 0; i < records; i++) {
+                        int size = in.readInt();
+                        consensusId = in.readInt();
+                        int checksum = in.readInt();
+                        logLength -= LogSegment.HEADER_SIZE + (long) size;
+                        if (size <= 0 || logLength < 0) {
+                            throw new IOException("Invalid log record of consensus " + consensusId);
+                        }
+                        out.writeInt(size);
+                        out.writeInt(consensusId);
+                        out.writeInt(checksum);
+                        crc.reset();
+                        copy(in, out, size, buffer, md, crc);
+                        if ((int) crc.getValue() != checksum) {
+                            throw new IOException("Corrupted log record of consensus " + consensusId);
+                        }
+                    }
+                    if (logLength != 0) {
+                        throw new IOException(logLength + " bytes left after the log records");
+                    }
+                    out.writeInt(0);
+                    out.writeInt(consensusId);
+                }
+                state.setLogFile(logFile.getPath(), records, md.digest());
+            }
+        } catch (IOException ex) {
+            if (ckpFile != null) {
+                ckpFile.delete();
+            }
+            if (logFile != null) {
+                logFile.delete();
+            }
+            throw ex;
+        }
+        return state;
+    }
+
+    private static void copy(DataInputStream in, DataOutputStream out, long length, byte[] buffer, MessageDigest md) throws IOException {
+        copy(in, out, length, buffer, md, null);
+    }
+
+    private static void copy(DataInputStream in, DataOutputStream out, long length, byte[] buffer, MessageDigest md, CRC32 crc) throws IOException {
+        while (length > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(length, buffer.length));
+            if (read < 0) {
+                throw new IOException("Stream ends " + length + " bytes before the end of the state");
+            }
+            md.update(buffer, 0, read);
+            if (crc != null) {
+                crc.update(buffer, 0, read);
+            }
+            out.write(buffer, 0, read);
+            length -= read;
+        }
+    }
+}
@@ -16,14 +16,12 @@
 package bftsmart.statemanagement.durability;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.consensus.messages.ConsensusMessage;
@@ -31,8 +29,8 @@ import bftsmart.reconfiguration.views.View;
 import bftsmart.statemanagement.ApplicationState;
 import bftsmart.statemanagement.SMMessage;
 import bftsmart.statemanagement.StateManager;
-import bftsmart.tom.server.defaultservices.CommandsInfo;
 import bftsmart.tom.server.durability.DurabilityCoordinator;
+import bftsmart.tom.server.durability.DurableStateLog;
 import bftsmart.tom.util.TOMUtil;
 
 import org.slf4j.Logger;
@@ -43,7 +41,7 @@ public class DurableStateManager extends StateManager {
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
     private ReentrantLock lockTimer = new ReentrantLock();
-    private Timer stateTimer = null;
+    private ScheduledFuture<?> stateTimer = null;
     private final static long INIT_TIMEOUT = 40000;
     private long timeout = INIT_TIMEOUT;
 
@@ -77,7 +75,7 @@ public class DurableStateManager extends StateManager {
         logger.info("I just sent a request to the other replicas for the state up to CID "
                 + waitingCID);
 
-        TimerTask stateTask = new TimerTask() {
+        Runnable stateTask = new Runnable() {
             public void run() {
                 
                 logger.info("Timeout to retrieve state");
@@ -88,9 +86,25 @@ public class DurableStateManager extends StateManager {
             }
         };
 
-        stateTimer = new Timer("state timer");
         timeout = timeout * 2;
-        stateTimer.schedule(stateTask, timeout);
+        stateTimer = SVController.getTimerScheduler().schedule("state timer", stateTask, timeout);
+    }
+
+    /**
+     * Also deletes the files to which the parts of the state received were
+     * written (see CSTStream)
+     */
+    @Override
+    protected void reset() {
+        for (ApplicationState received : senderStates.values()) {
+            if (received instanceof CSTState) {
+                ((CSTState) received).discard();
+            }
+        }
+        super.reset();
+        stateCkp = null;
+        stateLower = null;
+        stateUpper = null;
     }
 
     @Override
@@ -98,7 +112,7 @@ public class DurableStateManager extends StateManager {
         lockTimer.lock();
         logger.debug("(StateManager.stateTimeout) Timeout for the replica that was supposed to send the complete state. Changing desired replica.");
         if (stateTimer != null) {
-            stateTimer.cancel();
+            stateTimer.cancel(false);
         }
         reset();
         requestState();
@@ -198,26 +212,24 @@ public class DurableStateManager extends StateManager {
                 logger.debug("The reply is for the CID that I want!");
 
                 InetSocketAddress address = reply.getCstConfig().getAddress();
-                Socket clientSocket;
                 ApplicationState stateReceived = null;
-                try {
-                    clientSocket = new Socket(address.getHostName(),
-                            address.getPort());
-                    ObjectInputStream in = new ObjectInputStream(
-                            clientSocket.getInputStream());
-                    stateReceived = (ApplicationState) in.readObject();
+                // the checkpoint and the log are written to disk as they arrive
+                try (Socket clientSocket = new Socket(address.getHostName(),
+                            address.getPort())) {
+                    stateReceived = CSTStream.receive(clientSocket.getInputStream(),
+                            DurableStateLog.DEFAULT_DIR, SVController.getStaticConf().getProcessId());
                 } catch (UnknownHostException e) {
                     // TODO Auto-generated catch block
                     logger.error("Failed to connect to address", e);
                 } catch (IOException e) {
-                    // TODO Auto-generated catch block
-                    logger.error("Failed to connect to address", e);
-                } catch (ClassNotFoundException e) {
-                    // TODO Auto-generated catch block
-                    logger.error("Failed to deserialize application state object", e);
+                    logger.error("Failed to receive state from replica " + reply.getSender(), e);
                 }
 
                 if (stateReceived instanceof CSTState) {
+                    ApplicationState previous = senderStates.get(reply.getSender());
+                    if (previous instanceof CSTState && previous != stateReceived) {
+                        ((CSTState) previous).discard();
+                    }
                     senderStates.put(reply.getSender(), stateReceived);
                     if (reply.getSender() == cstRequest.getCheckpointReplica()) {
                         this.stateCkp = (CSTState) stateReceived;
@@ -230,56 +242,47 @@ public class DurableStateManager extends StateManager {
                     }
                 }
 
-                if (senderStates.size() == 3) {
+                if (senderStates.size() == 3 && stateCkp != null && stateLower != null && stateUpper != null) {
 
-                    CommandsInfo[] lowerLog = stateLower.getLogLower();
-                    CommandsInfo[] upperLog = stateUpper.getLogUpper();
-                    logger.info("lowerLog ");
-                    if (lowerLog != null) {
-                        logger.info("\t" + lowerLog.length);
-                    }
-                    logger.info("upperLog ");
-                    if (upperLog != null) {
-                        logger.info("\t" + upperLog.length);
-                    }
+                    logger.info("lowerLog \t" + stateLower.getLogRecords());
+                    logger.info("upperLog \t" + stateUpper.getLogRecords());
 
                     boolean haveState = false;
-                    byte[] lowerbytes = TOMUtil.getBytes(lowerLog);
-                    logger.debug("Log lower bytes size: "
-                            + lowerbytes.length);
-                    byte[] upperbytes = TOMUtil.getBytes(upperLog);
-                    logger.debug("Log upper bytes size: "
-                            + upperbytes.length);
-
-                    byte[] lowerLogHash = TOMUtil.computeHash(lowerbytes);
-                    byte[] upperLogHash = TOMUtil.computeHash(upperbytes);
+                    // hashes of the contents of the records, computed as they were received
+                    byte[] lowerLogHash = stateLower.getLogHash();
+                    byte[] upperLogHash = stateUpper.getLogHash();
 
                     // validate lower log
-                    if (Arrays.equals(stateCkp.getHashLogLower(), lowerLogHash)) {
+                    if (lowerLogHash != null && Arrays.equals(stateCkp.getHashLogLower(), lowerLogHash)) {
                         haveState = true;
                     } else {
                         logger.error("Lower log does not match");
                     }
                     // validate upper log
-                    if (!haveState || !Arrays.equals(stateCkp.getHashLogUpper(), upperLogHash)) {
+                    if (!haveState || upperLogHash == null || !Arrays.equals(stateCkp.getHashLogUpper(), upperLogHash)) {
                         haveState = false;
                         logger.error("Upper log does not match");
                     }
 
-                    CSTState statePlusLower = new CSTState(stateCkp.getSerializedState(),
-                            TOMUtil.getBytes(stateCkp.getSerializedState()),
-                            stateLower.getLogLower(), stateCkp.getHashLogLower(), null, null,
+                    CSTState statePlusLower = new CSTState(null, null, null, stateCkp.getHashLogLower(), null, null,
                             stateCkp.getCheckpointCID(), stateUpper.getCheckpointCID(), SVController.getStaticConf().getProcessId());
+                    statePlusLower.setCheckpointFile(stateCkp.getCheckpointFile(), stateCkp.getCheckpointSize());
+                    statePlusLower.setLogFile(stateLower.getLogFile(), stateLower.getLogRecords(), lowerLogHash);
 
-                    if (haveState) { // validate checkpoint
+                    if (haveState && stateCkp.hasState()) { // validate checkpoint
                         logger.info("validating checkpoint!!!");
-                        dt.getRecoverer().setState(statePlusLower);
-                        byte[] currentStateHash = ((DurabilityCoordinator) dt.getRecoverer()).getCurrentStateHash();
-                        if (!Arrays.equals(currentStateHash, stateUpper.getHashCheckpoint())) {
+                        if (dt.getRecoverer().setState(statePlusLower) == -1) {
+                            logger.error("Failed to install checkpoint");
+                            haveState = false;
+                        } else if (!Arrays.equals(((DurabilityCoordinator) dt.getRecoverer()).getCurrentStateHash(),
+                                stateUpper.getHashCheckpoint())) {
                             logger.error("ckp hash don't match");
                             haveState = false;
                         }
+                    } else {
+                        haveState = false;
                     }
+                    statePlusLower.discard();
 
                     logger.info("Current regency: " + currentRegency);
                     logger.info("Current leader: " + currentLeader);
@@ -389,7 +392,7 @@ public class DurableStateManager extends StateManager {
                         tomLayer.requestsTimer.Enabled(true);
                         tomLayer.requestsTimer.startTimer();
                         if (stateTimer != null) {
-                            stateTimer.cancel();
+                            stateTimer.cancel(false);
                         }
 
                         if (appStateOnly) {
@@ -408,7 +411,7 @@ public class DurableStateManager extends StateManager {
                         reset();
 
                         if (stateTimer != null) {
-                            stateTimer.cancel();
+                            stateTimer.cancel(false);
                         }
 
                         if (appStateOnly) {
@@ -423,7 +426,7 @@ public class DurableStateManager extends StateManager {
                         requestState();
 
                         if (stateTimer != null) {
-                            stateTimer.cancel();
+                            stateTimer.cancel(false);
                         }
                     }
                 }
@@ -16,11 +16,9 @@ limitations under the License.
 package bftsmart.statemanagement.durability;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
-import bftsmart.statemanagement.ApplicationState;
+import bftsmart.tom.server.durability.DurabilityCoordinator;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,30 +27,30 @@ public class StateSender implements Runnable {
 
         private Logger logger = LoggerFactory.getLogger(this.getClass());
     
-	private final Socket socket;
-	private ApplicationState state;
+	private final SocketChannel channel;
+	private final DurabilityCoordinator coordinator;
+	private final CSTRequest request;
 	
-	public StateSender(Socket socket) {
-		this.socket = socket;
-	}
-	
-	public void setState(ApplicationState state) {
-		this.state = state;
+	public StateSender(SocketChannel channel, DurabilityCoordinator coordinator, CSTRequest request) {
+		this.channel = channel;
+		this.coordinator = coordinator;
+		this.request = request;
 	}
 	
 	@Override
 	public void run() {
 		try {
-			OutputStream os = socket.getOutputStream();
-			ObjectOutputStream oos = new ObjectOutputStream(os);
 			logger.debug("Sending state in different socket");
-			oos.writeObject(state);
+			coordinator.transferState(request, channel);
 			logger.debug("Sent state in different socket");
-			oos.close();
-			socket.close();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			logger.error("Could not send state",e);
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.error("Could not close socket",e);
+			}
 		}
 	}
 
@@ -16,10 +16,10 @@ limitations under the License.
 package bftsmart.statemanagement.durability;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
-import bftsmart.statemanagement.ApplicationState;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.durability.DurabilityCoordinator;
 
@@ -30,16 +30,11 @@ public class StateSenderServer implements Runnable {
     
      private Logger logger = LoggerFactory.getLogger(this.getClass());
 
-	private ServerSocket server;
-	private ApplicationState state;
+	private ServerSocketChannel server;
 	private Recoverable recoverable;
 	private DurabilityCoordinator coordinator;
 	private CSTRequest request;
 	
-	public void setState(ApplicationState state) {
-		this.state = state;
-	}
-	
 	public void setRecoverable(Recoverable recoverable) {
 		this.recoverable = recoverable;
 		coordinator = (DurabilityCoordinator)(recoverable);
@@ -51,7 +46,8 @@ public class StateSenderServer implements Runnable {
 
 	public StateSenderServer(int port) {
 		try {
-			server = new ServerSocket(port);
+			server = ServerSocketChannel.open();
+			server.bind(new InetSocketAddress(port));
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			logger.error("Could not open server socket",e);
@@ -61,10 +57,8 @@ public class StateSenderServer implements Runnable {
 	@Override
 	public void run() {
 		try {
-			Socket socket = server.accept();
-			StateSender sender = new StateSender(socket);
-			state = coordinator.getState(request);
-			sender.setState(state);
+			SocketChannel channel = server.accept();
+			StateSender sender = new StateSender(channel, coordinator, request);
 			new Thread(sender).start();
 		} catch (IOException e) {
 			logger.error("Problem executing StateSenderServer thread",e);
@@ -15,10 +15,13 @@ limitations under the License.
 */
 package bftsmart.statemanagement.standard;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 
+import bftsmart.communication.MessageCodec;
 import bftsmart.reconfiguration.views.View;
 import bftsmart.statemanagement.ApplicationState;
 import bftsmart.statemanagement.SMMessage;
@@ -31,11 +34,25 @@ import bftsmart.statemanagement.SMMessage;
 public class StandardSMMessage extends SMMessage {
 
 	private int replica;
+	private byte[] stateRoot; // root of the chunks of the state, if transferred in chunks
+	private int stateChunks = -1; // number of chunks of the state
 
     public StandardSMMessage(int sender, int cid, int type, int replica, ApplicationState state, View view, int regency, int leader) {
     	super(sender, cid, type, state, view, regency, leader);
     	this.replica = replica;
     }
+
+    /**
+     * Constructs a reply for a state transferred in chunks (see StateChunks)
+     * @param stateRoot Root of the Merkle tree over the chunks of the state
+     * @param stateChunks Number of chunks of the state
+     */
+    public StandardSMMessage(int sender, int cid, int type, int replica, ApplicationState state, View view, int regency, int leader,
+            byte[] stateRoot, int stateChunks) {
+    	this(sender, cid, type, replica, state, view, regency, leader);
+    	this.stateRoot = stateRoot;
+    	this.stateChunks = stateChunks;
+    }
 	
     public StandardSMMessage() {
     	super();
@@ -49,15 +66,51 @@ public class StandardSMMessage extends SMMessage {
         return replica;
     }
 
+    /**
+     * Retrieves the root of the Merkle tree over the chunks of the state
+     * @return The root, or null if the state is not transferred in chunks
+     */
+    public byte[] getStateRoot() {
+        return stateRoot;
+    }
+
+    /**
+     * Retrieves the number of chunks of the state
+     * @return The number of chunks, or -1 if the state is not transferred in chunks
+     */
+    public int getStateChunks() {
+        return stateChunks;
+    }
+
     @Override
     public void writeExternal(ObjectOutput out) throws IOException{
         super.writeExternal(out);
         out.writeInt(replica);
+        MessageCodec.writeBytes(out, stateRoot);
+        out.writeInt(stateChunks);
     }
 
     @Override
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException{
         super.readExternal(in);
         replica = in.readInt();
+        stateRoot = MessageCodec.readBytes(in);
+        stateChunks = in.readInt();
+    }
+
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeInt(replica);
+        MessageCodec.writeBytes(out, stateRoot);
+        out.writeInt(stateChunks);
+    }
+
+    @Override
+    public void readFrom(DataInput in) throws IOException {
+        super.readFrom(in);
+        replica = in.readInt();
+        stateRoot = MessageCodec.readBytes(in);
+        stateChunks = in.readInt();
     }
 }
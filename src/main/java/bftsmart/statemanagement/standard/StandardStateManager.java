@@ -16,12 +16,16 @@
 package bftsmart.statemanagement.standard;
 
 import bftsmart.statemanagement.StateManager;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.Random;
 
@@ -42,25 +46,45 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Fetches the state from one replica, and its hash from the others.
+ *
+ * If 'system.totalordermulticast.state_chunk_size' is set, the state is
+ * instead split in chunks (see StateChunks) and fetched from all the replicas
+ * that agree on it, at most CHUNK_WINDOW chunks being requested at a time
+ * from each of them, so the faster replicas send more chunks. A chunk that
+ * does not match the agreed root is requested again from another replica,
+ * and so are the chunks of a replica that sends none for a whole timeout.
  *
  * @author Marcel Santos
  *
  */
 public class StandardStateManager extends StateManager {
 
+    /** Chunks requested from a replica and not received yet, at most */
+    private static final int CHUNK_WINDOW = 4;
+
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
     private int replica;
     private ReentrantLock lockTimer = new ReentrantLock();
-    private Timer stateTimer = null;
+    private ScheduledFuture<?> stateTimer = null;
     private final static long INIT_TIMEOUT = 40000;
+    /** Time after which the chunks served to a replica that asks for none are released */
+    private final static long SERVED_TIMEOUT = INIT_TIMEOUT;
     private long timeout = INIT_TIMEOUT;
 
+    private int chunkSize; // 0 if the state is fetched whole
+    private final ConcurrentHashMap<Integer, ServedState> served = new ConcurrentHashMap<>(); // by requesting replica
+    private HashMap<Integer, StandardSMMessage> senderReplies = new HashMap<>();
+    private ChunkFetch fetch = null;
+
     @Override
     public void init(TOMLayer tomLayer, DeliveryThread dt) {
 
         super.init(tomLayer, dt);
 
+        chunkSize = SVController.getStaticConf().getStateChunkSize();
+
         changeReplica(); // initialize replica from which to ask the complete state
 
     }
@@ -91,7 +115,11 @@ public class StandardStateManager extends StateManager {
             tomLayer.requestsTimer.clearAll();
         }
 
-        changeReplica(); // always ask the complete state to a different replica
+        if (chunkSize > 0) {
+            replica = -1; // no replica sends the complete state, all of them send chunks
+        } else {
+            changeReplica(); // always ask the complete state to a different replica
+        }
 
         SMMessage smsg = new StandardSMMessage(SVController.getStaticConf().getProcessId(),
                 waitingCID, TOMUtil.SM_REQUEST, replica, null, null, -1, -1);
@@ -99,7 +127,12 @@ public class StandardStateManager extends StateManager {
 
         logger.info("I just sent a request to the other replicas for the state up to CID " + waitingCID);
 
-        TimerTask stateTask = new TimerTask() {
+        timeout = timeout * 2;
+        scheduleTimer();
+    }
+
+    private void scheduleTimer() {
+        Runnable stateTask = new Runnable() {
             public void run() {
                 logger.info("Timeout to retrieve state");
                 StandardSMMessage msg = new StandardSMMessage(-1, waitingCID, TOMUtil.TRIGGER_SM_LOCALLY, -1, null, null, -1, -1);
@@ -107,41 +140,75 @@ public class StandardStateManager extends StateManager {
             }
         };
 
-        stateTimer = new Timer("state timer");
-        timeout = timeout * 2;
-        stateTimer.schedule(stateTask, timeout);
+        stateTimer = SVController.getTimerScheduler().schedule("state timer", stateTask, timeout);
     }
 
     @Override
     public void stateTimeout() {
         lockTimer.lock();
-        logger.debug("Timeout for the replica that was supposed to send the complete state. Changing desired replica.");
         if (stateTimer != null) {
-            stateTimer.cancel();
+            stateTimer.cancel(false);
+        }
+        if (fetch != null && !fetch.progress.isEmpty()) {
+            // some replicas are sending chunks, ask them for the chunks of the others
+            for (int source : new ArrayList<>(fetch.sources.keySet())) {
+                if (!fetch.progress.contains(source) && fetch.sources.get(source) > 0) {
+                    logger.info("Replica " + source + " sent no chunk of the state in " + timeout + " ms. Fetching its chunks from the others");
+                    dropSource(source);
+                }
+            }
+            fetch.progress.clear();
+            requestChunks();
+            scheduleTimer();
+        } else {
+            logger.debug("Timeout for the replica that was supposed to send the complete state. Changing desired replica.");
+            changeReplica();
+            reset();
+            requestState();
         }
-        changeReplica();
-        reset();
-        requestState();
         lockTimer.unlock();
     }
 
+    @Override
+    protected void reset() {
+        super.reset();
+        senderReplies.clear();
+        fetch = null;
+    }
+
     @Override
     public void SMRequestDeliver(SMMessage msg, boolean isBFT) {
         if (SVController.getStaticConf().isStateTransferEnabled() && dt.getRecoverer() != null) {
             StandardSMMessage stdMsg = (StandardSMMessage) msg;
             boolean sendState = stdMsg.getReplica() == SVController.getStaticConf().getProcessId();
 
-            ApplicationState thisState = dt.getRecoverer().getState(msg.getCID(), sendState);
+            ApplicationState thisState = dt.getRecoverer().getState(msg.getCID(), sendState || chunkSize > 0);
             if (thisState == null) {
 
                 logger.warn("For some reason, I am sending a void state");
                 thisState = dt.getRecoverer().getState(-1, sendState);
             }
 
+            byte[] root = null;
+            int chunks = -1;
+            if (chunkSize > 0 && thisState.getSerializedState() != null) {
+                StateChunks stateChunks = new StateChunks(msg.getCID(), thisState.getSerializedState(), chunkSize);
+                ServedState servedState = new ServedState(stateChunks);
+                served.put(msg.getSender(), servedState); // replaces the state it asked for before, if any
+                scheduleRelease(msg.getSender(), servedState, SERVED_TIMEOUT);
+                root = stateChunks.getRoot();
+                chunks = stateChunks.getCount();
+                if (!sendState) {
+                    thisState.setSerializedState(null);
+                }
+                logger.info("The state up to CID " + msg.getCID() + " has " + chunks + " chunks");
+            }
+
             int[] targets = {msg.getSender()};
             SMMessage smsg = new StandardSMMessage(SVController.getStaticConf().getProcessId(),
                     msg.getCID(), TOMUtil.SM_REPLY, -1, thisState, SVController.getCurrentView(),
-                    tomLayer.getSynchronizer().getLCManager().getLastReg(), tomLayer.execManager.getCurrentLeader());
+                    tomLayer.getSynchronizer().getLCManager().getLastReg(), tomLayer.execManager.getCurrentLeader(),
+                    root, chunks);
 
             logger.info("Sending state...");
             tomLayer.getCommunication().send(targets, smsg);
@@ -187,20 +254,24 @@ public class StandardStateManager extends StateManager {
                     logger.debug("Expected replica sent state. Setting it to state");
                     state = msg.getState();
                     if (stateTimer != null) {
-                        stateTimer.cancel();
+                        stateTimer.cancel(false);
                     }
                 }
 
                 senderStates.put(msg.getSender(), msg.getState());
+                senderReplies.put(msg.getSender(), (StandardSMMessage) msg);
 
                 logger.debug("Verifying more than F replies");
-                if (enoughReplies()) {
+                if (chunkSize > 0 && state == null) {
+                    fetchChunks((StandardSMMessage) msg);
+                } else if (enoughReplies()) {
                     logger.debug("More than F confirmed");
-                    ApplicationState otherReplicaState = getOtherReplicaState();
+                    // the hash of a state fetched in chunks was agreed on by more than F replicas
+                    ApplicationState otherReplicaState = chunkSize > 0 ? state : getOtherReplicaState();
                     int haveState = 0;
                     if (state != null) {
                         byte[] hash = null;
-                        hash = tomLayer.computeHash(state.getSerializedState());
+                        hash = state.computeStateHash();
                         if (otherReplicaState != null) {
                             if (Arrays.equals(hash, otherReplicaState.getStateHash())) {
                                 haveState = 1;
@@ -304,7 +375,7 @@ public class StandardStateManager extends StateManager {
                         tomLayer.requestsTimer.Enabled(true);
                         tomLayer.requestsTimer.startTimer();
                         if (stateTimer != null) {
-                            stateTimer.cancel();
+                            stateTimer.cancel(false);
                         }
 
                         if (appStateOnly) {
@@ -316,7 +387,7 @@ public class StandardStateManager extends StateManager {
                         reset();
 
                         if (stateTimer != null) {
-                            stateTimer.cancel();
+                            stateTimer.cancel(false);
                         }
 
                         if (appStateOnly) {
@@ -330,14 +401,14 @@ public class StandardStateManager extends StateManager {
                         requestState();
 
                         if (stateTimer != null) {
-                            stateTimer.cancel();
+                            stateTimer.cancel(false);
                         }
                     } else if (haveState == 0 && (SVController.getCurrentViewN() - SVController.getCurrentViewT()) <= getReplies()) {
 
                         logger.debug("Could not obtain the state, retrying");
                         reset();
                         if (stateTimer != null) {
-                            stateTimer.cancel();
+                            stateTimer.cancel(false);
                         }
                         waitingCID = -1;
                         //requestState();
@@ -351,6 +422,196 @@ public class StandardStateManager extends StateManager {
         lockTimer.unlock();
     }
 
+    /**
+     * Releases the chunks served to a replica once it stopped asking for
+     * them for SERVED_TIMEOUT ms: it has the state, or fetches it from others
+     */
+    private void scheduleRelease(int requester, ServedState servedState, long delay) {
+        SVController.getTimerScheduler().schedule("served state", () -> {
+            long idle = System.currentTimeMillis() - servedState.lastRequest;
+            if (idle < SERVED_TIMEOUT) {
+                scheduleRelease(requester, servedState, SERVED_TIMEOUT - idle);
+            } else if (served.remove(requester, servedState)) {
+                logger.debug("Released the state up to CID " + servedState.chunks.getCID() + " served to replica " + requester);
+            }
+        }, delay);
+    }
+
+    @Override
+    public void SMChunkRequestDeliver(SMMessage msg) {
+        ServedState servedState = served.get(msg.getSender());
+        if (servedState == null || servedState.chunks.getCID() != msg.getCID() || !(msg instanceof StateChunkMessage)) {
+            logger.warn("Replica " + msg.getSender() + " asked for chunks of a state up to CID " + msg.getCID() + " that I did not send it");
+            return;
+        }
+        servedState.lastRequest = System.currentTimeMillis();
+        StateChunks stateChunks = servedState.chunks;
+
+        int me = SVController.getStaticConf().getProcessId();
+        int[] targets = {msg.getSender()};
+        for (int index : ((StateChunkMessage) msg).getIndexes()) {
+            if (index >= 0 && index < stateChunks.getCount()) {
+                tomLayer.getCommunication().send(targets, new StateChunkMessage(me, msg.getCID(), TOMUtil.SM_CHUNK_REPLY,
+                        index, stateChunks.getChunk(index), stateChunks.getPath(index)));
+            }
+        }
+        logger.debug("Sent " + ((StateChunkMessage) msg).getIndexes().length + " chunks of the state to replica " + msg.getSender());
+    }
+
+    @Override
+    public void SMChunkReplyDeliver(SMMessage msg, boolean isBFT) {
+        lockTimer.lock();
+        if (fetch != null && msg.getCID() == waitingCID && msg instanceof StateChunkMessage) {
+            StateChunkMessage chunkMsg = (StateChunkMessage) msg;
+            int index = chunkMsg.getIndex();
+
+            if (index >= 0 && index < fetch.count && fetch.chunks[index] == null) {
+                if (StateChunks.verify(fetch.root, fetch.count, index, chunkMsg.getChunk(), chunkMsg.getPath())) {
+                    fetch.chunks[index] = chunkMsg.getChunk();
+                    fetch.received++;
+                    fetch.bytes += chunkMsg.getChunk().length;
+                    fetch.progress.add(msg.getSender());
+                    // the replica asked for it may still send it, but it no longer counts
+                    Integer requested = fetch.sources.get(fetch.owner[index]);
+                    if (requested != null) {
+                        fetch.sources.put(fetch.owner[index], requested - 1);
+                    }
+                } else {
+                    logger.warn("Replica " + msg.getSender() + " sent chunk " + index + " which does not match the state agreed on. Fetching its chunks from the others");
+                    dropSource(msg.getSender());
+                }
+            }
+
+            if (fetch.received == fetch.count) {
+                completeFetch(isBFT);
+            } else {
+                requestChunks();
+            }
+        }
+        lockTimer.unlock();
+    }
+
+    /**
+     * Starts fetching the state in chunks once more than F replicas agree on
+     * it, or adds the sender of a reply to the replicas the chunks are fetched
+     * from if it agrees too.
+     *
+     * @param msg The reply just received
+     */
+    private void fetchChunks(StandardSMMessage msg) {
+        if (fetch == null) {
+            for (StandardSMMessage reply : senderReplies.values()) {
+                if (reply.getStateRoot() == null || reply.getStateChunks() < 1) {
+                    continue;
+                }
+                List<Integer> agreeing = new ArrayList<>();
+                for (StandardSMMessage other : senderReplies.values()) {
+                    if (agree(reply, other)) {
+                        agreeing.add(other.getSender());
+                    }
+                }
+                if (agreeing.size() > SVController.getCurrentViewT()) {
+                    fetch = new ChunkFetch(reply);
+                    for (int source : agreeing) {
+                        fetch.sources.put(source, 0);
+                    }
+                    logger.info("Replicas " + agreeing + " agree on a state of " + fetch.count + " chunks. Fetching them from all of these replicas");
+                    break;
+                }
+            }
+            if (fetch == null) {
+                if (getReplies() >= SVController.getCurrentViewOtherAcceptors().length) {
+                    logger.debug("Could not obtain the state, not enough replicas agree on it");
+                    reset();
+                    if (stateTimer != null) {
+                        stateTimer.cancel(false);
+                    }
+                    waitingCID = -1;
+                } else {
+                    logger.debug("Not enough replicas agree on the state yet");
+                }
+                return;
+            }
+        } else if (agree(fetch.reply, msg) && !fetch.dropped.contains(msg.getSender())) {
+            logger.debug("Replica " + msg.getSender() + " agrees on the state too. Fetching chunks from it as well");
+            fetch.sources.putIfAbsent(msg.getSender(), 0);
+        }
+        requestChunks();
+    }
+
+    private boolean agree(StandardSMMessage reply, StandardSMMessage other) {
+        return other.getStateRoot() != null && Arrays.equals(reply.getStateRoot(), other.getStateRoot())
+                && reply.getStateChunks() == other.getStateChunks() && reply.getState().equals(other.getState());
+    }
+
+    /**
+     * Requests the chunks not requested yet, keeping at most CHUNK_WINDOW of
+     * them pending at each replica
+     */
+    private void requestChunks() {
+        int me = SVController.getStaticConf().getProcessId();
+        for (Map.Entry<Integer, Integer> source : fetch.sources.entrySet()) {
+            int count = Math.min(CHUNK_WINDOW - source.getValue(), fetch.pending.size());
+            if (count <= 0) {
+                continue;
+            }
+            int[] indexes = new int[count];
+            for (int i = 0; i < count; i++) {
+                indexes[i] = fetch.pending.poll();
+                fetch.owner[indexes[i]] = source.getKey();
+            }
+            source.setValue(source.getValue() + count);
+            tomLayer.getCommunication().send(new int[]{source.getKey()},
+                    new StateChunkMessage(me, waitingCID, TOMUtil.SM_CHUNK_REQUEST, indexes));
+        }
+        if (fetch.sources.isEmpty()) {
+            logger.warn("No replica left to fetch the missing chunks of the state from");
+        }
+    }
+
+    /**
+     * Stops fetching chunks from a replica, and requests the chunks pending
+     * there from the others
+     */
+    private void dropSource(int source) {
+        fetch.sources.remove(source);
+        fetch.dropped.add(source);
+        for (int i = 0; i < fetch.count; i++) {
+            if (fetch.owner[i] == source && fetch.chunks[i] == null) {
+                fetch.owner[i] = -1;
+                fetch.pending.add(i);
+            }
+        }
+    }
+
+    /**
+     * Puts the chunks together and installs the state, as if it had been
+     * received whole
+     */
+    private void completeFetch(boolean isBFT) {
+        byte[] serialized = new byte[(int) fetch.bytes];
+        int offset = 0;
+        for (byte[] chunk : fetch.chunks) {
+            System.arraycopy(chunk, 0, serialized, offset, chunk.length);
+            offset += chunk.length;
+        }
+        logger.info("Fetched the " + fetch.count + " chunks of the state (" + fetch.bytes + " bytes) in "
+                + (System.currentTimeMillis() - fetch.start) + " ms");
+
+        ApplicationState agreed = fetch.reply.getState();
+        agreed.setSerializedState(serialized);
+        state = agreed;
+        fetch = null;
+
+        // go through the replies again, now with the state, until one of them installs it
+        for (StandardSMMessage reply : new ArrayList<>(senderReplies.values())) {
+            if (state != agreed || waitingCID == -1) {
+                break;
+            }
+            SMReplyDeliver(reply, isBFT);
+        }
+    }
+
     /**
      * Search in the received states table for a state that was not sent by the
      * expected replica. This is used to compare both states after received the
@@ -390,4 +651,47 @@ public class StandardStateManager extends StateManager {
         return match;
     }
 
+    /**
+     * Chunks of the state sent to a replica, kept while it asks for them
+     */
+    private static class ServedState {
+
+        final StateChunks chunks;
+        volatile long lastRequest = System.currentTimeMillis();
+
+        ServedState(StateChunks chunks) {
+            this.chunks = chunks;
+        }
+    }
+
+    /**
+     * State being fetched in chunks
+     */
+    private static class ChunkFetch {
+
+        private final StandardSMMessage reply; // one of the replies that agree on the state
+        private final byte[] root;
+        private final int count;
+        private final byte[][] chunks;
+        private final int[] owner; // replica each chunk was requested from
+        private final ArrayDeque<Integer> pending = new ArrayDeque<>(); // chunks to be requested
+        private final HashMap<Integer, Integer> sources = new HashMap<>(); // replica -> chunks requested from it
+        private final HashSet<Integer> dropped = new HashSet<>(); // replicas no longer asked for chunks
+        private final HashSet<Integer> progress = new HashSet<>(); // replicas that sent chunks since the last timeout
+        private final long start = System.currentTimeMillis();
+        private int received = 0;
+        private long bytes = 0;
+
+        private ChunkFetch(StandardSMMessage reply) {
+            this.reply = reply;
+            this.root = reply.getStateRoot();
+            this.count = reply.getStateChunks();
+            this.chunks = new byte[count][];
+            this.owner = new int[count];
+            for (int i = 0; i < count; i++) {
+                owner[i] = -1;
+                pending.add(i);
+            }
+        }
+    }
 }
@@ -0,0 +1,158 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.statemanagement.standard;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import bftsmart.communication.MessageCodec;
+import bftsmart.statemanagement.SMMessage;
+
+/**
+ * Message of the chunked state transfer: a request for some chunks of the
+ * state up to a consensus (SM_CHUNK_REQUEST), or one of these chunks, with
+ * its authentication path (SM_CHUNK_REPLY). See StateChunks.
+ */
+public class StateChunkMessage extends SMMessage {
+
+    private static final long serialVersionUID = 279771911713347561L;
+
+    private int[] indexes; // chunks requested
+    private int index = -1; // chunk sent
+    private byte[] chunk;
+    private byte[][] path;
+
+    /**
+     * Creates a request for some chunks
+     *
+     * @param sender Process Id of the sender
+     * @param cid Consensus ID of the state
+     * @param type SM_CHUNK_REQUEST
+     * @param indexes Positions of the chunks
+     */
+    public StateChunkMessage(int sender, int cid, int type, int[] indexes) {
+        super(sender, cid, type, null, null, -1, -1);
+        this.indexes = indexes;
+    }
+
+    /**
+     * Creates a reply carrying one chunk
+     *
+     * @param sender Process Id of the sender
+     * @param cid Consensus ID of the state
+     * @param type SM_CHUNK_REPLY
+     * @param index Position of the chunk
+     * @param chunk the chunk
+     * @param path Authentication path of the chunk
+     */
+    public StateChunkMessage(int sender, int cid, int type, int index, byte[] chunk, byte[][] path) {
+        super(sender, cid, type, null, null, -1, -1);
+        this.index = index;
+        this.chunk = chunk;
+        this.path = path;
+    }
+
+    public StateChunkMessage() {
+        super();
+    }
+
+    /**
+     * @return Positions of the chunks requested
+     */
+    public int[] getIndexes() {
+        return indexes;
+    }
+
+    /**
+     * @return Position of the chunk sent
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public byte[] getChunk() {
+        return chunk;
+    }
+
+    public byte[][] getPath() {
+        return path;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        super.writeExternal(out);
+        writeFields(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        super.readExternal(in);
+        readFields(in);
+    }
+
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        super.writeTo(out);
+        writeFields(out);
+    }
+
+    @Override
+    public void readFrom(DataInput in) throws IOException {
+        super.readFrom(in);
+        readFields(in);
+    }
+
+    private void writeFields(DataOutput out) throws IOException {
+        out.writeInt(indexes == null ? -1 : indexes.length);
+        if (indexes != null) {
+            for (int i : indexes) {
+                out.writeInt(i);
+            }
+        }
+        out.writeInt(index);
+        MessageCodec.writeBytes(out, chunk);
+        out.writeInt(path == null ? -1 : path.length);
+        if (path != null) {
+            for (byte[] hash : path) {
+                MessageCodec.writeBytes(out, hash);
+            }
+        }
+    }
+
+    private void readFields(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < -1) {
+            throw new IOException("Invalid number of chunks " + count);
+        }
+        indexes = count == -1 ? null : new int[count];
+        for (int i = 0; i < count; i++) {
+            indexes[i] = in.readInt();
+        }
+        index = in.readInt();
+        chunk = MessageCodec.readBytes(in);
+        int depth = in.readInt();
+        if (depth < -1 || depth > Integer.SIZE) {
+            throw new IOException("Invalid Merkle path length " + depth);
+        }
+        path = depth == -1 ? null : new byte[depth][];
+        for (int i = 0; i < depth; i++) {
+            path[i] = MessageCodec.readBytes(in);
+        }
+    }
+}
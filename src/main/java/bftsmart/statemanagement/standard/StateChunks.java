@@ -0,0 +1,108 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.statemanagement.standard;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import bftsmart.tom.util.MerkleProof;
+
+/**
+ * Serialized application state split in chunks of a fixed size, and the
+ * Merkle tree over them (see MerkleProof).
+ *
+ * Replicas first agree on the root of the tree and on the number of chunks,
+ * which commit to every byte of the state. Each chunk is then sent with its
+ * authentication path, so the recovering replica verifies it on its own, as
+ * soon as it arrives, whichever replica it came from.
+ */
+public class StateChunks {
+
+    private final int cid;
+    private final byte[] state;
+    private final int chunkSize;
+    private final byte[][][] tree;
+
+    /**
+     * @param cid Consensus ID up to which the state was requested
+     * @param state the serialized state
+     * @param chunkSize size of the chunks, in bytes
+     */
+    public StateChunks(int cid, byte[] state, int chunkSize) {
+        this.cid = cid;
+        this.state = state;
+        this.chunkSize = chunkSize;
+        try {
+            this.tree = MerkleProof.buildTree(state, chunkSize);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @return Consensus ID up to which the state was requested
+     */
+    public int getCID() {
+        return cid;
+    }
+
+    /**
+     * @return the root of the Merkle tree
+     */
+    public byte[] getRoot() {
+        return tree[tree.length - 1][0];
+    }
+
+    /**
+     * @return Number of chunks
+     */
+    public int getCount() {
+        return tree[0].length;
+    }
+
+    /**
+     * @param index the position of the chunk
+     * @return a copy of the chunk
+     */
+    public byte[] getChunk(int index) {
+        int offset = index * chunkSize;
+        return Arrays.copyOfRange(state, offset, Math.min(state.length, offset + chunkSize));
+    }
+
+    /**
+     * @param index the position of the chunk
+     * @return the authentication path of the chunk
+     */
+    public byte[][] getPath(int index) {
+        return MerkleProof.pathOf(tree, index);
+    }
+
+    /**
+     * Checks a chunk received from another replica
+     *
+     * @param root the root agreed on
+     * @param count the number of chunks agreed on
+     * @param index the position of the chunk
+     * @param chunk the chunk
+     * @param path the authentication path sent with the chunk
+     * @return true if the chunk is the one at that position in the state
+     */
+    public static boolean verify(byte[] root, int count, int index, byte[] chunk, byte[][] path) {
+        byte[] computed = MerkleProof.computeRoot(chunk, index, count, path);
+        return computed != null && MessageDigest.isEqual(computed, root);
+    }
+}
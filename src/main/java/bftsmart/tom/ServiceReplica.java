@@ -40,6 +40,8 @@ import bftsmart.tom.core.messages.TOMMessageType;
 import bftsmart.tom.leaderchange.CertifiedDecision;
 import bftsmart.tom.server.BatchExecutable;
 import bftsmart.tom.server.Executable;
+import bftsmart.tom.server.ParallelExecutable;
+import bftsmart.tom.server.ParallelScheduler;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.Replier;
 import bftsmart.tom.server.RequestVerifier;
@@ -150,6 +152,9 @@ public class ServiceReplica {
         this.executor = executor;
         this.recoverer = recoverer;
         this.replier = (replier != null ? replier : new DefaultReplier());
+        if (executor instanceof ParallelExecutable) {
+            ParallelScheduler.setThreads(SVController.getStaticConf().getExecutionThreads());
+        }
         this.verifier = verifier;
         this.init();
         this.recoverer.setReplicaContext(replicaCtx);
@@ -362,7 +367,12 @@ public class ServiceReplica {
                                 if (response != null) {
 
                                     logger.debug("sending reply to " + response.getSender());
-                                    replier.manageReply(response, msgCtx);
+                                    if (repMan != null && SVController.getStaticConf().getNumRepliers() > 0 && replier instanceof DefaultReplier) {
+                                        // same as DefaultReplier, but off the delivery thread
+                                        repMan.send(response);
+                                    } else {
+                                        replier.manageReply(response, msgCtx);
+                                    }
                                 }
                             } else { //this code should never be executed
                                 throw new UnsupportedOperationException("Non-existent interface");
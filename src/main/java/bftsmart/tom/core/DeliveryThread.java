@@ -31,6 +31,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -40,6 +42,16 @@ import java.util.concurrent.locks.ReentrantLock;
  * This class implements a thread which will deliver totally ordered requests to
  * the application
  *
+ * Delivery is split in stages, each one with its own thread:
+ * - decode: a decoder thread takes the decisions from the decided queue,
+ *   obtains their requests and builds their certified decisions;
+ * - execute: this thread runs the AWARE hooks, delivers the requests to the
+ *   application and processes reconfigurations;
+ * - reply: the replies are sent by the ReplyManager threads.
+ * Decoded batches are handed to this thread through a bounded queue, so the
+ * next decisions are decoded while the current ones are executed, and the
+ * decoder stops when it is too far ahead. The time each stage spends working
+ * and waiting for the other one is measured.
  */
 public final class DeliveryThread extends Thread {
 
@@ -48,6 +60,8 @@ public final class DeliveryThread extends Thread {
 	private boolean doWork = true;
 	private int lastReconfig = -2;
 	private final LinkedBlockingQueue<Decision> decided;
+	// decisions of pipelined consensus instances that finished before their predecessors
+	private final TreeMap<Integer, Decision> outOfOrder = new TreeMap<>();
 	private final TOMLayer tomLayer; // TOM layer
 	private final ServiceReplica receiver; // Object that receives requests from clients
 	private final Recoverable recoverer; // Object that uses state transfer
@@ -55,6 +69,19 @@ public final class DeliveryThread extends Thread {
 	private final Lock decidedLock = new ReentrantLock();
 	private final Condition notEmptyQueue = decidedLock.newCondition();
 
+	// decoded batches waiting to be executed
+	private static final int DECODED_QUEUE_SIZE = 16;
+	private final ArrayBlockingQueue<DecodedBatch> decoded = new ArrayBlockingQueue<>(DECODED_QUEUE_SIZE);
+	private final Thread decoder;
+	private int generation = 0; // incremented when a state is installed, guarded by decidedLock
+
+	// per stage metrics, in nanoseconds
+	private volatile long decodeTime = 0;
+	private volatile long decoderBlockedTime = 0; // waiting for space in the decoded queue
+	private volatile long executeTime = 0;
+	private volatile long executorIdleTime = 0; // waiting for decoded batches
+	private volatile long batchesExecuted = 0;
+
 	//Variables used to pause/resume decisions delivery
 	private final Lock pausingDeliveryLock = new ReentrantLock();
 	private final Condition deliveryPausedCondition = pausingDeliveryLock.newCondition();
@@ -77,6 +104,14 @@ public final class DeliveryThread extends Thread {
 		// ******* EDUARDO BEGIN **************//
 		this.controller = controller;
 		// ******* EDUARDO END **************//
+
+		this.decoder = new Thread(this::decode, "Decoder Thread");
+	}
+
+	@Override
+	public synchronized void start() {
+		decoder.start();
+		super.start();
 	}
 
 	public Recoverable getRecoverer() {
@@ -91,6 +126,16 @@ public final class DeliveryThread extends Thread {
 	public void delivery(Decision dec) {
 		decidedLock.lock();
 
+		if (tomLayer.isPipelined()) {
+			int next = Math.max(tomLayer.getLastExec(), lastReconfig) + 1;
+			if (dec.getConsensusId() > next) {
+				logger.debug("Consensus " + dec.getConsensusId() + " finished before consensus " + next + ", holding its decision back");
+				outOfOrder.put(dec.getConsensusId(), dec);
+				decidedLock.unlock();
+				return;
+			}
+		}
+
 		try {
 			decided.put(dec);
 
@@ -116,6 +161,30 @@ public final class DeliveryThread extends Thread {
 		}
 
 		notEmptyQueue.signalAll();
+
+		Decision next = null;
+		if (tomLayer.isPipelined()) {
+			outOfOrder.headMap(dec.getConsensusId(), true).clear();
+			next = outOfOrder.remove(Math.max(tomLayer.getLastExec(), lastReconfig) + 1);
+		}
+		decidedLock.unlock();
+
+		if (next != null) {
+			delivery(next);
+		} else {
+			tomLayer.pipelineAdvanced();
+		}
+	}
+
+	/**
+	 * Drops the decisions of pipelined consensus instances that are still held
+	 * back and are above the specified consensus.
+	 *
+	 * @param cid ID of the last consensus to keep
+	 */
+	public void discardDecisionsAfter(int cid) {
+		decidedLock.lock();
+		outOfOrder.tailMap(cid, false).clear();
 		decidedLock.unlock();
 	}
 
@@ -209,12 +278,68 @@ public final class DeliveryThread extends Thread {
 		// stateManager.setWaiting(-1);
 		tomLayer.setNoExec();
 
-		logger.info("Current decided size: " + decided.size());
+		decidedLock.lock();
+		logger.info("Current decided size: " + decided.size() + ", decoded: " + decoded.size());
 		decided.clear();
+		decoded.clear();
+		generation++; // batches being decoded are discarded too
+		outOfOrder.headMap(lastCID, true).clear();
+		decidedLock.unlock();
 
 		logger.info("All finished up to " + lastCID);
 	}
 
+	/**
+	 * Code of the decoder thread. Takes the decisions from the decided queue
+	 * and hands them, decoded, to the delivery thread.
+	 */
+	private void decode() {
+		while (doWork) {
+			ArrayList<Decision> decisions = new ArrayList<>();
+			int batchGeneration;
+			decidedLock.lock();
+			try {
+				if (decided.isEmpty()) {
+					notEmptyQueue.await();
+				}
+
+				logger.debug("Current size of the decided queue: {}", decided.size());
+
+				if (controller.getStaticConf().getSameBatchSize()) {
+					decided.drainTo(decisions, 1);
+				} else {
+					decided.drainTo(decisions);
+				}
+				batchGeneration = generation;
+			} catch (InterruptedException ex) {
+				continue;
+			} finally {
+				decidedLock.unlock();
+			}
+
+			if (!doWork)
+				break;
+
+			if (decisions.isEmpty())
+				continue;
+
+			try {
+				long start = System.nanoTime();
+				DecodedBatch batch = new DecodedBatch(decisions, batchGeneration);
+				long decodedAt = System.nanoTime();
+				decodeTime += decodedAt - start;
+
+				decoded.put(batch);
+				decoderBlockedTime += System.nanoTime() - decodedAt;
+			} catch (InterruptedException ex) {
+				// shutting down
+			} catch (Exception e) {
+				logger.error("Error while decoding decision", e);
+			}
+		}
+		logger.info("Decoder thread stopped.");
+	}
+
 	/**
 	 * This is the code for the thread. It delivers decisions to the TOM request
 	 * receiver object (which is the application)
@@ -228,79 +353,38 @@ public final class DeliveryThread extends Thread {
 				deliveryPausedCondition.awaitUninterruptibly();
 			}
 			pausingDeliveryLock.unlock();
-			deliverLock.lock();
-
-			/* THIS IS JOAO'S CODE, TO HANDLE STATE TRANSFER */
-			//deliverLock();
-			while (tomLayer.isRetrievingState()) {
-				logger.info("Retrieving State");
-				canDeliver.awaitUninterruptibly();
-
-				// if (tomLayer.getLastExec() == -1)
-				if (init) {
-					logger.info(
-									  "\n\t\t###################################"
-									+ "\n\t\t    Ready to process operations    "
-									+ "\n\t\t###################################");
-                    init = false;
-					/** AWARE **/
-					if (controller.getStaticConf().isUseDynamicWeights())
-						Monitor.getInstance(controller).startSync();
-					/** End AWARE **/
-                }
-            }
-            try {
-                ArrayList<Decision> decisions = new ArrayList<>();
-                decidedLock.lock();
-                if(decided.isEmpty()) {
-                    notEmptyQueue.await();
-                }
 
-                logger.debug("Current size of the decided queue: {}", decided.size());
-
-				if (controller.getStaticConf().getSameBatchSize()) {
-					decided.drainTo(decisions, 1);
-				} else {
-					decided.drainTo(decisions);
-				}
+			// waits for the state before waiting for decisions, as the first state transfer happens at startup
+			deliverLock.lock();
+			init = awaitState(init);
+			deliverLock.unlock();
 
-				decidedLock.unlock();
+			DecodedBatch batch;
+			try {
+				long idle = System.nanoTime();
+				batch = decoded.take();
+				executorIdleTime += System.nanoTime() - idle;
+			} catch (InterruptedException ex) {
+				continue;
+			}
 
+			deliverLock.lock();
+			init = awaitState(init);
+            try {
 				if (!doWork)
 					break;
 
-				if (decisions.size() > 0) {
-
-					TOMMessage[][] requests = new TOMMessage[decisions.size()][];
-					int[] consensusIds = new int[requests.length];
-					int[] leadersIds = new int[requests.length];
-					int[] regenciesIds = new int[requests.length];
-					CertifiedDecision[] cDecs;
-					cDecs = new CertifiedDecision[requests.length];
-					int count = 0;
-					for (Decision d : decisions) {
-						requests[count] = extractMessagesFromDecision(d);
-						consensusIds[count] = d.getConsensusId();
-						leadersIds[count] = d.getLeader();
-						regenciesIds[count] = d.getRegency();
-
-						CertifiedDecision cDec = new CertifiedDecision(this.controller.getStaticConf().getProcessId(),
-								d.getConsensusId(), d.getValue(), d.getDecisionEpoch().proof);
-						cDecs[count] = cDec;
-
-						// cons.firstMessageProposed contains the performance counters
-						if (requests[count].length > 0 && requests[count][0].equals(d.firstMessageProposed)) {
-							long time = requests[count][0].timestamp;
-							long seed = requests[count][0].seed;
-							int numOfNonces = requests[count][0].numOfNonces;
-							requests[count][0] = d.firstMessageProposed;
-							requests[count][0].timestamp = time;
-							requests[count][0].seed = seed;
-							requests[count][0].numOfNonces = numOfNonces;
-						}
+				decidedLock.lock();
+				boolean stale = batch.generation != generation;
+				decidedLock.unlock();
 
-						count++;
+				if (stale) {
+					logger.debug("Discarding {} decisions decoded before the state was installed", batch.decisions.size());
+				} else if (batch.decisions.size() > 0) {
+					long start = System.nanoTime();
+					ArrayList<Decision> decisions = batch.decisions;
 
+					for (Decision d : decisions) {
 						/**
 						 *  Mercury
 						 */
@@ -316,7 +400,7 @@ public final class DeliveryThread extends Thread {
 
 					Decision lastDecision = decisions.get(decisions.size() - 1);
 
-					deliverMessages(consensusIds, regenciesIds, leadersIds, cDecs, requests);
+					deliverMessages(batch.consensusIds, batch.regenciesIds, batch.leadersIds, batch.cDecs, batch.requests);
 
 					// ******* EDUARDO BEGIN ***********//
 					if (controller.hasUpdates()) {
@@ -332,6 +416,19 @@ public final class DeliveryThread extends Thread {
 						// ******* EDUARDO END **************//
 
 						lastReconfig = -2;
+
+						// pipelined decisions held back by the reconfiguration
+						Decision next = null;
+						if (tomLayer.isPipelined()) {
+							decidedLock.lock();
+							next = outOfOrder.remove(tomLayer.getLastExec() + 1);
+							decidedLock.unlock();
+						}
+						if (next != null) {
+							delivery(next);
+						} else {
+							tomLayer.pipelineAdvanced();
+						}
 					}
 
 					// define the last stable consensus... the stable consensus can
@@ -344,20 +441,54 @@ public final class DeliveryThread extends Thread {
 
 						tomLayer.execManager.removeConsensus(stableConsensus);
 					}
+
+					executeTime += System.nanoTime() - start;
+					batchesExecuted++;
+					logger.debug("Executed {} decisions, {} decoded batches waiting", decisions.size(), decoded.size());
 				}
 			} catch (Exception e) {
 				logger.error("Error while processing decision", e);
+			} finally {
+				// THIS IS JOAO'S CODE, TO HANDLE STATE TRANSFER
+				//deliverUnlock();
+				//******************************************************************
+				deliverLock.unlock();
 			}
-
-			// THIS IS JOAO'S CODE, TO HANDLE STATE TRANSFER
-			//deliverUnlock();
-			//******************************************************************
-			deliverLock.unlock();
 		}
 		logger.info("DeliveryThread stopped.");
 
 	}
 
+	/**
+	 * Waits while the replica is retrieving the state. Must be called with
+	 * deliverLock held.
+	 *
+	 * @param init true if no state was awaited yet
+	 * @return the new value of init
+	 */
+	private boolean awaitState(boolean init) {
+		/* THIS IS JOAO'S CODE, TO HANDLE STATE TRANSFER */
+		//deliverLock();
+		while (tomLayer.isRetrievingState()) {
+			logger.info("Retrieving State");
+			canDeliver.awaitUninterruptibly();
+
+			// if (tomLayer.getLastExec() == -1)
+			if (init) {
+				logger.info(
+								  "\n\t\t###################################"
+								+ "\n\t\t    Ready to process operations    "
+								+ "\n\t\t###################################");
+				init = false;
+				/** AWARE **/
+				if (controller.getStaticConf().isUseDynamicWeights())
+					Monitor.getInstance(controller).startSync();
+				/** End AWARE **/
+			}
+		}
+		return init;
+	}
+
 	private TOMMessage[] extractMessagesFromDecision(Decision dec) {
 		TOMMessage[] requests = dec.getDeserializedValue();
 		if (requests == null) {
@@ -420,6 +551,115 @@ public final class DeliveryThread extends Thread {
 		decidedLock.lock();
 		notEmptyQueue.signalAll();
 		decidedLock.unlock();
+
+		// wakes up the decoder if it is waiting for space, and the delivery thread if it is waiting for decoded batches
+		decoder.interrupt();
+		decoded.offer(new DecodedBatch());
+	}
+
+	/**
+	 * @return Number of decisions waiting to be decoded
+	 */
+	public int getDecidedQueueSize() {
+		return decided.size();
+	}
+
+	/**
+	 * @return Number of decoded batches waiting to be executed
+	 */
+	public int getDecodedQueueSize() {
+		return decoded.size();
+	}
+
+	/**
+	 * @return Time spent decoding decisions, in milliseconds
+	 */
+	public long getDecodeTime() {
+		return decodeTime / 1000000;
+	}
+
+	/**
+	 * @return Time the decoder spent waiting for the delivery thread (the
+	 * decoded queue was full), in milliseconds
+	 */
+	public long getDecoderBlockedTime() {
+		return decoderBlockedTime / 1000000;
+	}
+
+	/**
+	 * @return Time spent executing decisions, in milliseconds
+	 */
+	public long getExecuteTime() {
+		return executeTime / 1000000;
+	}
+
+	/**
+	 * @return Time the delivery thread spent waiting for decoded batches, in
+	 * milliseconds
+	 */
+	public long getExecutorIdleTime() {
+		return executorIdleTime / 1000000;
+	}
+
+	/**
+	 * @return Number of batches executed
+	 */
+	public long getBatchesExecuted() {
+		return batchesExecuted;
+	}
+
+	/**
+	 * Decisions taken together from the decided queue, with their requests
+	 * and certificates
+	 */
+	private final class DecodedBatch {
+
+		final ArrayList<Decision> decisions;
+		final int generation;
+		final TOMMessage[][] requests;
+		final int[] consensusIds;
+		final int[] leadersIds;
+		final int[] regenciesIds;
+		final CertifiedDecision[] cDecs;
+
+		DecodedBatch() {
+			this(new ArrayList<>(), -1);
+		}
+
+		DecodedBatch(ArrayList<Decision> decisions, int generation) {
+			this.decisions = decisions;
+			this.generation = generation;
+
+			requests = new TOMMessage[decisions.size()][];
+			consensusIds = new int[requests.length];
+			leadersIds = new int[requests.length];
+			regenciesIds = new int[requests.length];
+			cDecs = new CertifiedDecision[requests.length];
+			int count = 0;
+			for (Decision d : decisions) {
+				requests[count] = extractMessagesFromDecision(d);
+				consensusIds[count] = d.getConsensusId();
+				leadersIds[count] = d.getLeader();
+				regenciesIds[count] = d.getRegency();
+
+				CertifiedDecision cDec = new CertifiedDecision(controller.getStaticConf().getProcessId(),
+						d.getConsensusId(), d.getValue(), d.getDecisionEpoch().proof);
+				cDecs[count] = cDec;
+
+				// cons.firstMessageProposed contains the performance counters
+				if (requests[count].length > 0 && requests[count][0].equals(d.firstMessageProposed)) {
+					long time = requests[count][0].timestamp;
+					long seed = requests[count][0].seed;
+					int numOfNonces = requests[count][0].numOfNonces;
+					requests[count][0] = d.firstMessageProposed;
+					requests[count][0].timestamp = time;
+					requests[count][0].seed = seed;
+					requests[count][0].numOfNonces = numOfNonces;
+				}
+
+				count++;
+			}
+		}
 	}
 
 	/*
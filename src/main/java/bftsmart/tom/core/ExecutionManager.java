@@ -17,6 +17,7 @@ package bftsmart.tom.core;
 
 import bftsmart.consensus.Consensus;
 import bftsmart.consensus.Epoch;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -25,6 +26,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.consensus.Decision;
@@ -33,6 +35,7 @@ import bftsmart.consensus.messages.ConsensusMessage;
 import bftsmart.consensus.roles.Acceptor;
 import bftsmart.consensus.roles.Proposer;
 import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.util.BatchReader;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -56,7 +59,11 @@ public final class ExecutionManager {
     //private int[] acceptors; // Process ID's of all replicas, including this one
     //private int[] otherAcceptors; // Process ID's of all replicas, except this one
     //******* EDUARDO END **************//
-    private Map<Integer, Consensus> consensuses = new TreeMap<Integer, Consensus>(); // Consensuses
+    // Consensuses, indexed by cid % its length. Lookups are lock-free, the lock is only
+    // taken to create or remove instances
+    private AtomicReferenceArray<Consensus> consensuses;
+    // Consensuses whose slot was already taken (only outside the paxos high mark window)
+    private TreeMap<Integer, Consensus> overflow = new TreeMap<Integer, Consensus>();
     private ReentrantLock consensusesLock = new ReentrantLock(); //lock for consensuses table
     // Paxos messages that were out of context (that didn't belong to the consensus that was/is is progress
     private Map<Integer, List<ConsensusMessage>> outOfContext = new HashMap<Integer, List<ConsensusMessage>>();
@@ -76,7 +83,10 @@ public final class ExecutionManager {
     private int revivalHighMark; // Paxos high mark for consensus instances when this replica CID equals 0
     private int timeoutHighMark; // Paxos high mark for a timed-out replica
     
-    private int lastRemovedCID = 0; // Addition to fix memory leak
+    private int lastRemovedCID = -1; // Addition to fix memory leak (-1 while no instance was removed)
+
+    // Decided instances kept after execution, besides the ones in the high mark window
+    private static final int STABLE_MARGIN = 4;
         
     /******************************************************************/
     
@@ -106,6 +116,9 @@ public final class ExecutionManager {
         this.timeoutHighMark = this.controller.getStaticConf().getTimeoutHighMark();
         /******************************************************************/
         //******* EDUARDO END **************//
+
+        // instances from the last stable one (see DeliveryThread) up to the high mark
+        this.consensuses = new AtomicReferenceArray<Consensus>(paxosHighMark + STABLE_MARGIN);
         
         // Get initial leader
         if (controller.getStaticConf().getInitialLeader() != 0) {
@@ -254,10 +267,10 @@ public final class ExecutionManager {
                 }
                 stoppedMsgsLock.unlock();
             } else {
-                if (isRetrievingState || 
+                if (tomLayer.isPipelined() ? isOutOfPipeline(msg, lastConsId) : (isRetrievingState || 
                         msg.getNumber() > (lastConsId + 1) || 
                         (inExec != -1 && inExec < msg.getNumber()) || 
-                        (inExec == -1 && msg.getType() != MessageFactory.PROPOSE)) { //not propose message for the next consensus
+                        (inExec == -1 && msg.getType() != MessageFactory.PROPOSE))) { //not propose message for the next consensus
                     logger.debug("Message for consensus " + 
                             msg.getNumber() + " is out of context, adding it to out of context set");
                     
@@ -311,6 +324,22 @@ public final class ExecutionManager {
         return canProcessTheMessage;
     }
 
+    /**
+     * Checks if a message is out of context when several consensus instances
+     * may run at the same time. PROPOSE messages are accepted for any instance
+     * within the pipeline, while other messages are only accepted for
+     * instances that were already started.
+     *
+     * @param msg the received message
+     * @param lastConsId ID of the last executed consensus
+     * @return true if the message must be stored as out of context, false otherwise
+     */
+    private boolean isOutOfPipeline(ConsensusMessage msg, int lastConsId) {
+        return tomLayer.isRetrievingState() ||
+                msg.getNumber() > (lastConsId + tomLayer.getPipelineDepth()) ||
+                (msg.getType() != MessageFactory.PROPOSE && !tomLayer.isRunning(msg.getNumber()));
+    }
+
     /**
      * Informs if there are messages till to be processed associated the specified consensus
      * @param cid The ID for the consensus in question
@@ -334,10 +363,22 @@ public final class ExecutionManager {
     public Consensus removeConsensus(int id) {
         consensusesLock.lock();
         /******* BEGIN CONSENSUS CRITICAL SECTION *******/
-        Consensus consensus = consensuses.remove(id);
+        Consensus consensus = lookup(id);
 
         // Addition to fix memory leak
-        for (int i = lastRemovedCID; i < id; i++) consensuses.remove(i);
+        if (id - lastRemovedCID >= consensuses.length()) {
+            for (int i = 0; i < consensuses.length(); i++) {
+                Consensus c = consensuses.get(i);
+                if (c != null && c.getId() <= id) consensuses.set(i, null);
+            }
+        } else {
+            for (int i = lastRemovedCID; i <= id; i++) {
+                int slot = slotOf(i);
+                Consensus c = consensuses.get(slot);
+                if (c != null && c.getId() <= id) consensuses.set(slot, null);
+            }
+        }
+        overflow.headMap(id, true).clear();
         lastRemovedCID = id;
         
         /******* END CONSENSUS CRITICAL SECTION *******/
@@ -354,6 +395,32 @@ public final class ExecutionManager {
         return consensus;
     }
 
+    /**
+     * Removes all consensus instances above the specified one, together with
+     * their out of context messages. Used to discard pipelined instances
+     * after a leader change.
+     *
+     * @param id ID of the last consensus to keep
+     */
+    public void removeConsensusesAfter(int id) {
+        consensusesLock.lock();
+        /******* BEGIN CONSENSUS CRITICAL SECTION *******/
+        for (int i = 0; i < consensuses.length(); i++) {
+            Consensus c = consensuses.get(i);
+            if (c != null && c.getId() > id) consensuses.set(i, null);
+        }
+        overflow.tailMap(id, false).clear();
+        /******* END CONSENSUS CRITICAL SECTION *******/
+        consensusesLock.unlock();
+
+        outOfContextLock.lock();
+        /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
+        outOfContextProposes.keySet().removeIf(cid -> cid > id);
+        outOfContext.keySet().removeIf(cid -> cid > id);
+        /******* END OUTOFCONTEXT CRITICAL SECTION *******/
+        outOfContextLock.unlock();
+    }
+
     /** THIS IS JOAO'S CODE, FOR HANDLING THE STATE TRANSFER */
     public void removeOutOfContexts(int id) {
 
@@ -387,10 +454,16 @@ public final class ExecutionManager {
      * @return The consensus specified
      */
     public Consensus getConsensus(int cid) {
+        int slot = slotOf(cid);
+        Consensus consensus = consensuses.get(slot);
+        if (consensus != null && consensus.getId() == cid) {
+            return consensus;
+        }
+
         consensusesLock.lock();
         /******* BEGIN CONSENSUS CRITICAL SECTION *******/
         
-        Consensus consensus = consensuses.get(cid);
+        consensus = lookup(cid);
 
         if (consensus == null) {//there is no consensus created with the given cid
             //let's create one...
@@ -398,8 +471,15 @@ public final class ExecutionManager {
 
             consensus = new Consensus(this, dec);
 
-            //...and add it to the consensuses table
-            consensuses.put(cid, consensus);
+            //...and add it to the consensuses table. An instance that was already removed
+            //only goes to the overflow, which is cleared on the next removal, and a slot
+            //still holding such an instance is taken over
+            Consensus current = consensuses.get(slot);
+            if (cid > lastRemovedCID && (current == null || current.getId() <= lastRemovedCID)) {
+                consensuses.set(slot, consensus);
+            } else {
+                overflow.put(cid, consensus);
+            }
         }
 
         /******* END CONSENSUS CRITICAL SECTION *******/
@@ -407,33 +487,52 @@ public final class ExecutionManager {
 
         return consensus;
     }
+
+    /**
+     * Finds a consensus in the table. Must be called while holding consensusesLock
+     *
+     * @param cid ID of the consensus
+     * @return The consensus, or null if it was not yet created
+     */
+    private Consensus lookup(int cid) {
+        Consensus consensus = consensuses.get(slotOf(cid));
+        return consensus != null && consensus.getId() == cid ? consensus : overflow.get(cid);
+    }
+
+    private int slotOf(int cid) {
+        return Math.floorMod(cid, consensuses.length());
+    }
     
     public boolean isDecidable(int cid) {
         if (receivedOutOfContextPropose(cid)) {
             Consensus cons = getConsensus(cid);
             ConsensusMessage prop = outOfContextProposes.get(cons.getId());
             Epoch epoch = cons.getEpoch(prop.getEpoch(), controller);
-            byte[] propHash = tomLayer.computeHash(prop.getValue());
+            // a digest PROPOSE is only resolved when processed, so its hash is not known yet:
+            // then the votes are counted for each value
+            byte[] propHash = BatchReader.isDigestBatch(prop.getValue()) ? null : tomLayer.computeHash(prop.getValue());
             List<ConsensusMessage> msgs = outOfContext.get(cid);
-            int countWrites = 0;
-            int countAccepts = 0;
+            Map<ByteBuffer, int[]> counts = new HashMap<>(); // WRITEs and ACCEPTs per value
             if (msgs != null) {
                 for (ConsensusMessage msg : msgs) {
                     
-                    if (msg.getEpoch() == epoch.getTimestamp() &&
-                            Arrays.equals(propHash, msg.getValue())) {
+                    if (msg.getEpoch() == epoch.getTimestamp() && msg.getValue() != null &&
+                            (propHash == null || Arrays.equals(propHash, msg.getValue()))) {
                         
-                        if (msg.getType() == MessageFactory.WRITE) countWrites++;
-                        else if (msg.getType() == MessageFactory.ACCEPT) countAccepts++;
+                        int[] count = counts.computeIfAbsent(ByteBuffer.wrap(msg.getValue()), k -> new int[2]);
+                        if (msg.getType() == MessageFactory.WRITE) count[0]++;
+                        else if (msg.getType() == MessageFactory.ACCEPT) count[1]++;
                     }
                 }
             }
 
-            if(controller.getStaticConf().isBFT()){
-            	return ((countWrites > (2*controller.getCurrentViewT())) &&
-            			(countAccepts > (2*controller.getCurrentViewT())));
-            }else{
-            	return (countAccepts > controller.getQuorum());
+            for (int[] count : counts.values()) {
+                if(controller.getStaticConf().isBFT()){
+                    if ((count[0] > (2*controller.getCurrentViewT())) &&
+                            (count[1] > (2*controller.getCurrentViewT()))) return true;
+                }else{
+                    if (count[1] > controller.getQuorum()) return true;
+                }
             }
         }
         return false;
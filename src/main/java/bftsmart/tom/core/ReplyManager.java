@@ -6,36 +6,32 @@ package bftsmart.tom.core;
 
 import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.tom.core.messages.TOMMessage;
-import io.netty.channel.Channel;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.ArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
+ * Sends the replies produced by the delivery thread to the clients.
+ *
+ * Each client is assigned to a fixed writer thread (by its id), so the
+ * replies to a client are sent in the order they were produced. A writer
+ * takes all the replies waiting in its queue at once and hands them to the
+ * client communication system together, which writes the replies to each
+ * connection in one buffer and flushes it once.
  *
  * @author joao
  */
 public class ReplyManager {
         
-    private LinkedList<ReplyThread> threads;
-    private int iteration;
+    private final ReplyThread[] threads;
     
     public ReplyManager(int numThreads, ServerCommunicationSystem cs) {
         
-        this.threads = new LinkedList();
-        this.iteration = 0;
+        this.threads = new ReplyThread[Math.max(1, numThreads)];
         
-        for (int i = 0; i < numThreads; i++) {
-            this.threads.add(new ReplyThread(cs));
+        for (int i = 0; i < threads.length; i++) {
+            this.threads[i] = new ReplyThread(cs, i);
         }
         
         for (ReplyThread t : threads)
@@ -44,62 +40,116 @@ public class ReplyManager {
     
     public void send (TOMMessage msg) {
         
-        iteration++;
-        threads.get((iteration % threads.size())).send(msg);
+        threads[Math.floorMod(msg.getSender(), threads.length)].send(msg);
+
+    }
+
+    /**
+     * @return Number of replies waiting to be sent, in all the writers
+     */
+    public int getQueuedReplies() {
+        int queued = 0;
+        for (ReplyThread t : threads) {
+            queued += t.getQueued();
+        }
+        return queued;
+    }
+
+    /**
+     * @return Largest number of replies taken at once by a writer
+     */
+    public int getMaxQueueDepth() {
+        int max = 0;
+        for (ReplyThread t : threads) {
+            max = Math.max(max, t.getMaxDepth());
+        }
+        return max;
+    }
+
+    /**
+     * @return Number of replies sent so far
+     */
+    public long getRepliesSent() {
+        long sent = 0;
+        for (ReplyThread t : threads) {
+            sent += t.getRepliesSent();
+        }
+        return sent;
+    }
 
+    /**
+     * @return Number of times the writers took replies from their queues
+     */
+    public long getBatchesSent() {
+        long batches = 0;
+        for (ReplyThread t : threads) {
+            batches += t.getBatchesSent();
+        }
+        return batches;
     }
 }
 class ReplyThread extends Thread {
         
-    private LinkedBlockingQueue<TOMMessage> replies;
+    private final LinkedBlockingQueue<TOMMessage> replies;
     private ServerCommunicationSystem cs = null;
+
+    private volatile int maxDepth = 0;
+    private volatile long repliesSent = 0;
+    private volatile long batchesSent = 0;
     
-    private final Lock queueLock = new ReentrantLock();
-    private final Condition notEmptyQueue = queueLock.newCondition();
-    
-    private Map<Integer, Channel> channels;
-    
-    ReplyThread(ServerCommunicationSystem cs) {
+    ReplyThread(ServerCommunicationSystem cs, int id) {
+        super("Reply Thread " + id);
         this.cs = cs;
         this.replies = new LinkedBlockingQueue<TOMMessage>();
-        this.channels = new HashMap<>();
     }
     
     void send(TOMMessage msg) {
         
-        try {
-            queueLock.lock();
-            replies.put(msg);
-            notEmptyQueue.signalAll();
-            queueLock.unlock();
-        } catch (InterruptedException ex) {
-            Logger.getLogger(ReplyThread.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        replies.offer(msg);
+    }
+
+    int getQueued() {
+        return replies.size();
+    }
+
+    int getMaxDepth() {
+        return maxDepth;
+    }
+
+    long getRepliesSent() {
+        return repliesSent;
+    }
+
+    long getBatchesSent() {
+        return batchesSent;
     }
     
     public void run() {
 
+        ArrayList<TOMMessage> list = new ArrayList<>();
 
         while (true) {
 
             try {
                 
-                LinkedList<TOMMessage> list = new LinkedList<>();
-                
-                queueLock.lock();
-                while (replies.isEmpty()) notEmptyQueue.await(10, TimeUnit.MILLISECONDS);
+                list.add(replies.take());
                 replies.drainTo(list);
-                queueLock.unlock();
-                
-                for (TOMMessage msg : list) {
-                    
-                    cs.getClientsConn().send(new int[] {msg.getSender()}, msg.reply, false);             
-                }
+
+                if (list.size() > maxDepth) maxDepth = list.size();
+
+                cs.getClientsConn().sendReplies(list);
+
+                repliesSent += list.size();
+                batchesSent++;
             } catch (InterruptedException ex) {
                 LoggerFactory.getLogger(this.getClass()).error("Could not retrieve reply from queue",ex);
+            } catch (RuntimeException ex) {
+                LoggerFactory.getLogger(this.getClass()).error("Failed to send replies",ex);
+            } finally {
+                list.clear();
             }
 
         }
 
     }
-}
\ No newline at end of file
+}
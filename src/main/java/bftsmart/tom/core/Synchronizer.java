@@ -1193,6 +1193,9 @@ public class Synchronizer {
 
             }
 
+            // pipelined instances after this one are restarted by the new leader
+            tom.discardPipelinedInstances(currentCID);
+
             // resume normal operation
             execManager.restart();
             //leaderChanged = true;
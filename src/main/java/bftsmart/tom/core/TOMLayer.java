@@ -47,11 +47,11 @@ import java.io.Serializable;
 import java.security.*;
 import java.util.HashMap;
 import java.util.NoSuchElementException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.TreeSet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -85,6 +85,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
     public RequestsTimer requestsTimer;
 
     private long lastRequest = -1;
+    private ScheduledFuture<?> batchTimer = null;
 
     /**
      * Store requests received but still not ordered
@@ -93,8 +94,15 @@ public final class TOMLayer extends Thread implements RequestReceiver {
     /**
      * The id of the consensus being executed (or -1 if there is none)
      */
-    private int inExecution = -1;
-    private int lastExecuted = -1;
+    private volatile int inExecution = -1;
+    private volatile int lastExecuted = -1;
+
+    /**
+     * Pipelining: maximum number of concurrent consensus instances, and the
+     * instances that were started but are not yet decided (guarded by proposeLock)
+     */
+    private final int pipelineDepth;
+    private final TreeSet<Integer> runningInstances = new TreeSet<>();
 
     public MessageDigest md;
     private Signature engine;
@@ -155,6 +163,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         this.acceptor = a;
         this.communication = cs;
         this.controller = controller;
+        this.pipelineDepth = this.controller.getStaticConf().getPipelineDepth();
 
         /* Tulio Ribeiro */
         this.privateKey = this.controller.getStaticConf().getPrivateKey();
@@ -205,8 +214,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         if (controller.getStaticConf().getBatchTimeout() > -1) {
 
             // timeout for batch
-            Timer batchTimer = new Timer();
-            batchTimer.scheduleAtFixedRate(new TimerTask() {
+            batchTimer = controller.getTimerScheduler().scheduleAtFixedRate("batch timer", new Runnable() {
                 @Override
                 public void run() {
 
@@ -317,13 +325,118 @@ public final class TOMLayer extends Thread implements RequestReceiver {
     public void setInExec(int inEx) {
         proposeLock.lock();
         logger.debug("Modifying inExec from " + this.inExecution + " to " + inEx);
-        this.inExecution = inEx;
+        if (isPipelined() && (inEx == -1 || inEx > lastExecuted + 1)) {
+            // with pipelining, inExec always refers to the lowest running instance
+            if (inEx != -1) runningInstances.add(inEx);
+            runningInstances.headSet(lastExecuted, true).clear();
+            this.inExecution = runningInstances.contains(lastExecuted + 1) ? lastExecuted + 1 : -1;
+        } else {
+            if (isPipelined()) runningInstances.add(inEx);
+            this.inExecution = inEx;
+        }
         if (inEx == -1 && !isRetrievingState()) {
             canPropose.signalAll();
         }
         proposeLock.unlock();
     }
 
+    /**
+     * Informs if more than one consensus instance may run at the same time
+     *
+     * @return True if the pipeline depth is greater than 1, false otherwise
+     */
+    public boolean isPipelined() {
+        return pipelineDepth > 1;
+    }
+
+    /**
+     * Gets the maximum number of consensus instances that may run at the same time
+     *
+     * @return The pipeline depth
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Informs if the specified consensus was started, either by proposing it
+     * (leader) or by accepting its PROPOSE message, and is not yet decided
+     *
+     * @param cid ID of the consensus in question
+     * @return True if the consensus is running, false otherwise
+     */
+    public boolean isRunning(int cid) {
+        proposeLock.lock();
+        boolean running = cid == inExecution || runningInstances.contains(cid);
+        proposeLock.unlock();
+        return running;
+    }
+
+    /**
+     * Gets the ID of the next consensus the leader should start, which is the
+     * successor of the highest consensus started or executed so far
+     *
+     * @return ID of the next consensus to be started
+     */
+    private int getNextToStart() {
+        int next = lastExecuted + 1;
+        if (inExecution >= next) next = inExecution + 1;
+        if (!runningInstances.isEmpty() && runningInstances.last() >= next) next = runningInstances.last() + 1;
+        return next;
+    }
+
+    /**
+     * Informs if the leader can start another consensus instance without
+     * exceeding the pipeline depth. Instances are never started beyond an
+     * AWARE/Mercury reconfiguration point before that point is executed.
+     * Must be called while holding proposeLock.
+     *
+     * @return True if another instance can be started, false otherwise
+     */
+    private boolean isPipelineOpen() {
+        int next = getNextToStart();
+        return next - lastExecuted <= pipelineDepth
+                && !(isReconfigurationPoint(next - 1) && lastExecuted < next - 1);
+    }
+
+    private boolean isReconfigurationPoint(int cid) {
+        int interval = controller.getStaticConf().getCalculationInterval();
+        int delay = controller.getStaticConf().getCalculationDelay();
+        return interval > 0 && cid % interval == delay && cid >= interval + delay;
+    }
+
+    /**
+     * Discards the state of pipelined consensus instances above the specified
+     * one. Invoked at the end of a leader change, since the new leader restarts
+     * the pipeline from the consensus being synchronized. These instances cannot
+     * have been decided by any correct replica, because ACCEPT messages are only
+     * sent in consensus order.
+     *
+     * @param cid ID of the consensus resumed after the leader change
+     */
+    public void discardPipelinedInstances(int cid) {
+        if (!isPipelined()) return;
+
+        proposeLock.lock();
+        logger.debug("Discarding pipelined consensus instances after " + cid);
+        runningInstances.tailSet(cid, false).clear();
+        proposeLock.unlock();
+
+        execManager.removeConsensusesAfter(cid);
+        dt.discardDecisionsAfter(cid);
+    }
+
+    /**
+     * Notifies the pipeline that the last executed consensus advanced, so that
+     * the next instance can send an ACCEPT that was held back while its
+     * predecessor was still undecided.
+     */
+    public void pipelineAdvanced() {
+        if (isPipelined()) {
+            acceptor.sendDeferredAccept(getLastExec() + 1);
+        }
+    }
+
     /**
      * This method blocks until the PaW algorithm is finished
      */
@@ -472,7 +585,12 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             // blocks until the current consensus finishes
             proposeLock.lock();
 
-            if (getInExec() != -1) { // there is some consensus running
+            if (isPipelined()) {
+                if (!isPipelineOpen()) { // the pipeline is full
+                    logger.debug("Waiting for consensus " + getInExec() + " termination, pipeline is full.");
+                    canPropose.awaitUninterruptibly();
+                }
+            } else if (getInExec() != -1) { // there is some consensus running
                 logger.debug("Waiting for consensus " + getInExec() + " termination.");
                 canPropose.awaitUninterruptibly();
             }
@@ -519,6 +637,25 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             }
             /** End AWARE **/
 
+            if (isPipelined() && controller.getCurrentViewN() > 1) {
+                proposeLock.lock();
+                int execId = getNextToStart();
+                boolean canStart = isPipelineOpen();
+                proposeLock.unlock();
+
+                if ((execManager.getCurrentLeader() == this.controller.getStaticConf().getProcessId()) && //I'm the leader
+                        (clientsManager.havePendingRequests()) && //there are messages to be ordered
+                        canStart) { //there is room in the pipeline
+                    setInExec(execId);
+
+                    Decision dec = execManager.getConsensus(execId).getDecision();
+
+                    logger.debug("I am the leader and start pipelined consensus " + execId);
+                    execManager.getProposer().startConsensus(execId, createPropose(dec));
+                }
+                continue;
+            }
+
             if ((execManager.getCurrentLeader() == this.controller.getStaticConf().getProcessId()) && //I'm the leader
                     (clientsManager.havePendingRequests()) && //there are messages to be ordered
                     (getInExec() == -1)) { //there is no consensus in execution
@@ -666,6 +803,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
         proposeLock.lock();
         this.inExecution = -1;
+        runningInstances.clear();
         // ot.addUpdate();
         canPropose.signalAll();
         proposeLock.unlock();
@@ -675,6 +813,16 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         for (int nextConsensus = getLastExec() + 1; execManager.receivedOutOfContextPropose(nextConsensus); nextConsensus = getLastExec() + 1) {
             execManager.processOutOfContextPropose(execManager.getConsensus(nextConsensus));
         }
+
+        // proposes for later instances that now fit in the pipeline
+        if (isPipelined()) {
+            int last = getLastExec();
+            for (int cid = last + 2; cid <= last + pipelineDepth; cid++) {
+                if (execManager.receivedOutOfContextPropose(cid)) {
+                    execManager.processOutOfContextPropose(execManager.getConsensus(cid));
+                }
+            }
+        }
     }
 
     public StateManager getStateManager() {
@@ -702,6 +850,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         setNoExec();
 
         if (this.requestsTimer != null) this.requestsTimer.shutdown();
+        if (this.batchTimer != null) this.batchTimer.cancel(false);
         if (this.clientsManager != null) {
             this.clientsManager.clear();
             this.clientsManager.getPendingRequests().clear();
@@ -15,10 +15,13 @@ limitations under the License.
 */
 package bftsmart.tom.core.messages;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 
+import bftsmart.communication.MessageCodec;
 import bftsmart.communication.SystemMessage;
 
 
@@ -79,4 +82,33 @@ public final class ForwardedMessage extends SystemMessage {
         }
     }
 
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        super.writeTo(out);
+
+        MessageCodec.writeBytes(out, request.serializedMessage);
+        MessageCodec.writeBytes(out, request.signed ? request.serializedMessageSignature : null);
+    }
+
+    @Override
+    public void readFrom(DataInput in) throws IOException {
+        super.readFrom(in);
+
+        byte[] serReq = MessageCodec.readBytes(in);
+        if (serReq == null) {
+            throw new IOException("Forwarded message without request");
+        }
+
+        request = TOMMessage.bytesToMessage(serReq);
+        if (request == null) {
+            throw new IOException("Invalid forwarded request");
+        }
+        request.serializedMessage = serReq;
+
+        byte[] serReqSign = MessageCodec.readBytes(in);
+        if (serReqSign != null) {
+            request.serializedMessageSignature = serReqSign;
+        }
+    }
+
 }
@@ -38,6 +38,7 @@ import bftsmart.consensus.messages.ConsensusMessage;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.MerkleProof;
 import bftsmart.tom.util.TOMUtil;
 
 /**
@@ -824,15 +825,13 @@ public class LCManager {
 
             byte[] data = bOut.toByteArray();
 
-            if (consMsg.getProof() instanceof byte[]) { // certificate is made of signatures
+            if (consMsg.getProof() instanceof byte[] || consMsg.getProof() instanceof MerkleProof) { // certificate is made of signatures
                 
                 logger.debug("Proof made of Signatures");
                 pubKey = SVController.getStaticConf().getPublicKey(consMsg.getSender());
-                   
-                byte[] signature = (byte[]) consMsg.getProof();
 
                 if (Arrays.equals(consMsg.getValue(), hashedValue) &&
-                        TOMUtil.verifySignature(pubKey, data, signature) && !alreadyCounted.contains(consMsg.getSender())) {
+                        TOMUtil.verifyProof(pubKey, data, consMsg.getProof()) && !alreadyCounted.contains(consMsg.getSender())) {
                     
                     alreadyCounted.add(consMsg.getSender());
                     weightsValid += usedView.getWeight(consMsg.getSender());
@@ -15,10 +15,13 @@ limitations under the License.
 */
 package bftsmart.tom.leaderchange;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 
+import bftsmart.communication.MessageCodec;
 import bftsmart.communication.SystemMessage;
 import bftsmart.tom.util.TOMUtil;
 
@@ -100,4 +103,22 @@ public class LCMessage extends SystemMessage {
         ts = in.readInt();
         payload = (byte[]) in.readObject();
     }
+
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        super.writeTo(out);
+
+        out.writeInt(type);
+        out.writeInt(ts);
+        MessageCodec.writeBytes(out, payload);
+    }
+
+    @Override
+    public void readFrom(DataInput in) throws IOException {
+        super.readFrom(in);
+
+        type = in.readInt();
+        ts = in.readInt();
+        payload = MessageCodec.readBytes(in);
+    }
 }
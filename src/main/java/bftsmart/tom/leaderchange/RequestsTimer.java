@@ -15,13 +15,17 @@ limitations under the License.
 */
 package bftsmart.tom.leaderchange;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.ListIterator;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.TreeSet;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.HashMap;
 import java.util.Set;
 
@@ -33,6 +37,7 @@ import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.util.TOMUtil;
+import bftsmart.tom.util.TimerScheduler;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,25 +45,41 @@ import org.slf4j.LoggerFactory;
 /**
  * This thread serves as a manager for all timers of pending requests.
  *
+ * Watched requests are kept in buckets, one for each tick (a fraction of the
+ * request timeout) of the time at which they were received, and in an
+ * index that maps each request to its bucket. Watching and unwatching a
+ * request only touch the index and one bucket, each bucket having its own
+ * lock. When the timer expires, only the buckets old enough to hold expired
+ * requests are visited.
+ *
+ * The request timer and the STOP retransmission timers run on the scheduler
+ * shared by all the timers of the replica.
  */
 public class RequestsTimer {
     
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    private Timer timer = new Timer("request timer");
-    private RequestTimerTask rtTask = null;
+    private static final int BUCKETS_PER_TIMEOUT = 16;
+    private static final Comparator<TOMMessage> BY_CLIENT = (r1, r2) -> r1.compareTo(r2);
+
+    private final TimerScheduler scheduler;
+    private volatile RequestTimerTask rtTask = null;
     private TOMLayer tomLayer; // TOM layer
     private long timeout;
     private long shortTimeout;
-    private TreeSet<TOMMessage> watched = new TreeSet<TOMMessage>();
-    private ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+    private final long tick; // width of a bucket, in milliseconds
+    private final ConcurrentSkipListMap<Long, Bucket> buckets = new ConcurrentSkipListMap<>(); // by tick
+    private volatile Bucket current = null; // bucket of the latest tick in which a watched request was received
+    private final ConcurrentHashMap<TOMMessage, Bucket> watched = new ConcurrentHashMap<>();
+    private final AtomicInteger watchedCount = new AtomicInteger(0);
 
-    private boolean enabled = true;
+    private volatile boolean enabled = true;
+    private volatile boolean shutdown = false;
     
     private ServerCommunicationSystem communication; // Communication system between replicas
     private ServerViewController controller; // Reconfiguration manager
     
-    private HashMap <Integer, Timer> stopTimers = new HashMap<>();
+    private HashMap <Integer, ScheduledFuture<?>> stopTimers = new HashMap<>();
     
     //private Storage st1 = new Storage(100000);
     //private Storage st2 = new Storage(10000);
@@ -71,25 +92,27 @@ public class RequestsTimer {
         
         this.communication = communication;
         this.controller = controller;
+        this.scheduler = controller.getTimerScheduler();
         
         this.timeout = this.controller.getStaticConf().getRequestTimeout();
         this.shortTimeout = -1;
+        this.tick = Math.max(1, this.timeout / BUCKETS_PER_TIMEOUT);
     }
 
     public void setShortTimeout(long shortTimeout) {
         this.shortTimeout = shortTimeout;
     }
     
-    public void startTimer() {
-        if (rtTask == null) {
+    public synchronized void startTimer() {
+        if (rtTask == null && !shutdown) {
             long t = (shortTimeout > -1 ? shortTimeout : timeout);
             //shortTimeout = -1;
             rtTask = new RequestTimerTask();
-            if (controller.getCurrentViewN() > 1) timer.schedule(rtTask, t);
+            if (controller.getCurrentViewN() > 1) rtTask.schedule(t);
         }
     }
     
-    public void stopTimer() {
+    public synchronized void stopTimer() {
         if (rtTask != null) {
             rtTask.cancel();
             rtTask = null;
@@ -110,11 +133,43 @@ public class RequestsTimer {
      * @param request Request to which the timer is being createf for
      */
     public void watch(TOMMessage request) {
-        //long startInstant = System.nanoTime();
-        rwLock.writeLock().lock();
-        watched.add(request);
-        if (watched.size() >= 1 && enabled) startTimer();
-        rwLock.writeLock().unlock();
+        Bucket bucket = bucketOf(request);
+        if (watched.putIfAbsent(request, bucket) != null) {
+            return;
+        }
+        watchedCount.incrementAndGet(); // unwatch decrements it as soon as the request is in the index
+
+        while (!bucket.add(request)) { // the bucket was just discarded
+            Bucket next = bucketOf(request);
+            if (!watched.replace(request, bucket, next)) {
+                return; // unwatched meanwhile
+            }
+            bucket = next;
+        }
+        if (watched.get(request) != bucket) {
+            bucket.remove(request); // unwatched before it was in the bucket
+            return;
+        }
+
+        if (rtTask == null && enabled) startTimer();
+    }
+
+    /**
+     * @return the bucket of the tick in which the request was received, the
+     * time from which its timeout counts
+     */
+    private Bucket bucketOf(TOMMessage request) {
+        long tick = request.receptionTimestamp / this.tick;
+        Bucket bucket = current;
+        if (bucket != null && bucket.tick == tick && !bucket.discarded) {
+            return bucket;
+        }
+        bucket = buckets.computeIfAbsent(tick, Bucket::new);
+        Bucket latest = current;
+        if (latest == null || tick >= latest.tick) {
+            current = bucket;
+        }
+        return bucket;
     }
 
     /**
@@ -122,28 +177,57 @@ public class RequestsTimer {
      * @param request Request whose timer is to be canceled
      */
     public void unwatch(TOMMessage request) {
-        //long startInstant = System.nanoTime();
-        rwLock.writeLock().lock();
-        if (watched.remove(request) && watched.isEmpty()) stopTimer();
-        rwLock.writeLock().unlock();
+        Bucket bucket = watched.remove(request);
+        if (bucket != null) {
+            bucket.remove(request);
+            if (watchedCount.decrementAndGet() == 0) {
+                synchronized (this) {
+                    if (watchedCount.get() == 0) stopTimer();
+                }
+            }
+        }
     }
 
     /**
      * Cancels all timers for all messages
      */
-    public void clearAll() {
-        TOMMessage[] requests = new TOMMessage[watched.size()];
-        rwLock.writeLock().lock();
-        
-        watched.toArray(requests);
+    public synchronized void clearAll() {
+        for (Bucket bucket : watched.values()) {
+            bucket.clear();
+        }
+        watched.clear();
+        watchedCount.set(0);
+        stopTimer();
+    }
+
+    /**
+     * @return Number of requests being watched
+     */
+    public int getWatchedCount() {
+        return watchedCount.get();
+    }
+
+    /**
+     * Collects the watched requests received more than t milliseconds ago,
+     * visiting only the buckets that may hold them. Empty buckets left behind
+     * are discarded.
+     */
+    private LinkedList<TOMMessage> expired(long t) {
+        long now = System.currentTimeMillis();
+        long limit = now - t;
+        LinkedList<TOMMessage> expired = new LinkedList<>();
 
-        for (TOMMessage request : requests) {
-            if (request != null && watched.remove(request) && watched.isEmpty() && rtTask != null) {
-                rtTask.cancel();
-                rtTask = null;
+        Iterator<Map.Entry<Long, Bucket>> it = buckets.headMap(limit / tick, true).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Bucket> entry = it.next();
+            // the buckets of the last ticks may still receive requests, they are kept even if empty
+            if (entry.getValue().collect(limit, expired, entry.getKey() < now / tick - 1)) {
+                buckets.remove(entry.getKey(), entry.getValue());
             }
         }
-        rwLock.writeLock().unlock();
+
+        expired.sort(BY_CLIENT); // same order as before, by client and sequence
+        return expired;
     }
     
     public void run_lc_protocol() {
@@ -152,23 +236,7 @@ public class RequestsTimer {
         
         //System.out.println("(RequestTimerTask.run) I SOULD NEVER RUN WHEN THERE IS NO TIMEOUT");
 
-        LinkedList<TOMMessage> pendingRequests = new LinkedList<>();
-
-        try {
-        
-            rwLock.readLock().lock();
-        
-            for (Iterator<TOMMessage> i = watched.iterator(); i.hasNext();) {
-                TOMMessage request = i.next();
-                if ((System.currentTimeMillis() - request.receptionTimestamp ) > t) {
-                    pendingRequests.add(request);
-                }
-            }
-            
-        } finally {
-            
-            rwLock.readLock().unlock();
-        }
+        LinkedList<TOMMessage> pendingRequests = expired(t);
         
         if (!pendingRequests.isEmpty()) {
 
@@ -202,29 +270,33 @@ public class RequestsTimer {
                 tomLayer.getSynchronizer().triggerTimeout(pendingRequests);
             }
             else {
-                rtTask = new RequestTimerTask();
-                timer.schedule(rtTask, t);
+                restartTimer(t);
             }
         } else {
             
             logger.debug("Timeout triggered with no expired requests");
             
-            rtTask = new RequestTimerTask();
-            timer.schedule(rtTask, t);
+            restartTimer(t);
         }
         
     }
     
+    private synchronized void restartTimer(long t) {
+        if (shutdown) return;
+        rtTask = new RequestTimerTask();
+        rtTask.schedule(t);
+    }
+    
     public void setSTOP(int regency, LCMessage stop) {
         
-        stopSTOP(regency);
-        
-        SendStopTask stopTask = new SendStopTask(stop);
-        Timer stopTimer = new Timer("Stop message");
-        
-        stopTimer.schedule(stopTask, timeout);
-        
-       stopTimers.put(regency, stopTimer);
+        synchronized (stopTimers) {
+            stopSTOP(regency);
+            if (shutdown) return;
+
+            ScheduledFuture<?> stopTimer = scheduler.schedule("STOP " + regency, new SendStopTask(stop), timeout);
+
+            stopTimers.put(regency, stopTimer);
+        }
 
     }   
     
@@ -237,29 +309,125 @@ public class RequestsTimer {
     
     public void stopSTOP(int regency){
         
-        Timer stopTimer = stopTimers.remove(regency);
-        if (stopTimer != null) stopTimer.cancel();
+        synchronized (stopTimers) {
+            ScheduledFuture<?> stopTimer = stopTimers.remove(regency);
+            if (stopTimer != null) stopTimer.cancel(false);
+        }
 
     }
     
     public Set<Integer> getTimers() {
         
-        return ((HashMap <Integer,Timer>) stopTimers.clone()).keySet();
+        synchronized (stopTimers) {
+            return ((HashMap <Integer,ScheduledFuture<?>>) stopTimers.clone()).keySet();
+        }
         
     }
     
     public void shutdown() {
-        timer.cancel();
+        shutdown = true;
+        stopTimer();
         stopAllSTOPs();
         LoggerFactory.getLogger(this.getClass()).info("RequestsTimer stopped.");
 
     }
     
-    class RequestTimerTask extends TimerTask {
+    /**
+     * Watched requests received during the same tick
+     */
+    private static class Bucket {
+
+        private static final int STRIPES = 16;
+
+        final long tick;
+        private final ArrayList<HashSet<TOMMessage>> stripes = new ArrayList<>(STRIPES); // each one is its own lock
+        private volatile boolean discarded = false;
+
+        Bucket(long tick) {
+            this.tick = tick;
+            for (int i = 0; i < STRIPES; i++) {
+                stripes.add(new HashSet<>());
+            }
+        }
+
+        private HashSet<TOMMessage> stripe(TOMMessage request) {
+            return stripes.get((request.hashCode() & 0x7fffffff) % STRIPES);
+        }
+
+        /**
+         * @return false if the bucket was discarded, in which case the request was not added
+         */
+        boolean add(TOMMessage request) {
+            HashSet<TOMMessage> stripe = stripe(request);
+            synchronized (stripe) {
+                stripe.add(request);
+            }
+            // discarded is set before the stripes are checked, so either collect sees this request or we see the flag
+            if (discarded) {
+                remove(request);
+                return false;
+            }
+            return true;
+        }
+
+        void remove(TOMMessage request) {
+            HashSet<TOMMessage> stripe = stripe(request);
+            synchronized (stripe) {
+                stripe.remove(request);
+            }
+        }
+
+        void clear() {
+            for (HashSet<TOMMessage> stripe : stripes) {
+                synchronized (stripe) {
+                    stripe.clear();
+                }
+            }
+        }
+
+        /**
+         * Adds the requests received before limit to expired
+         *
+         * @param discard whether to discard the bucket if it is empty
+         * @return true if the bucket was discarded
+         */
+        boolean collect(long limit, LinkedList<TOMMessage> expired, boolean discard) {
+            if (discard) {
+                discarded = true;
+            }
+            boolean empty = true;
+            for (HashSet<TOMMessage> stripe : stripes) {
+                synchronized (stripe) {
+                    for (TOMMessage request : stripe) {
+                        if (request.receptionTimestamp < limit) {
+                            expired.add(request);
+                        }
+                    }
+                    empty &= stripe.isEmpty();
+                }
+            }
+            if (discard && !empty) {
+                discarded = false;
+            }
+            return discard && empty;
+        }
+    }
+
+    class RequestTimerTask implements Runnable {
+
+        private ScheduledFuture<?> future = null;
+
+        void schedule(long delay) {
+            future = scheduler.schedule("request timer", this, delay);
+        }
+
+        void cancel() {
+            if (future != null) future.cancel(false);
+        }
 
         @Override
         /**
-         * This is the code for the TimerTask. It executes the timeout for the first
+         * This is the code for the timer task. It executes the timeout for the first
          * message on the watched list.
          */
         public void run() {
@@ -272,7 +440,7 @@ public class RequestsTimer {
         }
     }
     
-    class SendStopTask extends TimerTask {
+    class SendStopTask implements Runnable {
         
         private LCMessage stop;
         
@@ -282,7 +450,7 @@ public class RequestsTimer {
 
         @Override
         /**
-         * This is the code for the TimerTask. It sends a STOP
+         * This is the code for the timer task. It sends a STOP
          * message to the other replicas
          */
         public void run() {
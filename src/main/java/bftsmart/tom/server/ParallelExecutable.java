@@ -0,0 +1,72 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server;
+
+import bftsmart.tom.MessageContext;
+
+/**
+ * Executor that runs the commands of a batch in parallel when they do not
+ * conflict with each other.
+ *
+ * The application declares, for each command, the keys of the parts of the
+ * state it reads or writes (a key can identify an object, or a whole class of
+ * commands). Commands that share a key are executed in the order they were
+ * decided; commands with disjoint keys may be executed at the same time by
+ * different threads, so they must commute. The replies are returned in the
+ * order of the batch, so the result is the same in all replicas, regardless
+ * of how the commands were scheduled.
+ *
+ * The batch is executed by ParallelScheduler, with
+ * 'system.executionthreads' threads. executeBatch returns only after all the
+ * commands of the batch were executed.
+ */
+public interface ParallelExecutable extends BatchExecutable {
+
+    /**
+     * Returns the conflict keys of a command. This method is called by the
+     * delivery thread, and should only parse the command.
+     *
+     * @param command the command issued by the client
+     * @param msgCtx information related with the command
+     *
+     * @return the keys of the state accessed by the command, an empty array
+     * if it does not conflict with any other command, or null if it conflicts
+     * with all of them (it is then executed alone)
+     */
+    public int[] getConflictKeys(byte[] command, MessageContext msgCtx);
+
+    /**
+     * Executes a command. Called concurrently for commands that do not share
+     * any conflict key.
+     *
+     * As in SingleExecutable.executeOrdered, the code for this method MUST use
+     * the timestamp and nonces from the message context instead of its own
+     * clock and random values.
+     *
+     * @param command the command issued by the client
+     * @param msgCtx information related with the command
+     *
+     * @return the reply for the request issued by the client
+     */
+    public byte[] executeParallel(byte[] command, MessageContext msgCtx);
+
+    @Override
+    public default byte[][] executeBatch(byte[][] command, MessageContext[] msgCtx) {
+
+        return ParallelScheduler.getInstance().execute(this, command, msgCtx);
+    }
+
+}
@@ -0,0 +1,281 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.tom.MessageContext;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Executes the batches of a ParallelExecutable on a pool of worker threads.
+ *
+ * For each batch, a dependency graph is built from the conflict keys: a
+ * command depends on the last previous command that shares one of its keys,
+ * and on the last command without keys (which conflicts with everything).
+ * A command without keys depends on all the commands since the previous one.
+ * Commands with no pending dependencies are run by the workers, and finishing
+ * a command releases the ones that depend on it.
+ *
+ * execute() returns only when all the commands of the batch were executed,
+ * so no worker is running between two batches. This is what allows
+ * DefaultRecoverable to take a checkpoint in the middle of a delivery: it
+ * executes the commands up to the checkpoint as one batch, takes the
+ * snapshot, and then executes the rest.
+ *
+ * Only one instance exists, as for the AWARE Monitor; its size is set by the
+ * replica with setThreads before the first batch is executed.
+ */
+public class ParallelScheduler {
+
+    private static ParallelScheduler instance = null;
+    private static int threads = 0;
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final int workers;
+    private final ExecutorService pool;
+
+    private final AtomicLong batches = new AtomicLong(0);
+    private final AtomicLong commands = new AtomicLong(0);
+    private final AtomicLong dependencies = new AtomicLong(0);
+
+    /**
+     * Sets the number of worker threads. Has no effect once the scheduler
+     * was created.
+     *
+     * @param threads Number of threads, 0 to use one for each core
+     */
+    public static synchronized void setThreads(int threads) {
+        if (instance != null) {
+            LoggerFactory.getLogger(ParallelScheduler.class).warn(
+                    "Parallel scheduler already created with " + instance.workers + " threads");
+        }
+        ParallelScheduler.threads = threads;
+    }
+
+    /**
+     * @return the scheduler, created on the first call
+     */
+    public static synchronized ParallelScheduler getInstance() {
+        if (instance == null) {
+            int n = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+            instance = new ParallelScheduler(n);
+        }
+        return instance;
+    }
+
+    private ParallelScheduler(int workers) {
+        this.workers = workers;
+        AtomicInteger count = new AtomicInteger(0);
+        this.pool = Executors.newFixedThreadPool(workers, (r) -> {
+            Thread t = new Thread(r, "Parallel executor " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        logger.info("Executing commands with " + workers + " threads");
+    }
+
+    /**
+     * Executes a batch of commands, running the ones that do not conflict in
+     * parallel
+     *
+     * @param executor the application
+     * @param commands the batch of commands
+     * @param msgCtxs the context associated to each command
+     * @return the replies, in the order of the commands
+     */
+    public byte[][] execute(ParallelExecutable executor, byte[][] commands, MessageContext[] msgCtxs) {
+
+        byte[][] replies = new byte[commands.length][];
+
+        batches.incrementAndGet();
+        this.commands.addAndGet(commands.length);
+
+        if (commands.length == 1 || workers == 1) {
+            for (int i = 0; i < commands.length; i++) {
+                replies[i] = executor.executeParallel(commands[i], msgCtxs[i]);
+            }
+            return replies;
+        }
+
+        Batch batch = new Batch(executor, commands, msgCtxs, replies);
+        batch.build();
+        batch.start();
+        batch.await();
+
+        return replies;
+    }
+
+    /**
+     * @return Number of batches executed
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * @return Number of commands executed
+     */
+    public long getCommands() {
+        return commands.get();
+    }
+
+    /**
+     * @return Number of dependencies between commands found so far
+     */
+    public long getDependencies() {
+        return dependencies.get();
+    }
+
+    /**
+     * Dependency graph of a batch being executed
+     */
+    private class Batch {
+
+        private final ParallelExecutable executor;
+        private final byte[][] commands;
+        private final MessageContext[] msgCtxs;
+        private final byte[][] replies;
+
+        private final AtomicInteger[] pending; // dependencies not yet executed, for each command
+        private final List<List<Integer>> next; // commands that depend on each command
+        private final CountDownLatch done;
+        private volatile RuntimeException failure = null;
+
+        Batch(ParallelExecutable executor, byte[][] commands, MessageContext[] msgCtxs, byte[][] replies) {
+            this.executor = executor;
+            this.commands = commands;
+            this.msgCtxs = msgCtxs;
+            this.replies = replies;
+            this.pending = new AtomicInteger[commands.length];
+            this.next = new ArrayList<>(commands.length);
+            this.done = new CountDownLatch(commands.length);
+        }
+
+        void build() {
+            HashMap<Integer, Integer> last = new HashMap<>(); // command that last used each key
+            ArrayList<Integer> sinceBarrier = new ArrayList<>(); // commands since the last one without keys
+            int barrier = -1; // last command without keys
+
+            for (int i = 0; i < commands.length; i++) {
+                pending[i] = new AtomicInteger(0);
+                next.add(new ArrayList<>(2));
+
+                int[] keys = executor.getConflictKeys(commands[i], msgCtxs[i]);
+                if (keys == null) {
+                    if (sinceBarrier.isEmpty()) {
+                        depends(i, barrier);
+                    }
+                    for (int j : sinceBarrier) {
+                        depends(i, j);
+                    }
+                    barrier = i;
+                    sinceBarrier.clear();
+                    last.clear();
+                    continue;
+                }
+
+                depends(i, barrier);
+                for (int key : keys) {
+                    Integer previous = last.put(key, i);
+                    if (previous != null) {
+                        depends(i, previous);
+                    }
+                }
+                sinceBarrier.add(i);
+            }
+        }
+
+        private void depends(int command, int previous) {
+            if (previous < 0) {
+                return;
+            }
+            List<Integer> successors = next.get(previous);
+            if (!successors.isEmpty() && successors.get(successors.size() - 1) == command) {
+                return; // already depends on it through another key
+            }
+            successors.add(command);
+            pending[command].incrementAndGet();
+            dependencies.incrementAndGet();
+        }
+
+        void start() {
+            // the roots are collected first, as the workers release the other commands as soon as they start
+            ArrayList<Integer> roots = new ArrayList<>();
+            for (int i = 0; i < commands.length; i++) {
+                if (pending[i].get() == 0) {
+                    roots.add(i);
+                }
+            }
+            for (int root : roots) {
+                submit(root);
+            }
+        }
+
+        private void submit(int command) {
+            pool.execute(() -> run(command));
+        }
+
+        /**
+         * Executes a command and then, while there is one, a command it
+         * released, submitting the others to the pool
+         */
+        private void run(int command) {
+            while (command >= 0) {
+                try {
+                    if (failure == null) {
+                        replies[command] = executor.executeParallel(commands[command], msgCtxs[command]);
+                    }
+                } catch (RuntimeException ex) {
+                    failure = ex;
+                } catch (Throwable ex) {
+                    failure = new RuntimeException(ex);
+                }
+
+                int following = -1;
+                for (int successor : next.get(command)) {
+                    if (pending[successor].decrementAndGet() == 0) {
+                        if (following >= 0) {
+                            submit(following);
+                        }
+                        following = successor;
+                    }
+                }
+                done.countDown();
+                command = following;
+            }
+        }
+
+        void await() {
+            TOMUtil.awaitUninterruptibly(done);
+            if (failure != null) {
+                logger.error("Failed to execute batch", failure);
+                throw failure;
+            }
+        }
+    }
+}
@@ -162,6 +162,22 @@ public class DefaultApplicationState implements ApplicationState {
         return stateHash;
     }
 
+    /**
+     * The state of an IncrementalState application is hashed as a PageTable
+     * @return Secure hash of the state associated with the last checkpoint
+     */
+    @Override
+    public byte[] computeStateHash() {
+        if (PageTable.isPageTable(state)) {
+            try {
+                return PageTable.deserialize(state).getHash();
+            } catch (IllegalArgumentException ex) {
+                return null;
+            }
+        }
+        return ApplicationState.super.computeStateHash();
+    }
+
     /**
      * Sets the state associated with the last checkpoint
      * @param state State associated with the last checkpoint
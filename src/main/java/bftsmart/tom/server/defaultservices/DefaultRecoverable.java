@@ -20,7 +20,13 @@ package bftsmart.tom.server.defaultservices;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.reconfiguration.ServerViewController;
@@ -31,6 +37,8 @@ import bftsmart.statemanagement.standard.StandardStateManager;
 import bftsmart.tom.MessageContext;
 import bftsmart.tom.ReplicaContext;
 import bftsmart.tom.server.BatchExecutable;
+import bftsmart.tom.server.ParallelExecutable;
+import bftsmart.tom.server.ParallelScheduler;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.util.TOMUtil;
 
@@ -41,6 +49,21 @@ import org.slf4j.LoggerFactory;
  *
  * This class provides a basic state transfer protocol using the interface
  * 'BatchExecutable'.
+ *
+ * If the subclass also implements 'ParallelExecutable', the commands are
+ * executed with executeParallel by the ParallelScheduler instead of
+ * appExecuteBatch. Each part of a batch before and after a checkpoint is
+ * executed separately, so the workers are idle when the snapshot is taken.
+ *
+ * By default the snapshot is taken and hashed by the delivery thread, which
+ * stops executing commands meanwhile. If the subclass overrides freezeState,
+ * the delivery thread only freezes the state, and the snapshot is serialized,
+ * hashed and stored in the log by a background thread. The batches executed
+ * in the meantime are kept aside and added to the log after the checkpoint.
+ *
+ * If the subclass also implements 'IncrementalState', each checkpoint only
+ * copies the pages modified since the previous one, which are hashed and
+ * stored by the background thread (see PageTable).
  * 
  * @author Joao Sousa
  */
@@ -58,6 +81,12 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
     private StateLog log;
     private StateManager stateManager;
 
+    private ExecutorService checkpointThread = null;
+    private final LogWriter logWriter = new LogWriter();
+    private Future<?> pendingCheckpoint = null; // checkpoint being saved in the background
+    private ArrayList<CommandsInfo> pendingBatches = new ArrayList<>(); // logged after the pending checkpoint
+    private boolean fullCheckpoint = true; // next checkpoint of an IncrementalState has all the pages
+
     /**
      * Constructor
      */
@@ -88,15 +117,7 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
         if (checkpointIndex == -1) {
 
-            if (!noop) {
-
-                stateLock.lock();
-                replies = appExecuteBatch(commands, msgCtxs, true);
-                stateLock.unlock();
-
-            }
-
-            saveCommands(commands, msgCtxs);
+            replies = executeAndLog(commands, msgCtxs, noop);
         } else {
             // there is a replica supposed to take the checkpoint. In this case, the commands
             // must be executed in two steps. First the batch of commands containing commands
@@ -125,17 +146,30 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
             if (!noop) {
                 stateLock.lock();
-                firstHalfReplies = appExecuteBatch(firstHalf, firstHalfMsgCtx, true);
+                firstHalfReplies = execute(firstHalf, firstHalfMsgCtx, true);
                 stateLock.unlock();
             }
 
             logger.info("Performing checkpoint for consensus " + cid);
+            waitCheckpoint();
             stateLock.lock();
-            byte[] snapshot = getSnapshot();
-            stateLock.unlock();
-            saveState(snapshot, cid);
+            if (this instanceof IncrementalState) {
+                PageTable.Delta delta = collectPages((IncrementalState) this);
+                stateLock.unlock();
+                saveStateAsync(null, delta, new CommandsInfo(firstHalf, firstHalfMsgCtx), cid);
+            } else {
+                FrozenState frozen = freezeState();
+                if (frozen == null) {
+                    byte[] snapshot = getSnapshot();
+                    stateLock.unlock();
+                    saveState(snapshot, cid);
 
-            this.controller.updateLastCheckpoint(cid);
+                    this.controller.updateLastCheckpoint(cid);
+                } else {
+                    stateLock.unlock();
+                    saveStateAsync(frozen, null, new CommandsInfo(firstHalf, firstHalfMsgCtx), cid);
+                }
+            }
 
             System.arraycopy(firstHalfReplies, 0, replies, 0, firstHalfReplies.length);
 
@@ -144,14 +178,8 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 //	        	System.out.println("----THERE IS A SECOND HALF----");
                 cid = msgCtxs[msgCtxs.length - 1].getConsensusId();
 
-                if (!noop) {
-                    stateLock.lock();
-                    secondHalfReplies = appExecuteBatch(secondHalf, secondHalfMsgCtx, true);
-                    stateLock.unlock();
-                }
-
                 logger.debug("Storing message batch in the state log for consensus " + cid);
-                saveCommands(secondHalf, secondHalfMsgCtx);
+                secondHalfReplies = executeAndLog(secondHalf, secondHalfMsgCtx, noop);
 
                 System.arraycopy(secondHalfReplies, 0, replies, firstHalfReplies.length, secondHalfReplies.length);
             }
@@ -164,6 +192,38 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
         return replies;
     }
 
+    /**
+     * Executes the commands and stores them in the log. If
+     * 'system.totalordermulticast.log_parallel' is set, the log thread writes
+     * them while they are executed. In both cases this method only returns,
+     * and so the replies are only sent, when the commands were executed and
+     * logged.
+     */
+    private byte[][] executeAndLog(byte[][] commands, MessageContext[] msgCtxs, boolean noop) {
+        if (noop) {
+            saveCommands(commands, msgCtxs);
+            return new byte[commands.length][];
+        }
+        return logWriter.executeAndLog(() -> {
+            stateLock.lock();
+            byte[][] replies = execute(commands, msgCtxs, true);
+            stateLock.unlock();
+            return replies;
+        }, () -> saveCommands(commands, msgCtxs), config.isToLogParallel());
+    }
+
+    /**
+     * Executes the commands with appExecuteBatch, or in parallel if the
+     * application is a ParallelExecutable. In both cases all the commands
+     * were executed when this method returns.
+     */
+    private byte[][] execute(byte[][] commands, MessageContext[] msgCtxs, boolean fromConsensus) {
+        if (this instanceof ParallelExecutable) {
+            return ParallelScheduler.getInstance().execute((ParallelExecutable) this, commands, msgCtxs);
+        }
+        return appExecuteBatch(commands, msgCtxs, fromConsensus);
+    }
+
     private final byte[] computeHash(byte[] data) {
         byte[] ret = null;
         hashLock.lock();
@@ -194,6 +254,150 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
         logger.debug("(TOMLayer.saveState) Finished saving state of CID " + lastCID);
     }
 
+    /**
+     * Copies the pages of an IncrementalState modified since the previous
+     * checkpoint, or all of them after the replica started or installed a
+     * state. Called with stateLock held.
+     */
+    private PageTable.Delta collectPages(IncrementalState state) {
+        boolean full = fullCheckpoint;
+        int[] ids = full ? state.getPages() : state.getDirtyPages();
+        if (full) {
+            state.getDirtyPages(); // the changes are tracked from this checkpoint on
+        }
+        HashMap<Integer, byte[]> pages = new HashMap<>();
+        for (int id : ids) {
+            byte[] page = state.getPage(id);
+            if (page != null || !full) {
+                pages.put(id, page);
+            }
+        }
+        fullCheckpoint = false;
+        return new PageTable.Delta(pages, full);
+    }
+
+    /**
+     * Serializes and saves a frozen state, or the pages of an
+     * IncrementalState, in the background. Until the checkpoint is in the log,
+     * the batches executed after it are kept in pendingBatches, as
+     * newCheckpoint discards the batches already logged. pendingBatches is
+     * its own lock, so that the delivery thread is not blocked while the
+     * checkpoint is written with logLock held.
+     *
+     * If the checkpoint fails, the batches it covers ('checkpointBatch', the
+     * ones of the delivery in which it was taken, the previous ones being
+     * already in the log) and the pending ones are added to the current log
+     * instead, so that the log has no gap, and the next checkpoint is full.
+     */
+    private void saveStateAsync(FrozenState frozen, PageTable.Delta delta, CommandsInfo checkpointBatch, int lastCID) {
+
+        StateLog thisLog = getLog();
+
+        synchronized (pendingBatches) {
+            if (checkpointThread == null) {
+                checkpointThread = Executors.newSingleThreadExecutor((r) -> {
+                    Thread t = new Thread(r, "Checkpoint Thread");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            pendingCheckpoint = checkpointThread.submit(() -> {
+
+                long start = System.nanoTime();
+                boolean saved = false;
+                try {
+                    byte[] snapshot = null;
+                    byte[] hash = null;
+                    if (frozen != null) {
+                        snapshot = frozen.serialize();
+                        hash = computeHash(snapshot);
+                    } else {
+                        delta.computeHashes();
+                    }
+
+                    logLock.lock();
+                    try {
+                        if (frozen != null) {
+                            thisLog.newCheckpoint(snapshot, hash, lastCID);
+                        } else {
+                            thisLog.newCheckpoint(delta, lastCID);
+                        }
+                        thisLog.setLastCID(lastCID);
+                        thisLog.setLastCheckpointCID(lastCID);
+                        saved = true;
+
+                        synchronized (pendingBatches) {
+                            for (CommandsInfo batch : pendingBatches) {
+                                logBatches(batch.commands, batch.msgCtx);
+                            }
+                            thisLog.sync();
+                            pendingBatches.clear();
+                            pendingCheckpoint = null;
+                        }
+                    } finally {
+                        logLock.unlock();
+                    }
+                } finally {
+                    if (!saved) {
+                        keepBatches(thisLog, checkpointBatch);
+                    }
+                }
+
+                this.controller.updateLastCheckpoint(lastCID);
+                if (frozen != null) {
+                    logger.debug("Saved state of CID " + lastCID + " in the background in "
+                            + ((System.nanoTime() - start) / 1000000) + " ms");
+                } else {
+                    logger.debug("Saved " + (delta.isFull() ? "full" : "incremental") + " checkpoint of CID "
+                            + lastCID + " (" + delta.size() + " pages, " + delta.getBytes() + " bytes) in "
+                            + ((System.nanoTime() - start) / 1000000) + " ms");
+                }
+            });
+        }
+    }
+
+    /**
+     * Adds the batches of a checkpoint that failed, and the ones executed
+     * after it, to the current log
+     */
+    private void keepBatches(StateLog thisLog, CommandsInfo checkpointBatch) {
+        logLock.lock();
+        try {
+            synchronized (pendingBatches) {
+                logBatches(checkpointBatch.commands, checkpointBatch.msgCtx);
+                for (CommandsInfo batch : pendingBatches) {
+                    logBatches(batch.commands, batch.msgCtx);
+                }
+                thisLog.sync();
+                pendingBatches.clear();
+                pendingCheckpoint = null;
+                fullCheckpoint = true; // the pages collected for it are not in any checkpoint
+            }
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the checkpoint being saved in the background, if any, is in
+     * the log, or its batches are if it failed
+     */
+    private void waitCheckpoint() {
+        Future<?> pending;
+        synchronized (pendingBatches) {
+            pending = pendingCheckpoint;
+        }
+
+        if (pending == null) {
+            return;
+        }
+        try {
+            TOMUtil.getUninterruptibly(pending);
+        } catch (ExecutionException ex) {
+            logger.error("Failed to save checkpoint, its batches were kept in the log", ex.getCause());
+        }
+    }
+
     /**
      * Write commands to log file
      *
@@ -207,8 +411,24 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
             logger.debug("SIZE OF COMMANDS AND MESSAGE CONTEXTS IS DIFFERENT----");
             logger.debug("COMMANDS: " + commands.length + ", CONTEXTS: " + msgCtx.length + " ----");
         }
+        synchronized (pendingBatches) {
+            if (pendingCheckpoint != null) {
+                pendingBatches.add(new CommandsInfo(commands, msgCtx));
+                return;
+            }
+        }
+        // checkpoints are started by the delivery thread, only after the previous commands were logged
         logLock.lock();
+        logBatches(commands, msgCtx);
+        log.sync(); // one sync for all the consensus delivered together
+        logLock.unlock();
+    }
 
+    /**
+     * Adds the commands to the log, one batch for each consensus. Called with
+     * logLock held.
+     */
+    private void logBatches(byte[][] commands, MessageContext[] msgCtx) {
         int cid = msgCtx[0].getConsensusId();
         int batchStart = 0;
         for (int i = 0; i <= msgCtx.length; i++) {
@@ -226,11 +446,11 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
                 }
             }
         }
-        logLock.unlock();
     }
 
     @Override
     public ApplicationState getState(int cid, boolean sendState) {
+        waitCheckpoint();
         logLock.lock();
         ApplicationState ret = (cid > -1 ? getLog().getApplicationState(cid, sendState) : new DefaultApplicationState());
         
@@ -257,30 +477,44 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
             logger.info("I'm going to update myself from CID "
                     + lastCheckpointCID + " to CID " + lastCID);
            
+            waitCheckpoint();
             stateLock.lock();
             if (state.getSerializedState() != null) {
                 logger.info("The state is not null. Will install it");
                 initLog();
                 log.update(state);
-                installSnapshot(state.getSerializedState());
+                if (this instanceof IncrementalState && PageTable.isPageTable(state.getSerializedState())) {
+                    PageTable pages = new PageTable(true);
+                    pages.apply(PageTable.Delta.read(state.getSerializedState(), true));
+                    ((IncrementalState) this).installPages(pages.getPages());
+                } else {
+                    installSnapshot(state.getSerializedState());
+                }
+                fullCheckpoint = true;
             }
 
+            // the batches are executed coalesced (see ReplayBatch)
+            ReplayBatch replay = new ReplayBatch();
+            long start = System.nanoTime();
             for (int cid = lastCheckpointCID + 1; cid <= lastCID; cid++) {
                 try {
 
                     logger.debug("Processing and verifying batched requests for cid " + cid);
-                    if (state.getMessageBatch(cid) == null) {
+                    CommandsInfo cmdInfo = state.getMessageBatch(cid); 
+                    if (cmdInfo == null) {
                         logger.warn("Consensus " + cid + " is null!");
+                        continue;
                     }
 
-                    CommandsInfo cmdInfo = state.getMessageBatch(cid); 
                     byte[][] commands = cmdInfo.commands; // take a batch
                     MessageContext[] msgCtx = cmdInfo.msgCtx;
                     
                     if (commands == null || msgCtx == null || msgCtx[0].isNoOp()) {
                         continue;
                     }                        
-                    appExecuteBatch(commands, msgCtx, false);
+                    if (replay.add(cmdInfo)) {
+                        executeReplay(replay);
+                    }
                     
                 } catch (Exception e) {
                     logger.error("Failed to process and verify batched requests",e);
@@ -293,6 +527,15 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
                 }
 
             }
+            if (!replay.isEmpty()) {
+                try {
+                    executeReplay(replay);
+                } catch (Exception e) {
+                    logger.error("Failed to process and verify batched requests",e);
+                }
+            }
+            logger.info("Executed the batches up to CID " + lastCID + " in "
+                    + ((System.nanoTime() - start) / 1000000) + " ms");
             stateLock.unlock();
 
         }
@@ -300,6 +543,13 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
         return lastCID;
     }
 
+    private void executeReplay(ReplayBatch replay) {
+        byte[][] commands = replay.getCommands();
+        MessageContext[] msgCtx = replay.getMessageContexts();
+        replay.clear();
+        execute(commands, msgCtx, false);
+    }
+
     /**
      * Iterates over the message context array and get the consensus id of each
      * command being executed. As several times during the execution of commands
@@ -387,6 +637,8 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
                 boolean syncLog = config.isToWriteSyncLog();
                 boolean syncCkp = config.isToWriteSyncCkp();
                 log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
+                ((DiskStateLog) log).setMaxDeltas(config.getCheckpointDeltas());
+                ((DiskStateLog) log).setSegmentSize(config.getLogSegmentSize());
 
                 ApplicationState storedState = ((DiskStateLog) log).loadDurableState();
                 if (storedState.getLastCID() > 0) {
@@ -445,7 +697,23 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
     public abstract byte[] getSnapshot();
     
     /**
-     * Execute a batch of ordered requests
+     * Freezes the application state at a checkpoint, so that it can be
+     * serialized in the background while the next commands are executed.
+     * Called by the delivery thread, with no command being executed, so it
+     * should be cheap (e.g., start a new version of a copy-on-write
+     * structure). The default implementation returns null, and the snapshot
+     * is taken with getSnapshot instead.
+     *
+     * @return A frozen view of the application state, or null to take the
+     * snapshot with getSnapshot. Not called for an IncrementalState.
+     */
+    public FrozenState freezeState() {
+        return null;
+    }
+
+    /**
+     * Execute a batch of ordered requests. Not called if the subclass
+     * implements ParallelExecutable.
      * 
      * @param commands The batch of requests
      * @param msgCtxs The context associated to each request
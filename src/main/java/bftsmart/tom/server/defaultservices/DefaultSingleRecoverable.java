@@ -176,6 +176,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
                 }
             }
         }
+        log.sync();
         
         logLock.unlock();
     }
@@ -266,6 +267,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
                 boolean syncLog = config.isToWriteSyncLog();
                 boolean syncCkp = config.isToWriteSyncCkp();
                 log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
+                ((DiskStateLog) log).setSegmentSize(config.getLogSegmentSize());
 
                 ApplicationState storedState = ((DiskStateLog) log).loadDurableState();
                 if (storedState.getLastCID() > 0) {
@@ -296,6 +298,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
             	boolean syncLog = config.isToWriteSyncLog();
             	boolean syncCkp = config.isToWriteSyncCkp();
             	log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
+            	((DiskStateLog) log).setSegmentSize(config.getLogSegmentSize());
             } else
             	log = new StateLog(controller.getStaticConf().getProcessId(), checkpointPeriod, state, computeHash(state));
     	}
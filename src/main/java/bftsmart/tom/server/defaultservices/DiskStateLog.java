@@ -15,14 +15,13 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
@@ -38,7 +37,8 @@ public class DiskStateLog extends StateLog {
 	private static final int INT_BYTE_SIZE = 4;
 	private static final int EOF = 0;
 
-	private RandomAccessFile log;
+	private LogSegment log;
+	private long segmentSize = 0;
 	private boolean syncLog;
 	private String logPath;
 	private String lastCkpPath;
@@ -46,6 +46,11 @@ public class DiskStateLog extends StateLog {
 	private boolean isToLog;
 	private ReentrantLock checkpointLock = new ReentrantLock();
 	private Map<Integer, Long> logPointers;
+	private PageTable hashes; // hashes of the pages of an IncrementalState application, null otherwise
+	private byte[] pagesHash; // hash of the state of an IncrementalState application
+	private ArrayList<String> deltaPaths = new ArrayList<>(); // incremental checkpoints after the last full one
+	private int maxDeltas = 10;
+	private long lastTimestamp = 0;
 	
 	public DiskStateLog(int id, byte[] initialState, byte[] initialHash,
 			boolean isToLog, boolean syncLog, boolean syncCkp) {
@@ -64,12 +69,8 @@ public class DiskStateLog extends StateLog {
 		logPath = DEFAULT_DIR + String.valueOf(id) + "."
 				+ System.currentTimeMillis() + ".log";
 		try {
-			log = new RandomAccessFile(logPath, (syncLog ? "rwd" : "rw"));
-			// PreAllocation
-			/*
-			 * log.setLength(TEN_MB); log.seek(0);
-			 */
-		} catch (FileNotFoundException e) {
+			log = new LogSegment(logPath, syncLog, segmentSize);
+		} catch (IOException e) {
 			logger.error("Failed to create log file",e);
 		}
 	}
@@ -95,60 +96,42 @@ public class DiskStateLog extends StateLog {
 	}
 
 	private void writeCommandToDisk(CommandsInfo commandsInfo, int consensusId) {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 		try {
-			ObjectOutputStream oos = new ObjectOutputStream(bos);
-			oos.writeObject(commandsInfo);
-			oos.flush();
-
-			byte[] batchBytes = bos.toByteArray();
-
-			ByteBuffer bf = ByteBuffer.allocate(3 * INT_BYTE_SIZE
-					+ batchBytes.length);
-			bf.putInt(batchBytes.length);
-			bf.put(batchBytes);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-			
-			log.write(bf.array());
-			log.seek(log.length() - 2 * INT_BYTE_SIZE);// Next write will overwrite
-													// the EOF mark
+			log.append(commandsInfo, consensusId);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			logger.error("Failed to write command to disk",e);
-	    }
+		}
+	}
+
+	/**
+	 * Forces the batches added since the last call to disk, with a single
+	 * sync if 'system.totalordermulticast.sync_log' is set
+	 */
+        @Override
+	public void sync() {
+		try {
+			if (log != null)
+				log.sync();
+		} catch (IOException e) {
+			logger.error("Failed to sync log",e);
+		}
+	}
+
+	/**
+	 * @param segmentSize Size to which each log file is preallocated, 0 not
+	 * to preallocate them
+	 */
+	public void setSegmentSize(long segmentSize) {
+		this.segmentSize = segmentSize;
 	}
 
         @Override
 	public void newCheckpoint(byte[] state, byte[] stateHash, int consensusId) {
-		String ckpPath = DEFAULT_DIR + String.valueOf(id) + "."
-				+ System.currentTimeMillis() + ".tmp";
 		try {
 			checkpointLock.lock();
-			RandomAccessFile ckp = new RandomAccessFile(ckpPath,
-					(syncCkp ? "rwd" : "rw"));
-
-			ByteBuffer bf = ByteBuffer.allocate(state.length + stateHash.length
-					+ 4 * INT_BYTE_SIZE);
-			bf.putInt(state.length);
-			bf.put(state);
-			bf.putInt(stateHash.length);
-			bf.put(stateHash);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-
-			byte[] ckpState = bf.array();
-			
-			ckp.write(ckpState);
-			ckp.close();
-
-			if (isToLog)
-				deleteLogFile();
-			deleteLastCkp();
-			renameCkp(ckpPath);
-			if (isToLog)
-				createLogFile();
-			
+			saveCheckpoint(state, stateHash, consensusId, false);
+			hashes = null;
+			pagesHash = null;
 		} catch (FileNotFoundException e) {
 			// TODO Auto-generated catch block
 			logger.error("Failed to open checkpoint file",e);
@@ -160,6 +143,108 @@ public class DiskStateLog extends StateLog {
 		}
 	}
 
+	/**
+	 * Stores the pages of an IncrementalState application. Only the pages
+	 * changed since the previous checkpoint are written, in a '.dlt' file.
+	 * After 'maxDeltas' of them, they are merged with the last full
+	 * checkpoint into a new one.
+	 * 
+	 * @param delta Pages changed since the previous checkpoint, or all of them
+	 * @param consensusId
+	 */
+        @Override
+	public void newCheckpoint(PageTable.Delta delta, int consensusId) {
+		try {
+			checkpointLock.lock();
+			if (!delta.isFull() && (hashes == null || lastCkpPath == null)) {
+				throw new IllegalStateException("Incremental checkpoint without a full one");
+			}
+			PageTable table = delta.isFull() ? new PageTable(false) : hashes;
+			table.apply(delta);
+			byte[] hash = table.getHash();
+
+			if (delta.isFull()) {
+				saveCheckpoint(delta.serialize(), hash, consensusId, false);
+			} else if (deltaPaths.size() >= maxDeltas) {
+				PageTable merged = readPages();
+				merged.apply(delta);
+				saveCheckpoint(merged.serialize(), hash, consensusId, false);
+				logger.info("Merged " + (deltaPaths.size() + 1) + " incremental checkpoints");
+			} else {
+				saveCheckpoint(delta.serialize(), hash, consensusId, true);
+			}
+			hashes = table;
+			pagesHash = hash;
+		} catch (IOException e) {
+			logger.error("Failed to write checkpoint to disk",e);
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes a checkpoint to a new file and starts a new log. A full
+	 * checkpoint replaces the previous one and its incremental checkpoints.
+	 */
+	private void saveCheckpoint(byte[] state, byte[] stateHash, int consensusId, boolean isDelta) throws IOException {
+		String ckpPath = DEFAULT_DIR + String.valueOf(id) + "."
+				+ nextTimestamp() + ".tmp";
+		RandomAccessFile ckp = new RandomAccessFile(ckpPath,
+				(syncCkp ? "rwd" : "rw"));
+
+		// the state is written as it is, instead of being copied to a buffer with the rest
+		ckp.write(ByteBuffer.allocate(INT_BYTE_SIZE).putInt(state.length).array());
+		ckp.write(state);
+		ByteBuffer bf = ByteBuffer.allocate(stateHash.length + 3 * INT_BYTE_SIZE);
+		bf.putInt(stateHash.length);
+		bf.put(stateHash);
+		bf.putInt(EOF);
+		bf.putInt(consensusId);
+		ckp.write(bf.array());
+		ckp.close();
+
+		if (isToLog)
+			deleteLogFile();
+		if (isDelta) {
+			String deltaPath = ckpPath.replace(".tmp", ".dlt");
+			new File(ckpPath).renameTo(new File(deltaPath));
+			deltaPaths.add(deltaPath);
+		} else {
+			deleteLastCkp();
+			deleteDeltas();
+			renameCkp(ckpPath);
+		}
+		if (isToLog)
+			createLogFile();
+	}
+
+	/**
+	 * Reads the pages of the last full checkpoint and applies the
+	 * incremental ones
+	 */
+	private PageTable readPages() {
+		FileRecoverer fr = new FileRecoverer(id, DEFAULT_DIR);
+		PageTable table = new PageTable(true);
+		table.apply(PageTable.Delta.read(fr.getCkpState(lastCkpPath), true));
+		for (String deltaPath : deltaPaths) {
+			table.apply(PageTable.Delta.read(fr.getCkpState(deltaPath), false));
+		}
+		return table;
+	}
+
+	private long nextTimestamp() {
+		lastTimestamp = Math.max(System.currentTimeMillis(), lastTimestamp + 1);
+		return lastTimestamp;
+	}
+
+	/**
+	 * @param maxDeltas Number of incremental checkpoints written before they
+	 * are merged into a full one
+	 */
+	public void setMaxDeltas(int maxDeltas) {
+		this.maxDeltas = maxDeltas;
+	}
+
 	private void renameCkp(String ckpPath) {
 		String finalCkpPath = ckpPath.replace(".tmp", ".ckp");
 		new File(ckpPath).renameTo(new File(finalCkpPath));
@@ -171,10 +256,19 @@ public class DiskStateLog extends StateLog {
 			new File(lastCkpPath).delete();
 	}
 
+	private void deleteDeltas() {
+		for (String deltaPath : deltaPaths)
+			new File(deltaPath).delete();
+		deltaPaths.clear();
+	}
+
 	private void deleteLogFile() {
 		try {
-			if(log != null)
+			if(log != null) {
+				logger.debug("Closing log segment: " + log.getRecords() + " batches, " + log.getBytes()
+						+ " bytes, " + log.getSyncs() + " syncs (" + log.getAverageSyncTime() + " ms on average)");
 				log.close();
+			}
 			new File(logPath).delete();
 		} catch (IOException e) {
 			logger.error("Failed to delete log file",e);
@@ -215,8 +309,15 @@ public class DiskStateLog extends StateLog {
 			}
 			
 			checkpointLock.lock();
-			byte[] ckpState = fr.getCkpState(lastCkpPath);
-			byte[] ckpStateHash = fr.getCkpStateHash();
+			byte[] ckpState;
+			byte[] ckpStateHash;
+			if (hashes != null) {
+				ckpState = sendState ? readPages().serialize() : null;
+				ckpStateHash = pagesHash;
+			} else {
+				ckpState = fr.getCkpState(lastCkpPath);
+				ckpStateHash = fr.getCkpStateHash();
+			}
 			checkpointLock.unlock();
 
 			logger.info("FINISHED READING STATE");
@@ -246,12 +347,8 @@ public class DiskStateLog extends StateLog {
 		// save the file pointer to retrieve log information later
 		if((cid % checkpointPeriod) % checkpointPortion == checkpointPortion -1) {
 			int ckpReplicaIndex = (((cid % checkpointPeriod) + 1) / checkpointPortion) -1;
-			try {
-				logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.getFilePointer());
-				logPointers.put(ckpReplicaIndex, log.getFilePointer());
-			} catch (IOException e) {
-				logger.error("Failed to get file pointer",e);
-			}
+			logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.getPosition());
+			logPointers.put(ckpReplicaIndex, log.getPosition());
 		}
 	}
 
@@ -265,7 +362,11 @@ public class DiskStateLog extends StateLog {
 	 */
         @Override
 	public void update(DefaultApplicationState transState) {
-		newCheckpoint(transState.getState(), transState.getStateHash(), transState.getLastCheckpointCID());
+		if (PageTable.isPageTable(transState.getState())) {
+			newCheckpoint(PageTable.Delta.deserialize(transState.getState(), true), transState.getLastCheckpointCID());
+		} else {
+			newCheckpoint(transState.getState(), transState.getStateHash(), transState.getLastCheckpointCID());
+		}
 		setLastCheckpointCID(transState.getLastCheckpointCID());
 	}
 	
@@ -276,14 +377,33 @@ public class DiskStateLog extends StateLog {
 		byte[] checkpoint = null;
 		if(lastCkpPath != null)
 			checkpoint = fr.getCkpState(lastCkpPath);
+		byte[] ckpHash = fr.getCkpStateHash();
+		if (PageTable.isPageTable(checkpoint)) {
+			// apply the incremental checkpoints taken after the full one
+			deltaPaths = fr.getFilesAfter(".dlt", lastCkpPath);
+			PageTable table = new PageTable(true);
+			hashes = new PageTable(false);
+			PageTable.Delta full = PageTable.Delta.deserialize(checkpoint, true);
+			table.apply(full);
+			hashes.apply(full);
+			for (String deltaPath : deltaPaths) {
+				PageTable.Delta delta = PageTable.Delta.deserialize(fr.getCkpState(deltaPath), false);
+				table.apply(delta);
+				hashes.apply(delta);
+			}
+			checkpoint = table.serialize();
+			pagesHash = hashes.getHash();
+			ckpHash = pagesHash;
+			logger.info("Recovered full checkpoint and " + deltaPaths.size() + " incremental ones");
+		}
+		int ckpLastConsensusId = fr.getCkpLastConsensusId();
 		CommandsInfo[] log = null;
 		if(logPath !=null)
 			log = fr.getLogState(0, logPath);
-		int ckpLastConsensusId = fr.getCkpLastConsensusId();
 		int logLastConsensusId = fr.getLogLastConsensusId();
 		logger.info("log last consensus id: " + logLastConsensusId);
 		ApplicationState state = new DefaultApplicationState(log, ckpLastConsensusId,
-				logLastConsensusId, checkpoint, fr.getCkpStateHash(), this.id);
+				logLastConsensusId, checkpoint, ckpHash, this.id);
 		if(logLastConsensusId > ckpLastConsensusId) {
 			super.setLastCID(logLastConsensusId);
 		} else
@@ -23,8 +23,15 @@ import java.io.ObjectInputStream;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import bftsmart.tom.util.TOMUtil;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +43,7 @@ public class FileRecoverer {
 	private byte[] ckpHash;
 	private int ckpLastConsensusId;
 	private int logLastConsensusId;
+	private int lastRecordConsensusId = -1;
 	
 	private int replicaId;
 	private String defaultDir;
@@ -58,24 +66,28 @@ public class FileRecoverer {
 //		return null;
 //	}
 
+	/**
+	 * Reads the first batches of a log, or all of them, with a LogReader
+	 * that deserializes them in parallel
+	 * @param index number of batches to read, 0 to read all of them
+	 * @return the batches, or null if the log cannot be read
+	 */
 	public CommandsInfo[] getLogState(int index, String logPath) {
-		RandomAccessFile log = null;
-
 		logger.info("GETTING LOG FROM " + logPath);
-		if ((log = openLogFile(logPath)) != null) {
-
-			CommandsInfo[] logState = recoverLogState(log, index);
-
-			try {
-				log.close();
-			} catch (IOException e) {
-				logger.error("Failed to get state log",e);
+		LogReader reader = new LogReader(logPath, Runtime.getRuntime().availableProcessors());
+		try {
+			long start = System.nanoTime();
+			CommandsInfo[] logState = reader.read(index);
+			if (reader.isAtEnd()) {
+				logLastConsensusId = reader.getLastConsensusId();
 			}
-
+			logger.info("Read " + logState.length + " batches from the log in "
+					+ ((System.nanoTime() - start) / 1000000) + " ms");
 			return logState;
+		} catch (IOException e) {
+			logger.error("Failed to get state log",e);
+			return null;
 		}
-
-		return null;
 	}
 
 	/**
@@ -269,6 +281,147 @@ public class FileRecoverer {
 		}
 	}
 
+	/**
+	 * Finds where the state is in a checkpoint file, to send it without
+	 * reading it (see transferRegion)
+	 * @return the offset and the length of the state, or null if the file
+	 * cannot be read
+	 */
+	public long[] getCkpRegion(String ckpPath) {
+		RandomAccessFile ckp = openLogFile(ckpPath);
+		if (ckp == null) {
+			return null;
+		}
+		try {
+			return new long[] {4, ckp.readInt()};
+		} catch (IOException e) {
+			logger.error("Failed to read checkpoint", e);
+			return null;
+		} finally {
+			close(ckp);
+		}
+	}
+
+	/**
+	 * Finds where a portion of the log is, to send its records as they are
+	 * in the file (see transferRegion)
+	 * @param pointer position of the first record of the portion to skip
+	 * @param startOffset number of records to skip
+	 * @param number number of records in the portion
+	 * @return the offset and the length of the records, or null if the log
+	 * has less records
+	 */
+	public long[] getLogRegion(long pointer, int startOffset, int number, String logPath) {
+		RandomAccessFile log = openLogFile(logPath);
+		if (log == null) {
+			return null;
+		}
+		try {
+			long start = skipRecords(log, pointer, startOffset);
+			long end = start < 0 ? -1 : skipRecords(log, start, number);
+			return end < 0 ? null : new long[] {start, end - start};
+		} catch (IOException e) {
+			logger.error("Failed to read log", e);
+			return null;
+		} finally {
+			close(log);
+		}
+	}
+
+	/**
+	 * Hashes the contents of the records of a portion of the log, without
+	 * deserializing them. The receiver of the portion hashes the records in
+	 * the same way as they arrive.
+	 * @param pointer position of the first record of the portion to skip
+	 * @param startOffset number of records to skip
+	 * @param number number of records in the portion
+	 * @return the hash, or null if the log has less records
+	 */
+	public byte[] hashLog(long pointer, int startOffset, int number, String logPath) {
+		RandomAccessFile log = openLogFile(logPath);
+		if (log == null) {
+			return null;
+		}
+		try {
+			MessageDigest md = TOMUtil.getHashEngine();
+			byte[] buffer = new byte[65536];
+			long position = skipRecords(log, pointer, startOffset);
+			if (position < 0) {
+				return null;
+			}
+			log.seek(position);
+			for (int i = 0; i < number; i++) {
+				int size = log.readInt();
+				if (size <= 0) {
+					return null;
+				}
+				log.skipBytes(LogSegment.HEADER_SIZE - 4);
+				for (int left = size; left > 0; ) {
+					int read = log.read(buffer, 0, Math.min(left, buffer.length));
+					if (read < 0) {
+						return null;
+					}
+					md.update(buffer, 0, read);
+					left -= read;
+				}
+			}
+			return md.digest();
+		} catch (IOException | NoSuchAlgorithmException e) {
+			logger.error("Failed to hash log", e);
+			return null;
+		} finally {
+			close(log);
+		}
+	}
+
+	/**
+	 * @return the position after 'number' records from 'pointer', or -1 if
+	 * the log ends before
+	 */
+	private long skipRecords(RandomAccessFile log, long pointer, int number) throws IOException {
+		long position = pointer;
+		for (int i = 0; i < number; i++) {
+			if (position + 4 > log.length()) {
+				return -1;
+			}
+			log.seek(position);
+			int size = log.readInt();
+			if (size <= 0) {
+				return -1;
+			}
+			position += LogSegment.HEADER_SIZE + size;
+		}
+		return position;
+	}
+
+	/**
+	 * Sends part of a file with FileChannel.transferTo, so the bytes go from
+	 * the page cache to the socket without being copied to the heap
+	 * @param file the file, which may have been deleted since it was opened
+	 * @param offset where the part starts
+	 * @param length size of the part
+	 * @param target the socket
+	 * @throws IOException if the part cannot be sent
+	 */
+	public static void transferRegion(FileChannel file, long offset, long length, WritableByteChannel target) throws IOException {
+		long end = offset + length;
+		while (offset < end) {
+			long sent = file.transferTo(offset, end - offset, target);
+			if (sent <= 0 && offset >= file.size()) {
+				throw new IOException("File ends " + (end - offset) + " bytes before the part to send");
+			}
+			offset += sent;
+		}
+	}
+
+	private void close(RandomAccessFile file) {
+		try {
+			file.close();
+		} catch (IOException e) {
+			logger.error("Failed to close file", e);
+		}
+	}
+
 	public byte[] getCkpStateHash() {
 		return ckpHash;
 	}
@@ -290,52 +443,33 @@ public class FileRecoverer {
 		return null;
 	}
 
-	private CommandsInfo[] recoverLogState(RandomAccessFile log, int endOffset) {
-		try {
-			long logLength = log.length();
-			ArrayList<CommandsInfo> state = new ArrayList<CommandsInfo>();
-			int recoveredBatches = 0;
-			boolean mayRead = true;
-			logger.debug("filepointer: " + log.getFilePointer() + " loglength " + logLength + " endoffset " + endOffset);
-			while (mayRead) {
-				try {
-					if (log.getFilePointer() < logLength) {
-						int size = log.readInt();
-						if (size > 0) {
-							byte[] bytes = new byte[size];
-							int read = log.read(bytes);
-							if (read == size) {
-								ByteArrayInputStream bis = new ByteArrayInputStream(
-										bytes);
-								ObjectInputStream ois = new ObjectInputStream(
-										bis);
-								state.add((CommandsInfo) ois.readObject());
-								if (++recoveredBatches == endOffset) {
-									logger.debug("read all " + endOffset + " log messages");
-									return state.toArray(new CommandsInfo[state.size()]);
-								}
-							} else {
-								mayRead = false;
-								state.clear();
-							}
-						} else {
-							logLastConsensusId = log.readInt();
-							return state.toArray(new CommandsInfo[state.size()]);
-						}
-					} else {
-						mayRead = false;
-					}
-				} catch (Exception e) {
-					logger.error("Failed to recover log state",e);
-					state.clear();
-					mayRead = false;
-				}
-			}
-		} catch (Exception e) {
-			logger.error("State recover was aborted due to an unexpected exception", e);
+	/**
+	 * Reads the rest of a record written by LogSegment, after its size
+	 * @return the batch, or null if the record is incomplete or corrupted
+	 * (the log ends before it)
+	 */
+	private CommandsInfo readRecord(RandomAccessFile log, int size) throws IOException, ClassNotFoundException {
+		if (size < 0 || size > log.length() - log.getFilePointer() - 8) {
+			logger.warn("Log ends in an incomplete record of " + size + " bytes");
+			return null;
 		}
-
-		return null;
+		int consensusId = log.readInt();
+		int checksum = log.readInt();
+		byte[] bytes = new byte[size];
+		int read = log.read(bytes);
+		if (read != size) {
+			logger.warn("Log ends in an incomplete record of consensus " + consensusId);
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		if ((int) crc.getValue() != checksum) {
+			logger.warn("Log ends in a corrupted record of consensus " + consensusId);
+			return null;
+		}
+		lastRecordConsensusId = consensusId;
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		return (CommandsInfo) ois.readObject();
 	}
 
 	/**
@@ -357,8 +491,7 @@ public class FileRecoverer {
 			int index = 0;
 			while(index < startOffset) {
 				int size = log.readInt();
-				byte[] bytes = new byte[size];
-				log.read(bytes);
+				log.skipBytes(LogSegment.HEADER_SIZE - 4 + size);
 				index++;
 			}
 
@@ -369,15 +502,9 @@ public class FileRecoverer {
 						int size = log.readInt();
 
 						if (size > 0) {
-							byte[] bytes = new byte[size];
-							int read = log.read(bytes);
-							if (read == size) {
-								ByteArrayInputStream bis = new ByteArrayInputStream(
-										bytes);
-								ObjectInputStream ois = new ObjectInputStream(
-										bis);
-
-								state.add((CommandsInfo) ois.readObject());
+							CommandsInfo batch = readRecord(log, size);
+							if (batch != null) {
+								state.add(batch);
 
 								if (++recoveredBatches == number) {
 									return state.toArray(new CommandsInfo[state.size()]);
@@ -424,6 +551,31 @@ public class FileRecoverer {
 		return latestFile;
 	}
 
+	/**
+	 * Lists the files of this replica created after another one
+	 * @param extention the extension of the files
+	 * @param after the path of the other file
+	 * @return the paths of the files, from the oldest to the newest
+	 */
+	public ArrayList<String> getFilesAfter(String extention, String after) {
+		long start = getTimestamp(new File(after));
+		TreeMap<Long, String> files = new TreeMap<>();
+		File directory = new File(defaultDir);
+		if (directory.isDirectory()) {
+			for (File f : directory.listFiles(new FileListFilter(replicaId, extention))) {
+				long filets = getTimestamp(f);
+				if (filets > start) {
+					files.put(filets, f.getAbsolutePath());
+				}
+			}
+		}
+		return new ArrayList<>(files.values());
+	}
+
+	private long getTimestamp(File f) {
+		return Long.parseLong(f.getName().split("\\.")[1]);
+	}
+
 	private class FileListFilter implements FilenameFilter {
 
 		private int id;
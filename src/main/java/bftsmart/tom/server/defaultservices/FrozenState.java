@@ -0,0 +1,36 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+/**
+ * A view of the application state as it was at a checkpoint, returned by
+ * DefaultRecoverable.freezeState.
+ *
+ * The view must not change while the application keeps executing commands
+ * (e.g., a copy-on-write or versioned structure), since it is serialized by
+ * another thread, concurrently with the execution of the commands decided
+ * after the checkpoint.
+ */
+public interface FrozenState {
+
+    /**
+     * Serializes the frozen state. Called once, by the checkpoint thread.
+     *
+     * @return the snapshot, as getSnapshot would have returned it at the
+     * checkpoint
+     */
+    public byte[] serialize();
+}
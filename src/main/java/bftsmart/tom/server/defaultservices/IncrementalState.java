@@ -0,0 +1,64 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.util.SortedMap;
+
+/**
+ * Application state divided in pages, implemented by a DefaultRecoverable
+ * whose state is large and mostly unchanged between checkpoints.
+ *
+ * A page is any part of the state identified by an int (a fixed size region,
+ * a key, a table). At each checkpoint, only the pages modified since the
+ * previous one are copied, hashed and stored in the log (see PageTable). The
+ * checkpoint after the replica starts, or installs a state, is a full one.
+ *
+ * The snapshots transferred to other replicas are in the PageTable format,
+ * and are installed with installPages instead of installSnapshot.
+ */
+public interface IncrementalState {
+
+    /**
+     * @return the ids of all the pages of the state
+     */
+    public int[] getPages();
+
+    /**
+     * Returns the pages modified, created or removed since the previous call,
+     * and starts tracking the changes from now on.
+     *
+     * @return the ids of the pages
+     */
+    public int[] getDirtyPages();
+
+    /**
+     * Returns the contents of a page. Called by the delivery thread, with no
+     * command being executed. The array is kept by the log, so it must not be
+     * modified afterwards.
+     *
+     * @param page the id of the page
+     * @return the contents of the page, or null if it does not exist
+     */
+    public byte[] getPage(int page);
+
+    /**
+     * Replaces the whole state with the pages received from another replica,
+     * or recovered from disk
+     *
+     * @param pages the contents of each page
+     */
+    public void installPages(SortedMap<Integer, byte[]> pages);
+}
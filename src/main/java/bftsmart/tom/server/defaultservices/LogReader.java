@@ -0,0 +1,308 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the records of a log file written by LogSegment, to replay them when
+ * a replica restarts.
+ *
+ * The file is memory mapped and scanned once, reading only the headers of the
+ * records, to find where each record is and where the log ends: at the end
+ * mark, or at a record left incomplete by a crash. The records are then
+ * checked and deserialized in parallel, straight from the mapped pages, in
+ * ranges of RECORDS_PER_TASK records. As in a sequential read, the log ends
+ * before the first record whose checksum does not match.
+ */
+public class LogReader {
+
+    /** Largest part of a file mapped at once */
+    private static final long MAX_MAPPING = 1L << 30;
+    /** Number of records deserialized by each task */
+    private static final int RECORDS_PER_TASK = 1024;
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final String path;
+    private final int threads;
+
+    private final List<MappedByteBuffer> mappings = new ArrayList<>();
+    private MappedByteBuffer mapping;
+    private long mappingStart;
+
+    // headers of the records scanned
+    private int count = 0;
+    private int[] mappingIndex = new int[1024];
+    private int[] offset = new int[1024];
+    private int[] size = new int[1024];
+    private int[] consensusId = new int[1024];
+    private int[] checksum = new int[1024];
+
+    private boolean atEnd = false;
+    private int lastConsensusId = -1;
+
+    /**
+     * @param path Path of the log file
+     * @param threads Number of threads deserializing the records
+     */
+    public LogReader(String path, int threads) {
+        this.path = path;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Reads the first records of the log
+     *
+     * @param number Number of records to read, 0 to read up to the end of
+     * the log
+     * @return the batches, in the order of the log
+     * @throws IOException if the file cannot be read, or a record cannot be
+     * deserialized
+     */
+    public CommandsInfo[] read(int number) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            scan(channel, number);
+        }
+        CommandsInfo[] batches = decode();
+
+        int valid = 0;
+        while (valid < batches.length && batches[valid] != null) {
+            valid++;
+        }
+        if (valid < batches.length) {
+            logger.warn("Log ends in a corrupted record of consensus " + consensusId[valid]);
+            atEnd = true;
+            batches = Arrays.copyOf(batches, valid);
+        }
+        if (atEnd && valid < count) {
+            lastConsensusId = valid > 0 ? consensusId[valid - 1] : -1;
+        }
+        mappings.clear();
+        mapping = null;
+        return batches;
+    }
+
+    /**
+     * @return true if the records read go up to the end of the log, false if
+     * the log has more records than were asked for
+     */
+    public boolean isAtEnd() {
+        return atEnd;
+    }
+
+    /**
+     * @return Consensus ID of the end of the log: the one in the end mark,
+     * or the one of the last complete record if the log ends in a crash
+     */
+    public int getLastConsensusId() {
+        return lastConsensusId;
+    }
+
+    private void scan(FileChannel channel, int number) throws IOException {
+        long length = channel.size();
+        long position = 0;
+        while (number <= 0 || count < number) {
+            if (!map(channel, length, position, 4)) {
+                logger.warn("Log ends without an end mark");
+                setEnd();
+                return;
+            }
+            int recordSize = mapping.getInt((int) (position - mappingStart));
+            if (recordSize <= 0) {
+                if (map(channel, length, position, LogSegment.TRAILER_SIZE)) {
+                    lastConsensusId = mapping.getInt((int) (position - mappingStart) + 4);
+                    atEnd = true;
+                } else {
+                    setEnd();
+                }
+                return;
+            }
+            if (!map(channel, length, position, LogSegment.HEADER_SIZE + (long) recordSize)) {
+                logger.warn("Log ends in an incomplete record");
+                setEnd();
+                return;
+            }
+            int start = (int) (position - mappingStart);
+            add(start, recordSize, mapping.getInt(start + 4), mapping.getInt(start + 8));
+            position += LogSegment.HEADER_SIZE + recordSize;
+        }
+    }
+
+    /**
+     * The log ends at the last complete record
+     */
+    private void setEnd() {
+        atEnd = true;
+        lastConsensusId = count > 0 ? consensusId[count - 1] : -1;
+    }
+
+    /**
+     * Makes the current mapping cover 'needed' bytes from 'position'
+     *
+     * @return false if the file ends before
+     */
+    private boolean map(FileChannel channel, long length, long position, long needed) throws IOException {
+        if (position + needed > length || needed > Integer.MAX_VALUE) {
+            return false;
+        }
+        if (mapping != null && position >= mappingStart
+                && position + needed <= mappingStart + mapping.capacity()) {
+            return true;
+        }
+        long mapped = Math.min(length - position, Math.max(MAX_MAPPING, needed));
+        mapping = channel.map(FileChannel.MapMode.READ_ONLY, position, mapped);
+        mappingStart = position;
+        mappings.add(mapping);
+        return true;
+    }
+
+    private void add(int start, int recordSize, int cid, int crc) {
+        if (count == offset.length) {
+            int capacity = count * 2;
+            mappingIndex = Arrays.copyOf(mappingIndex, capacity);
+            offset = Arrays.copyOf(offset, capacity);
+            size = Arrays.copyOf(size, capacity);
+            consensusId = Arrays.copyOf(consensusId, capacity);
+            checksum = Arrays.copyOf(checksum, capacity);
+        }
+        mappingIndex[count] = mappings.size() - 1;
+        offset[count] = start;
+        size[count] = recordSize;
+        consensusId[count] = cid;
+        checksum[count] = crc;
+        count++;
+    }
+
+    private CommandsInfo[] decode() throws IOException {
+        CommandsInfo[] batches = new CommandsInfo[count];
+        int tasks = (count + RECORDS_PER_TASK - 1) / RECORDS_PER_TASK;
+        if (threads == 1 || tasks <= 1) {
+            decode(batches, 0, count);
+            return batches;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, tasks), (r) -> {
+            Thread t = new Thread(r, "Log Reader Thread");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> results = new ArrayList<>(tasks);
+            for (int from = 0; from < count; from += RECORDS_PER_TASK) {
+                int first = from;
+                int last = Math.min(count, from + RECORDS_PER_TASK);
+                results.add(pool.submit(() -> {
+                    decode(batches, first, last);
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted while reading " + path);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Failed to read " + path, ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return batches;
+    }
+
+    /**
+     * Checks and deserializes a range of records, leaving null the ones whose
+     * checksum does not match
+     */
+    private void decode(CommandsInfo[] batches, int from, int to) throws IOException {
+        CRC32 crc = new CRC32();
+        for (int i = from; i < to; i++) {
+            ByteBuffer record = mappings.get(mappingIndex[i]).duplicate();
+            record.position(offset[i] + LogSegment.HEADER_SIZE);
+            record.limit(offset[i] + LogSegment.HEADER_SIZE + size[i]);
+            record = record.slice();
+
+            crc.reset();
+            crc.update(record);
+            if ((int) crc.getValue() != checksum[i]) {
+                return; // the log ends before this record
+            }
+            record.rewind();
+            try {
+                batches[i] = (CommandsInfo) new ObjectInputStream(new BufferInputStream(record)).readObject();
+            } catch (ClassNotFoundException | ClassCastException ex) {
+                throw new IOException("Invalid record of consensus " + consensusId[i], ex);
+            }
+        }
+    }
+
+    /**
+     * Reads a mapped record without copying it to an array first
+     */
+    private static class BufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A log file, holding the batches decided since the last checkpoint. A new
+ * segment is started at each checkpoint.
+ *
+ * Each batch is written as a record [int size][int cid][int crc32][bytes],
+ * followed by the end mark [int 0][int cid], which the next record overwrites.
+ * Records are written at their position through a FileChannel, so there is
+ * no seek, and the segment may be preallocated.
+ *
+ * Records are not synced when they are written: sync() forces all the
+ * records written since the previous call to disk at once (group commit).
+ * The logs call it once per delivery, after all the consensus instances
+ * delivered together were logged, and before the replies are sent.
+ */
+public class LogSegment {
+
+    /** Size of the header of a record */
+    public static final int HEADER_SIZE = 12;
+    /** Size of the end mark */
+    public static final int TRAILER_SIZE = 8;
+    private static final int EOF = 0;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final boolean sync;
+
+    private final Buffer serialized = new Buffer();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+    private long position = 0; // where the next record starts
+    private boolean dirty = false;
+
+    private long records = 0;
+    private long bytes = 0;
+    private long syncs = 0;
+    private long syncTime = 0; // nanoseconds
+
+    /**
+     * Creates a new, empty, segment
+     *
+     * @param path Path of the file
+     * @param sync true to force the records to disk in sync()
+     * @param preallocate Initial size of the file, 0 not to preallocate it
+     * @throws IOException if the file cannot be created
+     */
+    public LogSegment(String path, boolean sync, long preallocate) throws IOException {
+        this.file = new RandomAccessFile(path, "rw");
+        this.channel = file.getChannel();
+        this.sync = sync;
+        if (preallocate > 0) {
+            file.setLength(preallocate);
+        }
+        writeFully(ByteBuffer.allocate(TRAILER_SIZE).putInt(EOF).putInt(-1), 0);
+        dirty = true;
+    }
+
+    /**
+     * Appends a batch to the segment
+     *
+     * @param commands the batch
+     * @param consensusId the consensus in which it was decided
+     * @throws IOException if the record cannot be written
+     */
+    public void append(CommandsInfo commands, int consensusId) throws IOException {
+        serialized.reset();
+        ObjectOutputStream oos = new ObjectOutputStream(serialized);
+        oos.writeObject(commands);
+        oos.flush();
+
+        int size = serialized.size();
+        crc.reset();
+        crc.update(serialized.array(), 0, size);
+
+        int length = HEADER_SIZE + size + TRAILER_SIZE;
+        if (buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+        }
+        buffer.clear();
+        buffer.putInt(size);
+        buffer.putInt(consensusId);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(serialized.array(), 0, size);
+        buffer.putInt(EOF);
+        buffer.putInt(consensusId);
+        writeFully(buffer, position);
+
+        position += HEADER_SIZE + size;
+        dirty = true;
+        records++;
+        bytes += HEADER_SIZE + size;
+    }
+
+    private void writeFully(ByteBuffer data, long offset) throws IOException {
+        data.flip();
+        while (data.hasRemaining()) {
+            offset += channel.write(data, offset);
+        }
+    }
+
+    /**
+     * Forces the records appended since the previous call to disk, if this
+     * segment is synchronous
+     *
+     * @throws IOException if the records cannot be forced
+     */
+    public void sync() throws IOException {
+        if (dirty && sync) {
+            long start = System.nanoTime();
+            channel.force(false);
+            syncTime += System.nanoTime() - start;
+            syncs++;
+        }
+        dirty = false;
+    }
+
+    /**
+     * @return Position of the end mark, where the next record will start
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Closes the segment, releasing the preallocated space not used
+     */
+    public void close() throws IOException {
+        channel.truncate(position + TRAILER_SIZE);
+        file.close();
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getSyncs() {
+        return syncs;
+    }
+
+    /**
+     * @return Average time to force the records to disk, in milliseconds
+     */
+    public double getAverageSyncTime() {
+        return syncs > 0 ? (syncTime / (double) syncs) / 1000000.0 : 0;
+    }
+
+    /**
+     * Reused serialization buffer, read without being copied
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(64 * 1024);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Executes the batches of a recoverable service and writes them to its log.
+ * With 'system.totalordermulticast.log_parallel', a log thread writes each
+ * batch while it is executed. In both cases executeAndLog only returns, and
+ * so the replies are only sent, when the batch was executed and logged.
+ * Used by DefaultRecoverable and DurabilityCoordinator.
+ */
+public class LogWriter {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private ExecutorService logThread = null; // created on the first batch logged in parallel
+
+    /**
+     * @param execution executes the batch and returns its replies
+     * @param log writes the batch to the log
+     * @param parallel if the log is written while the batch is executed
+     * @return the replies of the batch
+     */
+    public byte[][] executeAndLog(Supplier<byte[][]> execution, Runnable log, boolean parallel) {
+        if (!parallel) {
+            byte[][] replies = execution.get();
+            log.run();
+            return replies;
+        }
+
+        if (logThread == null) {
+            logThread = Executors.newSingleThreadExecutor((r) -> {
+                Thread t = new Thread(r, "Log Thread");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        Future<?> logged = logThread.submit(log);
+
+        byte[][] replies = execution.get();
+
+        try {
+            TOMUtil.getUninterruptibly(logged);
+        } catch (ExecutionException ex) {
+            logger.error("Failed to log commands", ex.getCause());
+        }
+        return replies;
+    }
+}
@@ -0,0 +1,287 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Checkpoint of an IncrementalState application: its pages, and the hash of
+ * each of them.
+ *
+ * The hash of the state is the hash of the ids and hashes of all the pages,
+ * so a checkpoint only hashes the pages that changed. Serialized, a table is
+ * [long MAGIC][int number of pages] followed by [int id][int length][bytes]
+ * for each page, in the order of the ids. A Delta has the same format, with
+ * length -1 for the pages removed.
+ *
+ * A table may keep only the hashes (DiskStateLog keeps the pages on disk).
+ */
+public class PageTable {
+
+    /** First bytes of a serialized table */
+    public static final long MAGIC = 0x4246542d50414745L; // "BFT-PAGE"
+
+    private final boolean keepPages;
+    private final TreeMap<Integer, byte[]> pages = new TreeMap<>();
+    private final TreeMap<Integer, byte[]> hashes = new TreeMap<>();
+    private long bytes = 0;
+
+    /**
+     * @param keepPages false to keep only the hashes of the pages
+     */
+    public PageTable(boolean keepPages) {
+        this.keepPages = keepPages;
+    }
+
+    /**
+     * Applies the pages of a checkpoint. A full delta replaces the table.
+     *
+     * @param delta the pages, with their hashes already computed
+     */
+    public void apply(Delta delta) {
+        if (delta.full) {
+            pages.clear();
+            hashes.clear();
+            bytes = 0;
+        }
+        for (Map.Entry<Integer, byte[]> page : delta.pages.entrySet()) {
+            byte[] old;
+            if (page.getValue() == null) {
+                hashes.remove(page.getKey());
+                old = pages.remove(page.getKey());
+            } else {
+                hashes.put(page.getKey(), delta.hashes.get(page.getKey()));
+                old = keepPages ? pages.put(page.getKey(), page.getValue()) : null;
+                bytes += keepPages ? page.getValue().length : 0;
+            }
+            bytes -= old != null ? old.length : 0;
+        }
+    }
+
+    /**
+     * @return the hash of the state
+     */
+    public byte[] getHash() {
+        MessageDigest md = hashEngine();
+        ByteBuffer id = ByteBuffer.allocate(4);
+        for (Map.Entry<Integer, byte[]> hash : hashes.entrySet()) {
+            id.clear();
+            md.update(id.putInt(hash.getKey()).array());
+            md.update(hash.getValue());
+        }
+        return md.digest();
+    }
+
+    /**
+     * @return the pages, in the order of their ids
+     */
+    public SortedMap<Integer, byte[]> getPages() {
+        return Collections.unmodifiableSortedMap(pages);
+    }
+
+    /**
+     * @return Number of pages
+     */
+    public int size() {
+        return hashes.size();
+    }
+
+    /**
+     * Serializes the whole table, as a snapshot of the state
+     *
+     * @return the serialized table
+     */
+    public byte[] serialize() {
+        if (!keepPages) {
+            throw new IllegalStateException("Table only has the hashes of the pages");
+        }
+        return write(pages, bytes);
+    }
+
+    /**
+     * @param data a snapshot
+     * @return true if the snapshot is a serialized table
+     */
+    public static boolean isPageTable(byte[] data) {
+        return data != null && data.length >= 12 && ByteBuffer.wrap(data).getLong() == MAGIC;
+    }
+
+    /**
+     * Reads a serialized table, computing the hashes of its pages
+     *
+     * @param data the serialized table
+     * @return the table
+     */
+    public static PageTable deserialize(byte[] data) {
+        PageTable table = new PageTable(true);
+        Delta delta = new Delta(read(data), true);
+        delta.computeHashes();
+        table.apply(delta);
+        return table;
+    }
+
+    private static byte[] write(SortedMap<Integer, byte[]> pages, long bytes) {
+        long size = 12 + 8L * pages.size() + bytes;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalStateException("State too large to be serialized (" + size + " bytes)");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.putLong(MAGIC);
+        buffer.putInt(pages.size());
+        for (Map.Entry<Integer, byte[]> page : pages.entrySet()) {
+            buffer.putInt(page.getKey());
+            if (page.getValue() == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(page.getValue().length);
+                buffer.put(page.getValue());
+            }
+        }
+        return buffer.array();
+    }
+
+    private static TreeMap<Integer, byte[]> read(byte[] data) {
+        if (!isPageTable(data)) {
+            throw new IllegalArgumentException("Not a serialized page table");
+        }
+        TreeMap<Integer, byte[]> pages = new TreeMap<>();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            buffer.getLong();
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                int id = buffer.getInt();
+                int length = buffer.getInt();
+                if (length < -1 || length > buffer.remaining()) {
+                    throw new IllegalArgumentException("Invalid length " + length + " of page " + id);
+                }
+                byte[] page = null;
+                if (length >= 0) {
+                    page = new byte[length];
+                    buffer.get(page);
+                }
+                pages.put(id, page);
+            }
+        } catch (BufferUnderflowException ex) {
+            throw new IllegalArgumentException("Truncated page table", ex);
+        }
+        return pages;
+    }
+
+    private static MessageDigest hashEngine() {
+        try {
+            return TOMUtil.getHashEngine();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Pages of a checkpoint: the ones that changed since the previous
+     * checkpoint, or all of them if it is a full one
+     */
+    public static class Delta {
+
+        private final TreeMap<Integer, byte[]> pages; // null for the pages removed
+        private final TreeMap<Integer, byte[]> hashes = new TreeMap<>();
+        private final boolean full;
+        private long bytes = 0;
+
+        /**
+         * @param pages contents of each page, null for the pages removed
+         * @param full true if the pages are the whole state
+         */
+        public Delta(Map<Integer, byte[]> pages, boolean full) {
+            this.pages = new TreeMap<>(pages);
+            this.full = full;
+            for (byte[] page : this.pages.values()) {
+                bytes += page != null ? page.length : 0;
+            }
+        }
+
+        /**
+         * Hashes each page. Done before the delta is applied, out of the
+         * delivery thread.
+         */
+        public void computeHashes() {
+            MessageDigest md = hashEngine();
+            for (Map.Entry<Integer, byte[]> page : pages.entrySet()) {
+                if (page.getValue() != null) {
+                    hashes.put(page.getKey(), md.digest(page.getValue()));
+                }
+            }
+        }
+
+        public boolean isFull() {
+            return full;
+        }
+
+        /**
+         * @return Number of pages changed
+         */
+        public int size() {
+            return pages.size();
+        }
+
+        /**
+         * @return Total size of the pages, in bytes
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the serialized delta
+         */
+        public byte[] serialize() {
+            return write(pages, bytes);
+        }
+
+        /**
+         * Reads a serialized delta without hashing its pages, to merge it
+         * into a table that is only serialized afterwards
+         *
+         * @param data the serialized delta
+         * @param full true if the pages are the whole state
+         * @return the delta
+         */
+        public static Delta read(byte[] data, boolean full) {
+            return new Delta(PageTable.read(data), full);
+        }
+
+        /**
+         * Reads a serialized delta, computing the hashes of its pages
+         *
+         * @param data the serialized delta
+         * @param full true if the pages are the whole state
+         * @return the delta
+         */
+        public static Delta deserialize(byte[] data, boolean full) {
+            Delta delta = new Delta(PageTable.read(data), full);
+            delta.computeHashes();
+            return delta;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import bftsmart.tom.MessageContext;
+
+/**
+ * Batches replayed from a log or a state, coalesced into a larger batch, so
+ * that a BatchExecutable application executes many small consensus instances
+ * in one call. Each command keeps its MessageContext, so the application
+ * still sees the consensus in which the command was decided, as when it
+ * executes the instances delivered together.
+ */
+public class ReplayBatch {
+
+    /** Number of commands from which a coalesced batch is executed */
+    public static final int MAX_COMMANDS = 4096;
+
+    private final ArrayList<byte[]> commands = new ArrayList<>();
+    private final ArrayList<MessageContext> msgCtxs = new ArrayList<>();
+    private int batches = 0;
+
+    /**
+     * @param batch a batch of the log
+     * @return true if the coalesced batch is full, and should be executed
+     */
+    public boolean add(CommandsInfo batch) {
+        Collections.addAll(commands, batch.commands);
+        Collections.addAll(msgCtxs, batch.msgCtx);
+        batches++;
+        return commands.size() >= MAX_COMMANDS;
+    }
+
+    public boolean isEmpty() {
+        return commands.isEmpty();
+    }
+
+    public byte[][] getCommands() {
+        return commands.toArray(new byte[commands.size()][]);
+    }
+
+    public MessageContext[] getMessageContexts() {
+        return msgCtxs.toArray(new MessageContext[msgCtxs.size()]);
+    }
+
+    /**
+     * @return Number of batches coalesced
+     */
+    public int getBatches() {
+        return batches;
+    }
+
+    public void clear() {
+        commands.clear();
+        msgCtxs.clear();
+        batches = 0;
+    }
+}
@@ -15,6 +15,8 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
+import java.util.Arrays;
+
 import bftsmart.tom.MessageContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,6 +40,7 @@ public class StateLog {
     private int position; // next position in the array of batches to be written
     private int lastCID; // Consensus ID for the last messages batch delivered to the application
     private int id; //replica ID
+    private PageTable pages; // state of an IncrementalState application, null otherwise
 
     /**
      * Constructs a State log
@@ -97,9 +100,25 @@ public class StateLog {
         position = 0;
         this.state = state;
         this.stateHash = stateHash;
+        this.pages = null;
                        
     }
 
+    /**
+     * Sets the state associated with the last checkpoint from the pages of an
+     * IncrementalState application. The snapshot is serialized only when it
+     * is requested by another replica.
+     * @param delta Pages changed since the previous checkpoint, or all of them
+     * @param lastConsensusId
+     */
+    public void newCheckpoint(PageTable.Delta delta, int lastConsensusId) {
+
+        PageTable table = (pages == null || delta.isFull()) ? new PageTable(true) : pages;
+        table.apply(delta);
+        newCheckpoint(null, table.getHash(), lastConsensusId);
+        pages = table;
+    }
+
     /**
      * Sets the consensus ID for the last checkpoint
      * @param lastCheckpointCID Consensus ID for the last checkpoint
@@ -139,6 +158,9 @@ public class StateLog {
      * @return State associated with the last checkpoint
      */
     public byte[] getState() {
+        if (state == null && pages != null) {
+            state = pages.serialize();
+        }
         return state;
     }
 
@@ -159,13 +181,22 @@ public class StateLog {
      * @param lastConsensusId
      */
     public void addMessageBatch(byte[][] commands, MessageContext[] msgCtx, int lastConsensusId) {
-        if (position < messageBatches.length) {
-            messageBatches[position] = new CommandsInfo(commands, msgCtx);
-            position++;
+        if (position == messageBatches.length) {
+            // a checkpoint failed, the log goes on until the next one
+            messageBatches = Arrays.copyOf(messageBatches, Math.max(1, messageBatches.length * 2));
         }
+        messageBatches[position] = new CommandsInfo(commands, msgCtx);
+        position++;
         setLastCID(lastConsensusId);
     }
 
+    /**
+     * Makes the batches added since the last call durable. The batches of
+     * this log are only kept in memory.
+     */
+    public void sync() {
+    }
+
     /**
      * Returns a batch of messages, given its correspondent consensus ID
      * @param cid Consensus ID associated with the batch to be fetched
@@ -219,7 +250,7 @@ public class StateLog {
                     batches[i] = messageBatches[i];
             }
             lastCID = cid;
-            return new DefaultApplicationState(batches, lastCheckpointCID, lastCID, (setState ? state : null), stateHash, this.id);
+            return new DefaultApplicationState(batches, lastCheckpointCID, lastCID, (setState ? getState() : null), stateHash, this.id);
 
         }
         else return null;
@@ -244,6 +275,8 @@ public class StateLog {
 
         this.stateHash = transState.getStateHash();
 
+        this.pages = PageTable.isPageTable(state) ? PageTable.deserialize(state) : null;
+
         this.lastCID = transState.getLastCID();
     }
 
@@ -15,6 +15,12 @@ limitations under the License.
  */
 package bftsmart.tom.server.durability;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -25,12 +31,15 @@ import bftsmart.statemanagement.ApplicationState;
 import bftsmart.statemanagement.StateManager;
 import bftsmart.statemanagement.durability.CSTRequest;
 import bftsmart.statemanagement.durability.CSTState;
+import bftsmart.statemanagement.durability.CSTStream;
 import bftsmart.statemanagement.durability.DurableStateManager;
 import bftsmart.tom.MessageContext;
 import bftsmart.tom.ReplicaContext;
 import bftsmart.tom.server.BatchExecutable;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.defaultservices.CommandsInfo;
+import bftsmart.tom.server.defaultservices.LogWriter;
+import bftsmart.tom.server.defaultservices.ReplayBatch;
 import bftsmart.tom.util.TOMUtil;
 
 import org.slf4j.Logger;
@@ -64,6 +73,8 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 
 	private StateManager stateManager;
 
+	private final LogWriter logWriter = new LogWriter();
+
 	private int lastCkpCID;
 	private int globalCheckpointPeriod;
 	private int checkpointPortion;
@@ -94,13 +105,8 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 		// the command and return the replies
 		if(checkpointIndex == -1) {
 			
-                    if (!noop) {
-                        stateLock.lock();
-			replies = appExecuteBatch(commands, msgCtx);
-			stateLock.unlock();
-                    }
                     logger.debug("Storing message batch in the state log for consensus " + cid);
-                    saveCommands(commands, msgCtx);
+                    replies = executeAndLog(commands, msgCtx, noop);
 		} else {
 			// there is a replica supposed to take the checkpoint. In this case, the commands
 			// has to be executed in two steps. First the batch of commands containing commands
@@ -150,15 +156,8 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 			if(secondHalf.length > 0) {
 				//	        	System.out.println("----THERE IS A SECOND HALF----");
 				cid = msgCtx[msgCtx.length - 1].getConsensusId();
-				if (!noop) {
-                                    
-                                    stateLock.lock();
-                                    secondHalfReplies = appExecuteBatch(secondHalf, secondHalfMsgCtx);
-                                    stateLock.unlock();
-                                    
-                                }
 				logger.debug("Storing message batch in the state log for consensus " + cid);
-				saveCommands(secondHalf, secondHalfMsgCtx);
+				secondHalfReplies = executeAndLog(secondHalf, secondHalfMsgCtx, noop);
 
 				System.arraycopy(secondHalfReplies, 0, replies, firstHalfReplies.length, secondHalfReplies.length);
 			}
@@ -170,6 +169,26 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 		return replies;
 	}
 
+	/**
+	 * Executes the commands and stores them in the log. If
+	 * 'system.totalordermulticast.log_parallel' is set, the log thread writes
+	 * them while they are executed. In both cases this method only returns,
+	 * and so the replies are only sent, when the commands were executed and
+	 * logged.
+	 */
+	private byte[][] executeAndLog(byte[][] commands, MessageContext[] msgCtx, boolean noop) {
+		if (noop) {
+			saveCommands(commands, msgCtx);
+			return new byte[commands.length][];
+		}
+		return logWriter.executeAndLog(() -> {
+			stateLock.lock();
+			byte[][] replies = appExecuteBatch(commands, msgCtx);
+			stateLock.unlock();
+			return replies;
+		}, () -> saveCommands(commands, msgCtx), config.isToLogParallel());
+	}
+
 	/**
 	 * Iterates over the commands to find if any replica took a checkpoint.
 	 * When a replica take a checkpoint, it is necessary to save in an auxiliary table
@@ -251,7 +270,21 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 					+ lastCheckpointCID + " to CID " + lastCID);
 
 			stateLock.lock();
-			if(state.getSerializedState() != null) {
+			if(state.getCheckpointFile() != null) {
+				logger.info("The state was received in a file. Will install it");
+				try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(state.getCheckpointFile()), CSTStream.BUFFER_SIZE))) {
+					int size = in.readInt();
+					installSnapshot(in, size);
+				} catch (IOException e) {
+					// the checkpoint must not become the one of this replica
+					logger.error("Failed to install state from " + state.getCheckpointFile(), e);
+					state.discard();
+					stateLock.unlock();
+					return -1;
+				}
+				log.update(state);
+			} else if(state.getSerializedState() != null) {
 				logger.info("The state is not null. Will install it");
 				log.update(state);
 				installSnapshot(state.getSerializedState());
@@ -259,6 +292,8 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 
 			logger.info("Installing log from " + (lastCheckpointCID+1) + " to " + lastCID);
 
+			// the batches are executed coalesced (see ReplayBatch)
+			ReplayBatch replay = new ReplayBatch();
 			for (int cid = lastCheckpointCID + 1; cid <= lastCID; cid++) {
 				try {
 					logger.debug("Processing  and verifying batched requests for CID " + cid);
@@ -270,12 +305,21 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
                                             continue;
                                         }
                                         
-					appExecuteBatch(commands, msgCtx);
+					if (replay.add(cmdInfo)) {
+						executeReplay(replay);
+					}
 				} catch (Exception e) {
 					logger.error("Failed to process and verify batched requests",e);
 				}
 
 			}
+			if (!replay.isEmpty()) {
+				try {
+					executeReplay(replay);
+				} catch (Exception e) {
+					logger.error("Failed to process and verify batched requests",e);
+				}
+			}
 			logger.info("Installed");
 			stateLock.unlock();
 
@@ -284,6 +328,13 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 		return lastCID;
 	}
 
+	private void executeReplay(ReplayBatch replay) {
+		byte[][] commands = replay.getCommands();
+		MessageContext[] msgCtx = replay.getMessageContexts();
+		replay.clear();
+		appExecuteBatch(commands, msgCtx);
+	}
+
 	private final byte[] computeHash(byte[] data) {
 		byte[] ret = null;
 		hashLock.lock();
@@ -343,6 +394,7 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 				}
 			}
 		}
+		log.sync();
 		logLock.unlock();
 	}
 
@@ -352,6 +404,17 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 		return ret;
 	}
 
+	/**
+	 * Sends the part of the state requested in the collaborative state
+	 * transfer, streaming it from the checkpoint and log files to the socket
+	 * @param cstRequest the request
+	 * @param channel the socket
+	 * @throws IOException if the state cannot be sent
+	 */
+	public void transferState(CSTRequest cstRequest, WritableByteChannel channel) throws IOException {
+		log.transferState(cstRequest, channel);
+	}
+
 	@Override
 	public void setReplicaContext(ReplicaContext replicaContext) {
 		this.config = replicaContext.getStaticConfiguration();
@@ -368,6 +431,7 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 				boolean syncCkp = config.isToWriteSyncCkp();
 //				log = new DurableStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
 				log = new DurableStateLog(replicaId, null, null, isToLog, syncLog, syncCkp);
+				log.setSegmentSize(config.getLogSegmentSize());
 				CSTState storedState = log.loadDurableState();
 				if(storedState.getLastCID() > -1) {
 					logger.info("LAST CID RECOVERED FROM LOG: " + storedState.getLastCID());
@@ -440,6 +504,25 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
      * @param state The serialized snapshot
      */
     public abstract void installSnapshot(byte[] state);
+
+    /**
+     * Given a snapshot received from the state transfer protocol, install it
+     * as it is read from disk. The default implementation reads it whole and
+     * calls installSnapshot(byte[]); applications with large states should
+     * override it, so that the snapshot is never all in memory.
+     * @param snapshot The serialized snapshot, of which exactly 'length'
+     * bytes are to be read
+     * @param length The size of the snapshot, in bytes
+     * @throws IOException if the snapshot cannot be read
+     */
+    public void installSnapshot(InputStream snapshot, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot too large to be read into memory (" + length + " bytes)");
+        }
+        byte[] state = new byte[(int) length];
+        new DataInputStream(snapshot).readFully(state);
+        installSnapshot(state);
+    }
         
     /**
      * Returns a serialized snapshot of the application state
@@ -15,14 +15,13 @@ limitations under the License.
 */
 package bftsmart.tom.server.durability;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
@@ -30,9 +29,11 @@ import java.util.concurrent.locks.ReentrantLock;
 import bftsmart.statemanagement.durability.CSTRequest;
 import bftsmart.statemanagement.durability.CSTRequestF1;
 import bftsmart.statemanagement.durability.CSTState;
+import bftsmart.statemanagement.durability.CSTStream;
 import bftsmart.tom.MessageContext;
 import bftsmart.tom.server.defaultservices.CommandsInfo;
 import bftsmart.tom.server.defaultservices.FileRecoverer;
+import bftsmart.tom.server.defaultservices.LogSegment;
 import bftsmart.tom.server.defaultservices.StateLog;
 import bftsmart.tom.util.TOMUtil;
 
@@ -44,7 +45,8 @@ public class DurableStateLog extends StateLog {
 	private static final int INT_BYTE_SIZE = 4;
 	private static final int EOF = 0;
 
-	private RandomAccessFile log;
+	private LogSegment log;
+	private long segmentSize = 0;
 	private boolean syncLog;
 	private String logPath;
 	private String lastCkpPath;
@@ -73,8 +75,8 @@ public class DurableStateLog extends StateLog {
 		logPath = DEFAULT_DIR + String.valueOf(id) + "."
 				+ System.currentTimeMillis() + ".log";
 		try {
-			log = new RandomAccessFile(logPath, (syncLog ? "rwd" : "rw"));
-		} catch (FileNotFoundException e) {
+			log = new LogSegment(logPath, syncLog, segmentSize);
+		} catch (IOException e) {
 			logger.error("Failed to create log file",e);
 		}
 	}
@@ -100,30 +102,35 @@ public class DurableStateLog extends StateLog {
 	}
 
 	private void writeCommandToDisk(CommandsInfo commandsInfo, int consensusId) {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 		try {
-			ObjectOutputStream oos = new ObjectOutputStream(bos);
-			oos.writeObject(commandsInfo);
-			oos.flush();
-
-			byte[] batchBytes = bos.toByteArray();
-
-			ByteBuffer bf = ByteBuffer.allocate(3 * INT_BYTE_SIZE
-					+ batchBytes.length);
-			bf.putInt(batchBytes.length);
-			bf.put(batchBytes);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-			
-			log.write(bf.array());
-			log.seek(log.length() - 2 * INT_BYTE_SIZE);// Next write will overwrite
-													// the EOF mark
+			log.append(commandsInfo, consensusId);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			logger.error("Failed to write command to disk",e);
-	    }
+		}
 	}
-	
+
+	/**
+	 * Forces the batches added since the last call to disk, with a single
+	 * sync if 'system.totalordermulticast.sync_log' is set
+	 */
+        @Override
+	public void sync() {
+		try {
+			if (log != null)
+				log.sync();
+		} catch (IOException e) {
+			logger.error("Failed to sync log",e);
+		}
+	}
+
+	/**
+	 * @param segmentSize Size to which each log file is preallocated, 0 not
+	 * to preallocate them
+	 */
+	public void setSegmentSize(long segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
         @Override
 	public void newCheckpoint(byte[] state, byte[] stateHash, int consensusId) {
 		String ckpPath = DEFAULT_DIR + String.valueOf(id) + "."
@@ -178,8 +185,11 @@ public class DurableStateLog extends StateLog {
 
 	private void deleteLogFile() {
 		try {
-			if(log != null)
+			if(log != null) {
+				logger.debug("Closing log segment: " + log.getRecords() + " batches, " + log.getBytes()
+						+ " bytes, " + log.getSyncs() + " syncs (" + log.getAverageSyncTime() + " ms on average)");
 				log.close();
+			}
 			new File(logPath).delete();
 		} catch (IOException e) {
 			logger.error("Failed to delete log file",e);
@@ -257,6 +267,75 @@ public class DurableStateLog extends StateLog {
 		return null;
 	}
 	
+	/**
+	 * Sends the part of the state this replica is expected to send in the
+	 * collaborative state transfer, as getState, but streaming the checkpoint
+	 * and the log records from the files to the socket (see CSTStream). The
+	 * files are opened while holding the checkpoint lock, and sent after, so
+	 * a checkpoint taken meanwhile does not change what is sent.
+	 * @param cstRequest the request
+	 * @param channel the socket
+	 * @throws IOException if the state cannot be sent
+	 */
+	public void transferState(CSTRequest cstRequest, WritableByteChannel channel) throws IOException {
+		if (!(cstRequest instanceof CSTRequestF1)) {
+			throw new IOException("Unsupported state request: " + cstRequest.getClass().getName());
+		}
+		CSTRequestF1 requestF1 = (CSTRequestF1) cstRequest;
+		CSTState header;
+		RandomAccessFile ckp = null;
+		RandomAccessFile logFile = null;
+		long[] ckpRegion = null;
+		long[] logRegion = null;
+		int records = 0;
+
+		checkpointLock.lock();
+		try {
+			int lastCheckpointCID = getLastCheckpointCID();
+			int lastCID = getLastCID();
+			if(id == requestF1.getCheckpointReplica()) {
+				// This replica is expected to send the checkpoint plus the hashes of lower and upper log portions
+				ckpRegion = lastCkpPath != null ? fr.getCkpRegion(lastCkpPath) : null;
+				if (ckpRegion != null)
+					ckp = new RandomAccessFile(lastCkpPath, "r");
+				Long upperPointer = logPointers.get(requestF1.getLogUpper());
+				byte[] logLowerHash = fr.hashLog(0, 0, requestF1.getLogLowerSize(), logPath);
+				byte[] logUpperHash = upperPointer != null ? fr.hashLog(upperPointer, 0, requestF1.getLogUpperSize(), logPath) : null;
+				logger.info("Sending checkpoint: " + (ckpRegion != null ? ckpRegion[1] : -1) + " bytes");
+				header = new CSTState(null, null, null, logLowerHash, null, logUpperHash, lastCheckpointCID, lastCID, this.id);
+			} else if(id == requestF1.getLogLower()) {
+				// This replica is expected to send the lower part of the log
+				Long pointer = logPointers.get(requestF1.getCheckpointReplica());
+				records = requestF1.getLogLowerSize();
+				logRegion = pointer != null ? fr.getLogRegion(pointer, 0, records, logPath) : null;
+				logger.info("Sending lower log: " + records + " from " + pointer);
+				header = new CSTState(null, null, null, null, null, null, lastCheckpointCID, lastCID, this.id);
+			} else {
+				// This replica is expected to send the upper part of the log plus the hash for its checkpoint
+				fr.recoverCkpHash(lastCkpPath);
+				records = requestF1.getLogUpperSize();
+				logRegion = fr.getLogRegion(0, 0, records, logPath);
+				logger.info("Sending upper log: " + records);
+				header = new CSTState(null, fr.getCkpStateHash(), null, null, null, null, lastCheckpointCID,
+						lastCheckpointCID + records, this.id);
+			}
+			if (logRegion != null)
+				logFile = new RandomAccessFile(logPath, "r");
+		} finally {
+			checkpointLock.unlock();
+		}
+
+		try {
+			CSTStream.send(channel, header, ckp != null ? ckp.getChannel() : null, ckpRegion,
+					logFile != null ? logFile.getChannel() : null, logRegion, records);
+		} finally {
+			if (ckp != null)
+				ckp.close();
+			if (logFile != null)
+				logFile.close();
+		}
+	}
+
 	public void transferApplicationState(SocketChannel sChannel, int cid) {
 		fr.transferCkpState(sChannel, lastCkpPath);
 		
@@ -273,12 +352,8 @@ public class DurableStateLog extends StateLog {
 		// save the file pointer to retrieve log information later
 		if((cid % checkpointPeriod) % checkpointPortion == checkpointPortion -1) {
 			int ckpReplicaIndex = (((cid % checkpointPeriod) + 1) / checkpointPortion) -1;
-			try {
-				logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.getFilePointer());
-				logPointers.put(ckpReplicaIndex, log.getFilePointer());
-			} catch (IOException e) {
-				logger.error("Failed to get file pointer",e);
-			}
+			logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.getPosition());
+			logPointers.put(ckpReplicaIndex, log.getPosition());
 		}
 	}
 
@@ -291,10 +366,46 @@ public class DurableStateLog extends StateLog {
 	 * used to updated this log
 	 */
 	public void update(CSTState state) {
-		newCheckpoint(state.getSerializedState(), state.getStateHash(), state.getCheckpointCID());
+		if (state.getCheckpointFile() != null)
+			adoptCheckpoint(state.getCheckpointFile());
+		else
+			newCheckpoint(state.getSerializedState(), state.getStateHash(), state.getCheckpointCID());
 		setLastCheckpointCID(state.getCheckpointCID());
 	}
 
+	/**
+	 * Makes a checkpoint received in a CSTStream, already in the format of a
+	 * checkpoint file, the checkpoint of this replica, without reading it
+	 * @param path the file to which the checkpoint was received
+	 */
+	private void adoptCheckpoint(String path) {
+		String ckpPath = DEFAULT_DIR + String.valueOf(id) + "."
+				+ System.currentTimeMillis() + ".ckp";
+		try {
+			checkpointLock.lock();
+			if (syncCkp) {
+				try (RandomAccessFile ckp = new RandomAccessFile(path, "rw")) {
+					ckp.getChannel().force(true);
+				}
+			}
+
+			if (isToLog)
+				deleteLogFile();
+			deleteLastCkp();
+			if (new File(path).renameTo(new File(ckpPath)))
+				lastCkpPath = ckpPath;
+			else
+				logger.error("Failed to rename checkpoint " + path + " to " + ckpPath);
+			if (isToLog)
+				createLogFile();
+
+		} catch (IOException e) {
+			logger.error("Failed to write checkpoint to disk",e);
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+
 	protected CSTState loadDurableState() {
 		FileRecoverer fr = new FileRecoverer(id, DEFAULT_DIR);
 		lastCkpPath = fr.getLatestFile(".ckp");
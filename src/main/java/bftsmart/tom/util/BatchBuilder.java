@@ -16,6 +16,8 @@ limitations under the License.
 package bftsmart.tom.util;
 
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
 import java.util.Random;
 
@@ -30,6 +32,9 @@ import org.slf4j.LoggerFactory;
  *               N_MESSAGES(int) + N_MESSAGES*[MSGSIZE(int),MSG(byte),SIG(byte)] +
  *
  *
+ * Digest batch format: DIGEST_BATCH(long) + TIMESTAMP(long) + N_NONCES(int) + SEED(long) +
+ *               N_MESSAGES(int) + DIGEST_SIZE(int) + N_MESSAGES*[CLIENT(int),SEQUENCE(int),DIGEST(byte)]
+ *
  * The methods does not try to enforce any constraint, so be correct when using it.
  *
  */
@@ -37,6 +42,13 @@ public final class BatchBuilder {
     
         private Logger logger = LoggerFactory.getLogger(this.getClass());
 
+        /** Value that replaces the timestamp at the beginning of a digest batch */
+        public static final long DIGEST_BATCH = Long.MIN_VALUE;
+
+        // offsets of the client id and sequence number in a serialized TOMMessage
+        private static final int SENDER_OFFSET = 0;
+        private static final int SEQUENCE_OFFSET = 16;
+
 	private Random rnd;
 
         public BatchBuilder(long seed){
@@ -45,7 +57,7 @@ public final class BatchBuilder {
         }
 
         /** build buffer */
-	private byte[] createBatch(long timestamp, int numberOfNonces, long seed, int numberOfMessages, int totalMessagesSize,
+	static byte[] createBatch(long timestamp, int numberOfNonces, long seed, int numberOfMessages, int totalMessagesSize,
 			boolean useSignatures, byte[][] messages, byte[][] signatures) {
             
                 int sigsSize = 0;
@@ -85,7 +97,7 @@ public final class BatchBuilder {
 		return proposalBuffer.array();
 	}
           
-	private void putMessage(ByteBuffer proposalBuffer, byte[] message, boolean addSig, byte[] signature) {
+	private static void putMessage(ByteBuffer proposalBuffer, byte[] message, boolean addSig, byte[] signature) {
 		proposalBuffer.putInt(message.length);
 		proposalBuffer.put(message);
 
@@ -151,4 +163,77 @@ public final class BatchBuilder {
 				useSignatures, messages, signatures);
 
 	}
+
+	/**
+	 * Converts a batch into a digest batch, in which every request is replaced
+	 * by its client id, sequence number and the digest of its bytes (and
+	 * signature). Replicas that already have the requests can rebuild the
+	 * original batch with BatchReader.resolveDigests().
+	 *
+	 * @param batch batch created by makeBatch
+	 * @param useSignatures if the batch contains the signatures of the requests
+	 * @return the digest batch
+	 */
+	public static byte[] makeDigestBatch(byte[] batch, boolean useSignatures) throws NoSuchAlgorithmException {
+
+		ByteBuffer in = ByteBuffer.wrap(batch);
+		MessageDigest md = TOMUtil.getHashEngine();
+
+		long timestamp = in.getLong();
+		int numberOfNonces = in.getInt();
+		long seed = numberOfNonces > 0 ? in.getLong() : 0;
+		int numberOfMessages = in.getInt();
+
+		int digestSize = md.getDigestLength();
+		ByteBuffer out = ByteBuffer.allocate(28 + (numberOfNonces > 0 ? 8 : 0) +
+				numberOfMessages * (2 * Integer.BYTES + digestSize));
+
+		out.putLong(DIGEST_BATCH);
+		out.putLong(timestamp);
+		out.putInt(numberOfNonces);
+		if (numberOfNonces > 0) {
+			out.putLong(seed);
+		}
+		out.putInt(numberOfMessages);
+		out.putInt(digestSize);
+
+		for (int i = 0; i < numberOfMessages; i++) {
+			int messageStart = in.position() + Integer.BYTES;
+			int messageSize = in.getInt();
+			int end = messageStart + messageSize;
+
+			if (useSignatures) {
+				end += Integer.BYTES + in.getInt(end);
+			}
+
+			out.putInt(in.getInt(messageStart + SENDER_OFFSET));
+			out.putInt(in.getInt(messageStart + SEQUENCE_OFFSET));
+
+			md.update(batch, messageStart, messageSize);
+			if (useSignatures) {
+				md.update(batch, messageStart + messageSize + Integer.BYTES, end - messageStart - messageSize - Integer.BYTES);
+			}
+			out.put(md.digest());
+
+			in.position(end);
+		}
+
+		return out.array();
+	}
+
+	/**
+	 * Computes the digest of a request as it is done in makeDigestBatch
+	 *
+	 * @param md hash engine
+	 * @param message serialized request
+	 * @param signature signature of the request (or null)
+	 * @return digest of the request
+	 */
+	static byte[] digestOf(MessageDigest md, byte[] message, byte[] signature) {
+		md.update(message);
+		if (signature != null) {
+			md.update(signature);
+		}
+		return md.digest();
+	}
 }
@@ -18,8 +18,11 @@ package bftsmart.tom.util;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.Random;
 
+import bftsmart.clientsmanagement.ClientsManager;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.messages.TOMMessage;
 import org.slf4j.LoggerFactory;
@@ -102,4 +105,72 @@ public final class BatchReader {
         }
         return requests;
     }
+
+    /**
+     * Checks if a proposed value is a digest batch (see BatchBuilder.makeDigestBatch)
+     *
+     * @param batch the proposed value
+     * @return true if the batch only contains the digests of the requests
+     */
+    public static boolean isDigestBatch(byte[] batch) {
+        return batch != null && batch.length >= Long.BYTES &&
+                ByteBuffer.wrap(batch).getLong(0) == BatchBuilder.DIGEST_BATCH;
+    }
+
+    /**
+     * Rebuilds the original batch from a digest batch, taking the requests
+     * from the pending requests of this replica.
+     *
+     * @param clientsManager the clients manager holding the pending requests
+     * @return the original batch, or null if some request is missing
+     */
+    public byte[] resolveDigests(ClientsManager clientsManager) {
+
+        try {
+            MessageDigest md = TOMUtil.getHashEngine();
+
+            proposalBuffer.getLong(); // DIGEST_BATCH
+            long timestamp = proposalBuffer.getLong();
+            int numberOfNonces = proposalBuffer.getInt();
+            long seed = numberOfNonces > 0 ? proposalBuffer.getLong() : 0;
+            int numberOfMessages = proposalBuffer.getInt();
+            int digestSize = proposalBuffer.getInt();
+
+            if (numberOfMessages < 0 || (long) numberOfMessages * (2 * Integer.BYTES + digestSize) > proposalBuffer.remaining()) {
+                return null;
+            }
+
+            byte[][] messages = new byte[numberOfMessages][];
+            byte[][] signatures = new byte[numberOfMessages][];
+            byte[] digest = new byte[digestSize];
+            int totalMessagesSize = 0;
+
+            for (int i = 0; i < numberOfMessages; i++) {
+                int clientId = proposalBuffer.getInt();
+                int sequence = proposalBuffer.getInt();
+                proposalBuffer.get(digest);
+
+                TOMMessage request = clientsManager.getPending(clientId, sequence);
+                if (request == null) {
+                    return null;
+                }
+
+                byte[] signature = useSignatures ? request.serializedMessageSignature : null;
+                if (!Arrays.equals(digest, BatchBuilder.digestOf(md, request.serializedMessage, signature))) {
+                    return null;
+                }
+
+                messages[i] = request.serializedMessage;
+                signatures[i] = signature;
+                totalMessagesSize += messages[i].length;
+            }
+
+            return BatchBuilder.createBatch(timestamp, numberOfNonces, seed, numberOfMessages, totalMessagesSize,
+                    useSignatures, messages, signatures);
+
+        } catch (Exception e) {
+            LoggerFactory.getLogger(this.getClass()).error("Failed to resolve digest batch", e);
+            return null;
+        }
+    }
 }
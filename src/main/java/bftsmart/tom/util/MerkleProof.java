@@ -0,0 +1,272 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Base64;
+
+/**
+ * Proof of a consensus message that was signed together with other messages.
+ * Instead of one signature per message, the signer builds a Merkle tree over
+ * the serialized messages and signs only its root. Each message then carries
+ * the root signature plus the sibling hashes needed to recompute the root from
+ * the message itself.
+ *
+ * When the number of nodes in a level is odd, the last node is promoted to the
+ * next level unchanged, hence the verifier needs the leaf count to know on
+ * which levels this leaf has a sibling.
+ */
+public class MerkleProof implements Externalizable {
+
+    private static final long serialVersionUID = 1120991140030031120L;
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+    private static final int MAX_FIELD_SIZE = 8 * 1024; // bound for the signature and each hash read from the wire
+
+    private byte[] signature; // signature of the Merkle root
+    private int index; // position of the leaf in the tree
+    private int leaves; // number of leaves in the tree
+    private byte[][] path; // sibling hashes, from the leaf level to the root
+
+    /**
+     * Used for deserialization
+     */
+    public MerkleProof() {
+    }
+
+    public MerkleProof(byte[] signature, int index, int leaves, byte[][] path) {
+        this.signature = signature;
+        this.index = index;
+        this.leaves = leaves;
+        this.path = path;
+    }
+
+    /**
+     * Checks this proof against the serialized message it was created for
+     *
+     * @param key     public key of the signer
+     * @param message the serialized message
+     * @return true if the path leads to a root signed by the key, false otherwise
+     */
+    public boolean verify(PublicKey key, byte[] message) {
+        if (index < 0 || index >= leaves || path == null || signature == null) {
+            return false;
+        }
+        byte[] root = computeRoot(message, index, leaves, path);
+        return root != null && TOMUtil.verifySignature(key, root, signature);
+    }
+
+    /**
+     * Recomputes the root of a tree from one of its leaves and its
+     * authentication path
+     *
+     * @param message the data of the leaf
+     * @param index   position of the leaf in the tree
+     * @param leaves  number of leaves in the tree
+     * @param path    sibling hashes, from the leaf level to the root
+     * @return the root, or null if the path does not fit the position of the leaf
+     */
+    public static byte[] computeRoot(byte[] message, int index, int leaves, byte[][] path) {
+        if (message == null || index < 0 || index >= leaves || path == null) {
+            return null;
+        }
+        try {
+            MessageDigest md = TOMUtil.getHashEngine();
+            byte[] node = leaf(md, message, 0, message.length);
+            int pos = index;
+            int width = leaves;
+            int p = 0;
+            while (width > 1) {
+                if ((pos & 1) == 1) {
+                    if (p >= path.length || path[p] == null) return null;
+                    node = node(md, path[p++], node);
+                } else if (pos + 1 < width) {
+                    if (p >= path.length || path[p] == null) return null;
+                    node = node(md, node, path[p++]);
+                }
+                pos >>= 1;
+                width = (width + 1) >> 1;
+            }
+            return p == path.length ? node : null;
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds the Merkle tree for a batch of serialized messages
+     *
+     * @param messages the serialized messages
+     * @return the levels of the tree; the first one holds the leaves and the last one the root
+     * @throws NoSuchAlgorithmException if the hash algorithm is not available
+     */
+    public static byte[][][] buildTree(byte[][] messages) throws NoSuchAlgorithmException {
+        MessageDigest md = TOMUtil.getHashEngine();
+        byte[][] leaves = new byte[messages.length][];
+        for (int i = 0; i < messages.length; i++) {
+            leaves[i] = leaf(md, messages[i], 0, messages[i].length);
+        }
+        return buildTree(md, leaves);
+    }
+
+    /**
+     * Builds the Merkle tree over consecutive chunks of a byte array, each
+     * chunk being a leaf. An empty array is a single empty chunk.
+     *
+     * @param data      the array
+     * @param chunkSize size of the chunks, the last one may be shorter
+     * @return the levels of the tree; the first one holds the leaves and the last one the root
+     * @throws NoSuchAlgorithmException if the hash algorithm is not available
+     */
+    public static byte[][][] buildTree(byte[] data, int chunkSize) throws NoSuchAlgorithmException {
+        MessageDigest md = TOMUtil.getHashEngine();
+        byte[][] leaves = new byte[Math.max(1, (int) ((data.length + (long) chunkSize - 1) / chunkSize))][];
+        for (int i = 0; i < leaves.length; i++) {
+            int offset = i * chunkSize;
+            leaves[i] = leaf(md, data, offset, Math.min(chunkSize, data.length - offset));
+        }
+        return buildTree(md, leaves);
+    }
+
+    private static byte[][][] buildTree(MessageDigest md, byte[][] leaves) {
+        int height = 1;
+        for (int width = leaves.length; width > 1; width = (width + 1) >> 1) {
+            height++;
+        }
+
+        byte[][][] tree = new byte[height][][];
+        tree[0] = leaves;
+        for (int l = 1; l < height; l++) {
+            byte[][] below = tree[l - 1];
+            byte[][] level = new byte[(below.length + 1) >> 1][];
+            for (int i = 0; i < level.length; i++) {
+                level[i] = 2 * i + 1 < below.length ? node(md, below[2 * i], below[2 * i + 1]) : below[2 * i];
+            }
+            tree[l] = level;
+        }
+        return tree;
+    }
+
+    /**
+     * Extracts the authentication path of a leaf from a tree built by buildTree
+     *
+     * @param tree  the Merkle tree
+     * @param index position of the leaf
+     * @return the sibling hashes, from the leaf level to the root
+     */
+    public static byte[][] pathOf(byte[][][] tree, int index) {
+        byte[][] path = new byte[tree.length - 1][];
+        int p = 0;
+        int pos = index;
+        for (int l = 0; l < tree.length - 1; l++) {
+            int sibling = pos ^ 1;
+            if (sibling < tree[l].length) {
+                path[p++] = tree[l][sibling];
+            }
+            pos >>= 1;
+        }
+        if (p < path.length) {
+            byte[][] shorter = new byte[p][];
+            System.arraycopy(path, 0, shorter, 0, p);
+            path = shorter;
+        }
+        return path;
+    }
+
+    private static byte[] leaf(MessageDigest md, byte[] message, int offset, int length) {
+        md.update(LEAF);
+        md.update(message, offset, length);
+        return md.digest();
+    }
+
+    private static byte[] node(MessageDigest md, byte[] left, byte[] right) {
+        md.update(NODE);
+        md.update(left);
+        return md.digest(right);
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        writeTo(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        readFrom(in);
+    }
+
+    /**
+     * Writes this proof without the Java serialization headers
+     *
+     * @param out the output to write to
+     * @throws IOException if the proof cannot be written
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(index);
+        out.writeInt(leaves);
+        out.writeInt(signature.length);
+        out.write(signature);
+        out.writeInt(path.length);
+        for (byte[] hash : path) {
+            out.writeInt(hash.length);
+            out.write(hash);
+        }
+    }
+
+    /**
+     * Reads a proof written by writeTo
+     *
+     * @param in the input to read from
+     * @throws IOException if the input is truncated or malformed
+     */
+    public void readFrom(DataInput in) throws IOException {
+        index = in.readInt();
+        leaves = in.readInt();
+        signature = readField(in, "signature");
+        int depth = in.readInt();
+        if (depth < 0 || depth > Integer.SIZE) {
+            throw new IOException("Invalid Merkle path length " + depth);
+        }
+        path = new byte[depth][];
+        for (int i = 0; i < path.length; i++) {
+            path[i] = readField(in, "Merkle path hash");
+        }
+    }
+
+    private static byte[] readField(DataInput in, String name) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FIELD_SIZE) {
+            throw new IOException("Invalid " + name + " length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "leaf " + index + "/" + leaves + ", root signature " + Base64.getEncoder().encodeToString(signature);
+    }
+}
@@ -27,6 +27,9 @@ import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import bftsmart.reconfiguration.util.Configuration;
 import java.security.Security;
@@ -53,6 +56,8 @@ public class TOMUtil {
     public static final int SM_REPLY = 7;
     public static final int SM_ASK_INITIAL = 11;
     public static final int SM_REPLY_INITIAL = 12;
+    public static final int SM_CHUNK_REQUEST = 13;
+    public static final int SM_CHUNK_REPLY = 14;
 
     public static final int TRIGGER_LC_LOCALLY = 8;
     public static final int TRIGGER_SM_LOCALLY = 9;
@@ -183,6 +188,26 @@ public class TOMUtil {
         return result;
     }
 
+    /**
+     * Verify the proof of a consensus message, which is either a plain
+     * signature or a MerkleProof created by a batched signer.
+     *
+     * @param key the public key to be used to verify the proof
+     * @param message the serialized message
+     * @param proof the proof to be verified
+     * @return true if the proof is valid, false otherwise
+     */
+    public static boolean verifyProof(PublicKey key, byte[] message, Object proof) {
+
+        if (proof instanceof byte[]) {
+            return verifySignature(key, message, (byte[]) proof);
+        } else if (proof instanceof MerkleProof) {
+            return ((MerkleProof) proof).verify(key, message);
+        } else {
+            return false;
+        }
+    }
+
     public static boolean verifySigForBenchmark(Signature initializedSignatureEngine, byte[] message, byte[] signature) {
 
         try {
@@ -262,4 +287,54 @@ public class TOMUtil {
         return new PBEKeySpec(password, salt, PBE_ITERATIONS, HASH_BYTE_SIZE);
         
     }
+
+    /**
+     * Waits for a task to finish, even if the calling thread is interrupted
+     * meanwhile. The interrupt status is restored before returning.
+     *
+     * @param future the task to wait for
+     * @return the result of the task
+     * @throws ExecutionException if the task failed
+     */
+    public static <T> T getUninterruptibly(Future<T> future) throws ExecutionException {
+        return uninterruptibly(future::get);
+    }
+
+    /**
+     * Waits for a latch to reach zero, even if the calling thread is
+     * interrupted meanwhile. The interrupt status is restored before returning.
+     *
+     * @param latch the latch to wait for
+     */
+    public static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            uninterruptibly(() -> {
+                latch.await();
+                return null;
+            });
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex); // latch.await does not throw it
+        }
+    }
+
+    private interface Wait<T> {
+        T await() throws InterruptedException, ExecutionException;
+    }
+
+    private static <T> T uninterruptibly(Wait<T> wait) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return wait.await();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 }
@@ -0,0 +1,186 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs all the timers of a replica (request timeout, STOP retransmission,
+ * batch timeout, state transfer, AWARE, reply retries) on a small pool of
+ * threads, instead of a java.util.Timer thread for each of them. During a
+ * leader change storm the STOP timers were restarted for every regency, each
+ * time creating and destroying a thread.
+ *
+ * Tasks are scheduled with a name, used in the logs, and return a
+ * ScheduledFuture that cancels them. Cancelled tasks are removed from the
+ * queue right away. For each run, the time between when the task should have
+ * run and when it actually ran (the lag) is measured; a large lag means the
+ * timer threads are overloaded or blocked by some task.
+ *
+ * An exception thrown by a task is logged, and a periodic task keeps running.
+ */
+public class TimerScheduler {
+
+    /** Lag above which a run is logged, in milliseconds */
+    private static final long LAG_WARNING = 100;
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final AtomicLong runs = new AtomicLong(0);
+    private final AtomicLong totalLag = new AtomicLong(0); // nanoseconds
+    private final AtomicLong maxLag = new AtomicLong(0); // nanoseconds
+    private final AtomicLong lateRuns = new AtomicLong(0);
+
+    /**
+     * @param name Prefix of the names of the threads
+     * @param threads Number of threads
+     */
+    public TimerScheduler(String name, int threads) {
+        AtomicInteger count = new AtomicInteger(0);
+        ThreadFactory factory = (r) -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        executor = new ScheduledThreadPoolExecutor(Math.max(1, threads), factory);
+        executor.setRemoveOnCancelPolicy(true);
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Runs a task once, after a delay
+     *
+     * @param name Name of the task, for the logs
+     * @param task the task
+     * @param delay Delay in milliseconds
+     * @return the handle used to cancel the task
+     */
+    public ScheduledFuture<?> schedule(String name, Runnable task, long delay) {
+        delay = Math.max(0, delay);
+        return executor.schedule(new Task(name, task, delay, 0), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a task periodically, like Timer.scheduleAtFixedRate
+     *
+     * @param name Name of the task, for the logs
+     * @param task the task
+     * @param delay Delay before the first run, in milliseconds
+     * @param period Time between the start of each run, in milliseconds
+     * @return the handle used to cancel the task
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(String name, Runnable task, long delay, long period) {
+        delay = Math.max(0, delay);
+        return executor.scheduleAtFixedRate(new Task(name, task, delay, period), delay, period,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancels all the tasks and stops the threads
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return Number of tasks waiting to run
+     */
+    public int getScheduled() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return Number of task runs so far
+     */
+    public long getRuns() {
+        return runs.get();
+    }
+
+    /**
+     * @return Number of runs that started more than 100 ms late
+     */
+    public long getLateRuns() {
+        return lateRuns.get();
+    }
+
+    /**
+     * @return Largest lag seen so far, in milliseconds
+     */
+    public double getMaxLag() {
+        return maxLag.get() / 1000000.0;
+    }
+
+    /**
+     * @return Average lag of the runs so far, in milliseconds
+     */
+    public double getAverageLag() {
+        long n = runs.get();
+        return n > 0 ? (totalLag.get() / (double) n) / 1000000.0 : 0;
+    }
+
+    private void ran(String name, long lag) {
+        runs.incrementAndGet();
+        totalLag.addAndGet(lag);
+        long max = maxLag.get();
+        while (lag > max && !maxLag.compareAndSet(max, lag)) {
+            max = maxLag.get();
+        }
+        if (lag > LAG_WARNING * 1000000L) {
+            lateRuns.incrementAndGet();
+            logger.warn("Timer task '" + name + "' ran " + (lag / 1000000) + " ms late");
+        }
+    }
+
+    /**
+     * Wraps a task to measure its lag and log its exceptions
+     */
+    private class Task implements Runnable {
+
+        private final String name;
+        private final Runnable task;
+        private final long period; // nanoseconds, 0 if not periodic
+        private long due; // when the next run should start, from System.nanoTime
+
+        Task(String name, Runnable task, long delay, long period) {
+            this.name = name;
+            this.task = task;
+            this.period = TimeUnit.MILLISECONDS.toNanos(period);
+            this.due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        }
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            ran(name, Math.max(0, now - due));
+            due += period; // the executor also schedules the next run from when this one was due
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                logger.error("Timer task '" + name + "' failed", ex);
+            }
+        }
+    }
+}